@@ -0,0 +1,68 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.jespersm.proxynaut.core;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import io.micronaut.http.HttpResponse;
+import io.micronaut.http.MediaType;
+import io.micronaut.http.annotation.Controller;
+import io.micronaut.http.annotation.Get;
+import io.micronaut.http.annotation.QueryValue;
+import io.reactivex.Flowable;
+
+/**
+ * The upstream of {@link ProxyThroughputBenchmark} and {@link ProxyLoadHarness}, answering from memory
+ * so only the proxy is measured.
+ */
+@Controller("/origin")
+public class BenchmarkOriginController {
+
+    private final byte[] large = new byte[1024 * 1024];
+    private final byte[] randomChunk = new byte[64 * 1024];
+
+    public BenchmarkOriginController() {
+        new Random(42).nextBytes(randomChunk);
+    }
+
+    @Get(uri="/small", produces=MediaType.APPLICATION_JSON)
+    public HttpResponse<String> small() {
+        return HttpResponse.ok("{\"attribute\":42}");
+    }
+
+    @Get(uri="/large", produces=MediaType.APPLICATION_OCTET_STREAM)
+    public HttpResponse<byte[]> large() {
+        return HttpResponse.ok(large);
+    }
+
+    /**
+     * @param chunks The number of 64 KB chunks to stream
+     */
+    @Get(uri="/randomData{?chunks}", produces=MediaType.APPLICATION_OCTET_STREAM)
+    public Flowable<byte[]> randomData(@QueryValue @Nullable Integer chunks) {
+        return Flowable.just(randomChunk).repeat(chunks != null ? chunks : 16);
+    }
+
+    @Get(uri="/rawJsonStream", produces=MediaType.APPLICATION_JSON)
+    public Flowable<byte[]> rawJsonStream() {
+        return Flowable.just("{\"attribute\":42}".getBytes()).delay(300, TimeUnit.MILLISECONDS);
+    }
+}
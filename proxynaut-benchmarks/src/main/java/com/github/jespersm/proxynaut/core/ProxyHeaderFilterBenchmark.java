@@ -0,0 +1,76 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.jespersm.proxynaut.core;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Deciding which of a typical set of request and response headers to relay.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProxyHeaderFilterBenchmark {
+
+    private static final String[] REQUEST_HEADERS = {
+            "Host", "User-Agent", "Accept", "Accept-Encoding", "Accept-Language", "Authorization",
+            "Cookie", "Connection", "Content-Type", "Content-Length", "X-Request-Id", "If-None-Match" };
+
+    private static final String[] RESPONSE_HEADERS = {
+            "Content-Type", "Content-Length", "Cache-Control", "ETag", "Last-Modified", "Set-Cookie",
+            "Server", "Date", "Vary", "X-Powered-By" };
+
+    private ProxyConfiguration config;
+
+    @Setup
+    public void setup() {
+        config = new ProxyConfiguration("bench");
+        config.setIncludeRequestHeaders(Arrays.asList("Accept", "Accept-Encoding", "Accept-Language", "Authorization", "Content-Type", "X-Request-Id"));
+        config.setExcludeResponseHeaders(Arrays.asList("Server", "X-Powered-By", "Set-Cookie"));
+    }
+
+    @Benchmark
+    public void requestHeaders(Blackhole blackhole) {
+        for (String header : REQUEST_HEADERS) {
+            blackhole.consume(config.shouldIncludeRequestHeader(header));
+        }
+    }
+
+    @Benchmark
+    public void responseHeaders(Blackhole blackhole) {
+        for (String header : RESPONSE_HEADERS) {
+            blackhole.consume(config.shouldIncludeResponseHeader(header));
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.jespersm.proxynaut.core;
+
+import java.net.URL;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.micronaut.context.ApplicationContext;
+import io.micronaut.context.env.PropertySource;
+import io.micronaut.core.io.buffer.ByteBuffer;
+import io.micronaut.core.io.buffer.ReferenceCounted;
+import io.micronaut.core.util.CollectionUtils;
+import io.micronaut.http.HttpRequest;
+import io.micronaut.http.client.DefaultHttpClientConfiguration;
+import io.micronaut.http.client.RxStreamingHttpClient;
+import io.micronaut.runtime.server.EmbeddedServer;
+import io.reactivex.Flowable;
+
+/**
+ * Puts an in-process origin under concurrent load, first directly and then through the proxy, and
+ * reports requests and megabytes per second and latency percentiles for both, so the overhead of the
+ * proxy can be compared between releases. Run it from the benchmarks jar:
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.github.jespersm.proxynaut.core.ProxyLoadHarness \
+ *     --connections=64 --warmup=5 --duration=30 --mix=small=80,large=15,slow=5 --chunks=16
+ * </pre>
+ *
+ * Each of the connections sends one request after the other, picking the kind of request at random by
+ * the weights of the mix: {@code small} JSON documents, {@code large} streams of 64 KB chunks, or
+ * {@code slow} responses that take 300 ms to begin.
+ */
+public final class ProxyLoadHarness {
+
+    enum Scenario {
+        SMALL, LARGE, SLOW
+    }
+
+    private final int connections;
+    private final int warmupSeconds;
+    private final int durationSeconds;
+    private final int chunks;
+    private final Map<Scenario, Integer> mix = new EnumMap<>(Scenario.class);
+    private int totalWeight;
+
+    private ProxyLoadHarness(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (! arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Expected --option=value, got " + arg);
+            }
+            options.put(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+        connections = Integer.parseInt(options.getOrDefault("connections", "32"));
+        warmupSeconds = Integer.parseInt(options.getOrDefault("warmup", "5"));
+        durationSeconds = Integer.parseInt(options.getOrDefault("duration", "30"));
+        chunks = Integer.parseInt(options.getOrDefault("chunks", "16"));
+        for (String weight : options.getOrDefault("mix", "small=80,large=15,slow=5").split(",")) {
+            String[] parts = weight.split("=");
+            Scenario scenario = Scenario.valueOf(parts[0].trim().toUpperCase(Locale.ENGLISH));
+            int value = Integer.parseInt(parts[1].trim());
+            mix.put(scenario, value);
+            totalWeight += value;
+        }
+        if (totalWeight <= 0) {
+            throw new IllegalArgumentException("The mix needs a positive weight");
+        }
+    }
+
+    public static void main(String[] args) {
+        new ProxyLoadHarness(args).run();
+    }
+
+    private void run() {
+        EmbeddedServer origin = ApplicationContext.run(EmbeddedServer.class, PropertySource.of("origin", CollectionUtils.mapOf(
+                "micronaut.server.port", -1)));
+        EmbeddedServer proxy = ApplicationContext.run(EmbeddedServer.class, PropertySource.of("proxy", CollectionUtils.mapOf(
+                "micronaut.server.port", -1,
+                "proxynaut.load.context", "/proxy",
+                "proxynaut.load.uri", origin.getURL() + "/origin",
+                "proxynaut.load.client.pool.enabled", true,
+                "proxynaut.load.client.pool.maxConnections", connections)));
+        try {
+            System.out.printf("%d connections, mix %s, %d s warmup, %d s measured%n", connections, mix, warmupSeconds, durationSeconds);
+            Result direct = measure(origin, origin.getURL(), "/origin");
+            Result proxied = measure(proxy, proxy.getURL(), "/proxy");
+            System.out.printf("%-8s %10s %10s %10s %10s %10s %8s%n", "target", "req/s", "MB/s", "p50 ms", "p99 ms", "p999 ms", "errors");
+            direct.print("origin");
+            proxied.print("proxy");
+            System.out.printf("Proxy overhead: %+.3f ms at p50, %+.3f ms at p99, %+.1f%% req/s%n",
+                    (proxied.percentile(50) - direct.percentile(50)),
+                    (proxied.percentile(99) - direct.percentile(99)),
+                    100.0 * (proxied.requestsPerSecond() - direct.requestsPerSecond()) / direct.requestsPerSecond());
+        } finally {
+            proxy.stop();
+            origin.stop();
+        }
+    }
+
+    private Result measure(EmbeddedServer server, URL url, String prefix) {
+        DefaultHttpClientConfiguration clientConfig = new DefaultHttpClientConfiguration();
+        clientConfig.getConnectionPoolConfiguration().setEnabled(true);
+        clientConfig.getConnectionPoolConfiguration().setMaxConnections(connections);
+        RxStreamingHttpClient client = server.getApplicationContext().createBean(RxStreamingHttpClient.class, url, clientConfig);
+        try {
+            load(client, prefix, warmupSeconds, new Result());
+            return load(client, prefix, durationSeconds, new Result());
+        } finally {
+            client.close();
+        }
+    }
+
+    private Result load(RxStreamingHttpClient client, String prefix, int seconds, Result result) {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+        Flowable.range(0, connections)
+                .flatMap(connection -> Flowable.defer(() -> exchange(client, prefix + pathOf(pick()), result))
+                        .repeatUntil(() -> System.nanoTime() - deadline >= 0), connections)
+                .blockingSubscribe();
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private Flowable<Long> exchange(RxStreamingHttpClient client, String uri, Result result) {
+        long start = System.nanoTime();
+        return client.dataStream(HttpRequest.GET(uri))
+                .reduce(0L, (total, chunk) -> total + release(chunk))
+                .doOnSuccess(bytes -> {
+                    result.latency.record(System.nanoTime() - start);
+                    result.requests.increment();
+                    result.bytes.add(bytes);
+                })
+                .onErrorReturn(e -> {
+                    result.errors.increment();
+                    return 0L;
+                })
+                .toFlowable();
+    }
+
+    private static long release(ByteBuffer<?> chunk) {
+        int bytes = chunk.readableBytes();
+        if (chunk instanceof ReferenceCounted) ((ReferenceCounted) chunk).release();
+        return bytes;
+    }
+
+    private Scenario pick() {
+        int ticket = ThreadLocalRandom.current().nextInt(totalWeight);
+        for (Map.Entry<Scenario, Integer> weight : mix.entrySet()) {
+            ticket -= weight.getValue();
+            if (ticket < 0) {
+                return weight.getKey();
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    private String pathOf(Scenario scenario) {
+        switch (scenario) {
+        case SMALL: return "/small";
+        case LARGE: return "/randomData?chunks=" + chunks;
+        default: return "/rawJsonStream";
+        }
+    }
+
+    private static final class Result {
+        final LongAdder requests = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final ProxyLatencyHistogram latency = new ProxyLatencyHistogram(0);
+        long elapsedNanos;
+
+        double requestsPerSecond() {
+            return requests.sum() * 1e9 / elapsedNanos;
+        }
+
+        double percentile(double percentile) {
+            return latency.getValueAtPercentile(percentile) / 1e6;
+        }
+
+        void print(String target) {
+            System.out.printf("%-8s %10.1f %10.2f %10.3f %10.3f %10.3f %8d%n", target, requestsPerSecond(),
+                    bytes.sum() * 1e9 / elapsedNanos / (1024 * 1024), percentile(50), percentile(99), percentile(99.9), errors.sum());
+        }
+    }
+}
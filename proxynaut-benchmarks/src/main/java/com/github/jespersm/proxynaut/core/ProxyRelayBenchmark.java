@@ -0,0 +1,93 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.jespersm.proxynaut.core;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.micronaut.buffer.netty.NettyByteBufferFactory;
+import io.micronaut.context.ApplicationContext;
+import io.micronaut.context.env.PropertySource;
+import io.micronaut.core.io.buffer.ByteBuffer;
+import io.micronaut.core.util.CollectionUtils;
+import io.micronaut.http.HttpResponse;
+import io.micronaut.http.MutableHttpResponse;
+import io.netty.buffer.Unpooled;
+import io.reactivex.Flowable;
+
+/**
+ * Relaying an upstream response's chunks to the downstream body, as {@link Proxy} does for every
+ * chunk, without any network.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProxyRelayBenchmark {
+
+    @Param({"1", "64"})
+    int chunks;
+
+    private ApplicationContext context;
+    private Proxy proxy;
+    private ProxyConfiguration config;
+    private Flowable<HttpResponse<ByteBuffer<?>>> upstreamResponses;
+
+    @Setup
+    public void setup() {
+        context = ApplicationContext.run(PropertySource.of("bench", CollectionUtils.mapOf(
+                "proxynaut.bench.context", "/proxy",
+                "proxynaut.bench.uri", "http://localhost:8080/origin")));
+        proxy = context.getBean(Proxy.class);
+        config = context.getBean(ProxyConfiguration.class);
+
+        // The chunks are never released downstream, so the same ones can be relayed again and again
+        HttpResponse<ByteBuffer<?>>[] responses = new HttpResponse[chunks];
+        for (int i = 0; i < chunks; i++) {
+            ByteBuffer<?> chunk = NettyByteBufferFactory.DEFAULT.wrap(Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(new byte[8192])));
+            responses[i] = HttpResponse.ok(chunk);
+        }
+        upstreamResponses = Flowable.fromArray(responses);
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public long relayChunks() {
+        MutableHttpResponse<?> response = proxy.buildResponse(config, upstreamResponses, upstreamResponse -> null).blockingGet();
+        Flowable<ByteBuffer<?>> body = (Flowable<ByteBuffer<?>>) response.body();
+        return body.reduce(0L, (total, chunk) -> total + chunk.readableBytes()).blockingGet();
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.jespersm.proxynaut.core;
+
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Finding the configuration of a request among many configured contexts, as {@link ProxyFilter} does for every request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProxyRouteTableBenchmark {
+
+    @Param({"10", "100"})
+    int routes;
+
+    private ProxyRouteTable routeTable;
+    private String deepestPath;
+
+    @Setup
+    public void setup() throws MalformedURLException {
+        List<ProxyConfiguration> configs = new ArrayList<>();
+        for (int i = 0; i < routes; i++) {
+            ProxyConfiguration config = new ProxyConfiguration("route" + i);
+            config.setContext("/api/v" + (i % 3) + "/service" + i);
+            config.setUri(URI.create("http://backend-" + i + ".internal:8080/"));
+            configs.add(config);
+        }
+        routeTable = new ProxyRouteTable(configs);
+        deepestPath = "/api/v" + ((routes - 1) % 3) + "/service" + (routes - 1) + "/customers/42/orders?page=2";
+    }
+
+    @Benchmark
+    public ProxyConfiguration match() {
+        return routeTable.findLongestPrefix(deepestPath);
+    }
+
+    @Benchmark
+    public ProxyConfiguration miss() {
+        return routeTable.findLongestPrefix("/static/css/site.css");
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.jespersm.proxynaut.core;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.micronaut.context.ApplicationContext;
+import io.micronaut.context.env.PropertySource;
+import io.micronaut.core.io.buffer.ByteBuffer;
+import io.micronaut.core.io.buffer.ReferenceCounted;
+import io.micronaut.core.util.CollectionUtils;
+import io.micronaut.http.HttpRequest;
+import io.micronaut.http.client.DefaultHttpClientConfiguration;
+import io.micronaut.http.client.RxStreamingHttpClient;
+import io.micronaut.runtime.server.EmbeddedServer;
+
+/**
+ * Requests per second through the proxy, end to end over loopback, against an in-process origin.
+ * The origin alone is measured too, as the baseline the proxy's overhead shows against.
+ * For bytes per second, multiply the {@code large} results by the 1 MB body size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(8)
+@Fork(1)
+public class ProxyThroughputBenchmark {
+
+    private EmbeddedServer origin;
+    private EmbeddedServer proxy;
+    private RxStreamingHttpClient client;
+
+    @Setup
+    public void setup() {
+        origin = ApplicationContext.run(EmbeddedServer.class, PropertySource.of("origin", CollectionUtils.mapOf(
+                "micronaut.server.port", -1)));
+        proxy = ApplicationContext.run(EmbeddedServer.class, PropertySource.of("proxy", CollectionUtils.mapOf(
+                "micronaut.server.port", -1,
+                "proxynaut.bench.context", "/proxy",
+                "proxynaut.bench.uri", origin.getURL() + "/origin",
+                "proxynaut.bench.client.pool.enabled", true,
+                "proxynaut.bench.client.pool.maxConnections", 64)));
+        // Pooled, like any real client would be, so connection setup doesn't swamp the results
+        DefaultHttpClientConfiguration clientConfig = new DefaultHttpClientConfiguration();
+        clientConfig.getConnectionPoolConfiguration().setEnabled(true);
+        clientConfig.getConnectionPoolConfiguration().setMaxConnections(16);
+        client = proxy.getApplicationContext().createBean(RxStreamingHttpClient.class, proxy.getURL(), clientConfig);
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.close();
+        proxy.stop();
+        origin.stop();
+    }
+
+    private long stream(String uri) {
+        return client.dataStream(HttpRequest.GET(uri))
+                .reduce(0L, (total, chunk) -> total + release(chunk))
+                .blockingGet();
+    }
+
+    private static long release(ByteBuffer<?> chunk) {
+        int bytes = chunk.readableBytes();
+        if (chunk instanceof ReferenceCounted) ((ReferenceCounted) chunk).release();
+        return bytes;
+    }
+
+    @Benchmark
+    public long proxySmall() {
+        return stream("/proxy/small");
+    }
+
+    @Benchmark
+    public long proxyLarge() {
+        return stream("/proxy/large");
+    }
+
+    @Benchmark
+    public long originSmall() {
+        return stream(origin.getURL() + "/origin/small");
+    }
+
+    @Benchmark
+    public long originLarge() {
+        return stream(origin.getURL() + "/origin/large");
+    }
+}
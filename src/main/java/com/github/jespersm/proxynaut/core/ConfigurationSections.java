@@ -0,0 +1,78 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jespersm.proxynaut.core;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Map;
+
+import io.micronaut.context.exceptions.ConfigurationException;
+import io.micronaut.core.convert.ConversionService;
+import io.micronaut.core.naming.NameUtils;
+import io.micronaut.core.reflect.ReflectionUtils;
+
+/**
+ * Binds a section of a proxy route's configuration, e.g. {@code proxynaut.api.client}, onto a settings object.
+ *
+ * Micronaut 1.0 binds nested configuration classes once, not per {@code @EachProperty} entry, so
+ * {@link ProxyConfiguration} receives each section as a map and binds it here: {@code some-setting}
+ * is applied through {@code setSomeSetting(..)}, converting the value as Micronaut would, and a
+ * nested section through the object returned by {@code getSomeSection()}.
+ */
+final class ConfigurationSections {
+
+    private ConfigurationSections() {
+    }
+
+    static <T> T bind(String section, Map<String, Object> settings, T target) {
+        for (Map.Entry<String, Object> setting : settings.entrySet()) {
+            String property = NameUtils.camelCase(setting.getKey());
+            String path = section + "." + setting.getKey();
+            Object value = setting.getValue();
+            if (value instanceof Map) {
+                bind(path, (Map<String, Object>) value, invoke(path, findMethod(target, NameUtils.getterNameFor(property), 0), target));
+            } else {
+                Method setter = findMethod(target, NameUtils.setterNameFor(property), 1);
+                Class<?> type = ReflectionUtils.getWrapperType(setter.getParameterTypes()[0]);
+                Object converted = ConversionService.SHARED.convert(value, type)
+                        .orElseThrow(() -> new ConfigurationException("Invalid value for '" + path + "': " + value));
+                invoke(path, setter, target, converted);
+            }
+        }
+        return target;
+    }
+
+    private static Method findMethod(Object target, String name, int parameterCount) {
+        for (Method method : target.getClass().getMethods()) {
+            if (method.getName().equals(name) && method.getParameterCount() == parameterCount) {
+                return method;
+            }
+        }
+        return null;
+    }
+
+    private static Object invoke(String path, Method method, Object target, Object... args) {
+        if (method == null) {
+            throw new ConfigurationException("Unknown proxy setting: " + path);
+        }
+        try {
+            return method.invoke(target, args);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new ConfigurationException("Unable to apply proxy setting '" + path + "': " + e.getMessage(), e);
+        }
+    }
+}
@@ -19,20 +19,34 @@ package com.github.jespersm.proxynaut.core;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import static java.util.stream.Collectors.toList;
 
 import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
 import javax.inject.Singleton;
 
 import org.reactivestreams.Subscriber;
@@ -42,178 +56,795 @@ import org.slf4j.LoggerFactory;
 
 import io.micronaut.context.BeanContext;
 import io.micronaut.context.annotation.Executable;
+import io.micronaut.context.exceptions.ConfigurationException;
 import io.micronaut.core.io.buffer.ByteBuffer;
-import io.micronaut.core.io.buffer.ReferenceCounted;
 import io.micronaut.core.util.StringUtils;
+import io.micronaut.http.HttpHeaders;
 import io.micronaut.http.HttpMethod;
 import io.micronaut.http.HttpRequest;
 import io.micronaut.http.HttpResponse;
 import io.micronaut.http.HttpStatus;
 import io.micronaut.http.MediaType;
+import io.micronaut.http.MutableHttpHeaders;
 import io.micronaut.http.MutableHttpRequest;
 import io.micronaut.http.MutableHttpResponse;
+import io.micronaut.http.client.DefaultHttpClientConfiguration;
+import io.micronaut.http.client.HttpClientConfiguration;
 import io.micronaut.http.client.RxStreamingHttpClient;
 import io.micronaut.http.client.exceptions.HttpClientResponseException;
+import io.micronaut.http.client.ssl.NettyClientSslBuilder;
+import io.micronaut.http.codec.MediaTypeCodecRegistry;
+import io.micronaut.http.netty.NettyHttpHeaders;
+import io.micronaut.http.netty.stream.StreamedHttpRequest;
+import io.micronaut.http.server.netty.NettyHttpRequest;
 import io.micronaut.http.simple.SimpleHttpRequestFactory;
-import io.micronaut.http.simple.SimpleHttpResponseFactory;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpContent;
+import io.reactivex.Completable;
 import io.reactivex.Flowable;
+import io.reactivex.Notification;
+import io.reactivex.Single;
 import io.reactivex.processors.BehaviorProcessor;
 import io.reactivex.processors.MulticastProcessor;
-import io.reactivex.processors.UnicastProcessor;
 
 @Singleton
 public class Proxy implements Closeable {
 
     private final Collection<ProxyConfiguration> configs;
 
-    private Map<String, RxStreamingHttpClient> proxyMap = Collections.synchronizedMap(new HashMap<>());
+    private final ProxyRouteTable routeTable;
+
+    private Map<String, ProxyUpstreamGroup> proxyMap = Collections.synchronizedMap(new HashMap<>());
+
+    private Map<String, ProxyClientStatistics> statisticsMap = new ConcurrentHashMap<>();
+
+    private final Map<String, ProxyResponseCache> cacheMap = new HashMap<>();
+
+    private final Map<String, ProxyCoalescer> coalescerMap = new HashMap<>();
+
+    private final Map<String, ProxyCircuitBreaker> breakerMap = new HashMap<>();
+
+    private final Map<String, ProxyRetryPolicy> retryMap = new HashMap<>();
+
+    private final Map<String, ProxyRouteMetrics> metricsMap = new HashMap<>();
+
+    private final Map<String, ProxyCompression> compressionMap = new HashMap<>();
+
+    private final Map<String, ProxyRateLimiter> limiterMap = new HashMap<>();
+
+    private final Map<String, ProxyConcurrencyLimiter> concurrencyMap = new HashMap<>();
+
+    private final Map<String, ProxyAccessLog> accessLogMap = new HashMap<>();
+
+    private final ProxyTimeouts timeouts = new ProxyTimeouts();
+
+    private final Map<String, ProxyWarmup> warmupMap = new HashMap<>();
+
+    private final Map<String, ProxyDnsCache> dnsMap = new HashMap<>();
+
+    private Completable warmup;
+
+    private volatile boolean ready;
 
     private BeanContext beanContext;
 
     public Proxy(Collection<ProxyConfiguration> configs, BeanContext beanContext) throws MalformedURLException {
         this.configs = configs;
+        this.routeTable = new ProxyRouteTable(configs);
         this.beanContext = beanContext;
+        for (ProxyConfiguration config : configs) {
+            metricsMap.put(config.getName(), new ProxyRouteMetrics(config.getName()));
+            config.getCache().ifPresent(cacheConfig -> cacheMap.put(config.getName(), new ProxyResponseCache(config.getName(), cacheConfig)));
+            if (config.isCoalesce()) {
+                coalescerMap.put(config.getName(), new ProxyCoalescer(config.getName(), onCancel -> createResponseBody(config, onCancel)));
+            }
+            config.getCircuitBreaker().ifPresent(breakerConfig -> breakerMap.put(config.getName(),
+                    new ProxyCircuitBreaker(config.getName(), breakerConfig, beanContext::publishEvent)));
+            config.getRetry().ifPresent(retryConfig -> retryMap.put(config.getName(), new ProxyRetryPolicy(config.getName(), retryConfig)));
+            config.getCompression().ifPresent(compressionConfig -> compressionMap.put(config.getName(), new ProxyCompression(compressionConfig)));
+            config.getRateLimit().ifPresent(rateLimitConfig -> limiterMap.put(config.getName(), new ProxyRateLimiter(config.getName(), rateLimitConfig)));
+            config.getConcurrencyLimit().ifPresent(limitConfig -> concurrencyMap.put(config.getName(), new ProxyConcurrencyLimiter(config.getName(), limitConfig)));
+            boolean pooled = config.getClient().map(c -> c.getConnectionPoolConfiguration().isEnabled()).orElse(false);
+            config.getWarmup().ifPresent(warmupConfig -> {
+                if (warmupConfig.getConnections() > 0 && ! pooled) {
+                    LOG.warn("The warm-up of {} opens {} connections to each upstream, but without client.pool they are closed right away", config.getName(), warmupConfig.getConnections());
+                }
+                warmupMap.put(config.getName(), new ProxyWarmup(config.getName(), warmupConfig));
+            });
+            config.getDns().ifPresent(dnsConfig -> {
+                if (pooled) {
+                    LOG.warn("The dns section of {} has no effect with client.pool, as pooled connections look up their upstream once", config.getName());
+                }
+                dnsMap.put(config.getName(), new ProxyDnsCache(config.getName(), dnsConfig));
+            });
+        }
+        this.ready = warmupMap.isEmpty();
+        // Routes logging to the same file share its writer
+        Map<String, ProxyAccessLog> accessLogFiles = new HashMap<>();
+        for (ProxyConfiguration config : configs) {
+            config.getAccessLog().filter(logConfig -> logConfig.getFile() != null).ifPresent(logConfig -> accessLogMap.put(config.getName(),
+                    accessLogFiles.computeIfAbsent(logConfig.getFile(), file -> new ProxyAccessLog(logConfig))));
+        }
     }
 
     protected static final Logger LOG = LoggerFactory.getLogger(Proxy.class);
 
+    private static final String X_FORWARDED_FOR = "X-Forwarded-For";
+    private static final String X_FORWARDED_PROTO = "X-Forwarded-Proto";
+    private static final String X_FORWARDED_HOST = "X-Forwarded-Host";
+
+    /** Headers about a single connection, which must not be relayed to the next, see RFC 7230 section 6.1 */
+    private static final ProxyHeaderNames HOP_BY_HOP = new ProxyHeaderNames(Arrays.asList(
+            HttpHeaders.CONNECTION, "Keep-Alive", "Proxy-Connection", HttpHeaders.PROXY_AUTHENTICATE, HttpHeaders.PROXY_AUTHORIZATION,
+            HttpHeaders.TE, HttpHeaders.TRAILER, HttpHeaders.TRANSFER_ENCODING, HttpHeaders.UPGRADE));
+
+    /** Request headers that the upstream client sets, or which are recomputed rather than copied */
+    private static final ProxyHeaderNames UPSTREAM_REQUEST_HEADERS = new ProxyHeaderNames(Arrays.asList(
+            HttpHeaders.HOST, HttpHeaders.CONTENT_LENGTH, HttpHeaders.CONTENT_TYPE, X_FORWARDED_FOR, X_FORWARDED_PROTO, X_FORWARDED_HOST));
+
+    /** Response headers that follow from the relayed body rather than being copied */
+    private static final ProxyHeaderNames BODY_RESPONSE_HEADERS = new ProxyHeaderNames(Arrays.asList(
+            HttpHeaders.CONTENT_LENGTH, HttpHeaders.CONTENT_TYPE));
+
+    /**
+     * Route target registered by {@link ProxyRouteBuilder}. The declared return type is what makes
+     * Micronaut stream the response body chunk by chunk, but requests for these routes are answered
+     * by {@link ProxyFilter} using {@link #serve(HttpRequest, String)}, so this is never expected to run.
+     * The headers would have to be returned before the upstream has sent them, so rather than block
+     * a server thread waiting for them, it fails fast.
+     */
     @Executable
-    public HttpResponse<Flowable<byte[]>> serve(HttpRequest<ByteBuffer<?>> request, @Nullable String path) throws InterruptedException {
-        if (path == null) {
-            path = "";
-        }
-        String requestPath = request.getPath();
-        String proxyContextPath = requestPath.substring(0, requestPath.length() - path.length());
-        Optional<ProxyConfiguration> config = findConfigForRequest(proxyContextPath);
-        if (!config.isPresent()) {
+    public HttpResponse<Flowable<ByteBuffer<?>>> route(HttpRequest<ByteBuffer<?>> request, @Nullable String path) {
+        LOG.warn("Routed " + request.getMethod() + " " + request.getPath() + " to the proxy without it being answered by the proxy's filter");
+        return HttpResponse.status(HttpStatus.INTERNAL_SERVER_ERROR, "Proxy filter not applied to: " + request.getPath());
+    }
+
+    /**
+     * Relays the request to the configured upstream without blocking the calling thread.
+     * The returned {@link Single} emits as soon as the upstream headers are in, while the body
+     * continues to stream through the response's {@link Flowable}.
+     * The upstream path is what follows the context of the configuration matching the request's
+     * path, whatever {@code path} the caller extracted.
+     */
+    public Single<MutableHttpResponse<?>> serve(HttpRequest<ByteBuffer<?>> request, @Nullable String path) {
+        ProxyConfiguration config = routeTable.findLongestPrefix(request.getPath());
+        if (config == null) {
         	// This should never happen, only if Micronaut's router somehow was confused
         	List<String> prefixes = configs.stream().map(c -> c.getContext()).collect(toList());
             LOG.warn("Matched " + request.getMethod() + " " + request.getPath() + " to the proxy, but no configuration is found. Prefixes found in config: " + prefixes);
-            return HttpResponse.status(HttpStatus.BAD_REQUEST, "Unknown proxy path: " + proxyContextPath);
+            return Single.just(HttpResponse.status(HttpStatus.BAD_REQUEST, "Unknown proxy path: " + request.getPath()));
         }
+        return serve(request, config, request.getPath().substring(config.getContext().length()));
+    }
 
-        MutableHttpRequest<Object> upstreamRequest = buildRequest(request, path, config);
-        
-        RxStreamingHttpClient client = findOrCreateClient(config.get());        
-        LOG.info("About to pivot proxy call to " + config.get().getUri() + path);
-        Flowable<HttpResponse<ByteBuffer<?>>> upstreamResponseFlowable = client.exchangeStream(upstreamRequest).serialize();
+    /**
+     * Relays the request to the upstream of a known configuration, as resolved from the route by {@link ProxyFilter}.
+     */
+    public Single<MutableHttpResponse<?>> serve(HttpRequest<ByteBuffer<?>> request, ProxyConfiguration config, @Nullable String path) {
+        ProxyRouteMetrics metrics = metricsMap.get(config.getName());
+        long start = metrics.requestStarted();
+        ProxyCompression compression = compressionMap.get(config.getName());
+        ProxyAccessLog accessLog = accessLogMap.get(config.getName());
+        AtomicBoolean responded = new AtomicBoolean();
+        return dispatch(request, config, path, metrics)
+                .<MutableHttpResponse<?>>map(response -> {
+                    responded.set(true);
+                    // Compressed per client, as coalesced requests share the response but not their Accept-Encoding
+                    if (compression != null) response = compression.apply(request, response);
+                    if (accessLog != null) {
+                        response = accessLog.logging(config.getName(), config.getAccessLog().get().getSampleRate(), request, response, start);
+                    }
+                    return metrics.responding(response, start);
+                })
+                .doFinally(() -> {
+                    // Gone before the headers, e.g. the client disconnected
+                    if (! responded.get()) metrics.requestEnded(start);
+                });
+    }
+
+    private Single<MutableHttpResponse<?>> dispatch(HttpRequest<ByteBuffer<?>> request, ProxyConfiguration config, @Nullable String path, ProxyRouteMetrics metrics) {
+        if (path == null) {
+            path = "";
+        }
+        ProxyRateLimiter limiter = limiterMap.get(config.getName());
+        if (limiter != null) {
+            long wait = limiter.tryAcquire(request);
+            if (wait > 0) {
+                LOG.debug("Rate limit of " + config.getName() + " exceeded by " + request.getPath());
+                return Single.just(HttpResponse.status(HttpStatus.TOO_MANY_REQUESTS, "Rate limit exceeded")
+                        .header(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, (wait + 999_999_999) / 1_000_000_000))));
+            }
+        }
+        ProxyResponseCache cache = cacheMap.get(config.getName());
+        if (cache != null) {
+            ProxyResponseCache.Entry cached = cache.lookup(request);
+            if (cached != null) {
+                LOG.debug("Serving " + request.getPath() + " from the cache of " + config.getName());
+                MutableHttpResponse<?> response = makeCachedResponse(cached, config);
+                ProxyCompression compression = compressionMap.get(config.getName());
+                if (compression != null && cached instanceof ProxyResponseCache.MemoryEntry) {
+                    response = compression.applyCached(request, response, cache, (ProxyResponseCache.MemoryEntry) cached);
+                }
+                return Single.just(response);
+            }
+        }
+        ProxyCoalescer coalescer = coalescerMap.get(config.getName());
+        String coalescingKey = coalescer != null ? ProxyCoalescer.keyOf(request) : null;
+        if (coalescingKey != null) {
+            String upstreamPath = path;
+            return coalescer.join(coalescingKey, () -> exchange(request, config, upstreamPath, cache, metrics));
+        }
+        return exchange(request, config, path, cache, metrics);
+    }
+
+    private Single<MutableHttpResponse<?>> exchange(HttpRequest<ByteBuffer<?>> request, ProxyConfiguration config, String path,
+    		@Nullable ProxyResponseCache cache, ProxyRouteMetrics metrics) {
+        ProxyConcurrencyLimiter limiter = concurrencyMap.get(config.getName());
+        if (limiter == null) {
+            return exchange(request, config, path, cache, metrics, null);
+        }
+        return limiter.acquire().flatMap(acquired -> {
+            if (! acquired) {
+                LOG.debug("Concurrency limit of " + config.getName() + " reached");
+                return Single.<MutableHttpResponse<?>>just(HttpResponse.status(HttpStatus.SERVICE_UNAVAILABLE, "Concurrency limit reached"));
+            }
+            return exchange(request, config, path, cache, metrics, limiter);
+        });
+    }
+
+    private Single<MutableHttpResponse<?>> exchange(HttpRequest<ByteBuffer<?>> request, ProxyConfiguration config, String path,
+    		@Nullable ProxyResponseCache cache, ProxyRouteMetrics metrics, @Nullable ProxyConcurrencyLimiter limiter) {
+        ProxyCircuitBreaker breaker = breakerMap.get(config.getName());
+        if (breaker != null && ! breaker.tryAcquire()) {
+            if (limiter != null) limiter.onIgnored();
+            LOG.debug("Circuit of " + config.getName() + " is open");
+            return Single.just(HttpResponse.status(HttpStatus.SERVICE_UNAVAILABLE, "Circuit open"));
+        }
+        ProxyUpstreamGroup group = findOrCreateUpstreams(config);
+        ProxyUpstream first = group.select();
+        if (first == null) {
+            if (breaker != null) breaker.onIgnored();
+            if (limiter != null) limiter.onIgnored();
+            LOG.debug("No healthy upstream for " + config.getName());
+            return Single.just(HttpResponse.status(HttpStatus.SERVICE_UNAVAILABLE, "No healthy upstream"));
+        }
+        ProxyRetryPolicy retryPolicy = retryMap.get(config.getName());
+        if (retryPolicy != null) {
+            retryPolicy.deposit();
+        }
+        HttpMethod method = request.getMethod();
         
-        CompletableFuture<HttpResponse<Flowable<byte[]>>> futureResponse = buildResponse(config, upstreamResponseFlowable);
+        // The first attempt goes to the upstream chosen above, any retries to whichever the balancer picks then
+        AtomicReference<ProxyUpstream> chosen = new AtomicReference<>(first);
+        AtomicBoolean responding = new AtomicBoolean();
+        Flowable<HttpResponse<ByteBuffer<?>>> upstreamResponseFlowable = Flowable.defer(() -> {
+        	ProxyUpstream upstream = chosen.getAndSet(null);
+        	if (upstream == null) upstream = group.select();
+        	if (upstream == null) return Flowable.<HttpResponse<ByteBuffer<?>>>error(new IllegalStateException("No healthy upstream"));
+        	return attempt(request, config, path, upstream, retryPolicy, metrics);
+        	})
+        	.doOnNext(r -> responding.set(true))
+        	.retry((attempts, e) -> retryPolicy != null && ! responding.get() && retryPolicy.shouldRetry(method, attempts, e));
+
+        long hedgeDelay = retryPolicy != null ? retryPolicy.hedgeDelayNanos(method) : -1;
+        if (hedgeDelay >= 0) {
+        	upstreamResponseFlowable = Flowable.ambArray(upstreamResponseFlowable, hedge(request, config, path, group, retryPolicy, metrics, hedgeDelay));
+        }
+
+        ProxyTimeoutConfiguration timeoutConfig = config.getTimeouts();
+        long firstByteNanos = timeoutConfig.getFirstByte() != null ? timeoutConfig.getFirstByte().toNanos() : TimeUnit.MILLISECONDS.toNanos(config.getTimeoutMs());
+        AtomicBoolean observed = new AtomicBoolean();
+        long start = System.nanoTime();
+        upstreamResponseFlowable = timeouts.apply(upstreamResponseFlowable, firstByteNanos, nanos(timeoutConfig.getBodyIdle()), nanos(timeoutConfig.getTotal()))
+        		.doOnEach(signal -> {
+        			if (! signal.isOnComplete() && observed.compareAndSet(false, true)) {
+        				long elapsed = System.nanoTime() - start;
+        				if (signal.isOnNext() || signal.getError() instanceof HttpClientResponseException) {
+        					metrics.upstreamHeadersReceived(elapsed);
+        				}
+        				// Retries and hedges are all part of the one call the circuit breaker let through
+        				if (breaker != null) breaker.onResult(elapsed, isFailure(signal));
+        				if (limiter != null) limiter.onResult(elapsed, isFailure(signal));
+        			} else if (signal.getError() instanceof TimeoutException) {
+        				// The body stalled after the headers, so the response is failed rather than answered with 502 below
+        				metrics.timedOut();
+        			}
+        		})
+        		.doFinally(() -> {
+        			if (observed.compareAndSet(false, true)) {
+        				if (breaker != null) breaker.onIgnored();
+        				if (limiter != null) limiter.onIgnored();
+        			}
+        		})
+        		.serialize();
         
-        try {
-			return futureResponse.get(config.get().getTimeoutMs(), TimeUnit.MILLISECONDS);
-		} catch (ExecutionException e) {
-			return HttpResponse.status(HttpStatus.INTERNAL_SERVER_ERROR, e.getMessage());
-		} catch (TimeoutException e) {
-			LOG.info("Timeout occurred before getting upstream headers (configured to {} millisecond(s)", config.get().getTimeoutMs());
-			return HttpResponse.status(HttpStatus.BAD_GATEWAY);
-		}
+        return buildResponse(config, upstreamResponseFlowable, upstreamResponse -> cache == null ? null : cache.startFill(request, upstreamResponse, () -> relayedHeaders(upstreamResponse, config)))
+        		.onErrorReturn(e -> {
+        			if (e instanceof TimeoutException) {
+        				metrics.timedOut();
+        				LOG.debug("Timeout occurred before getting upstream headers: {}", e.getMessage());
+        				return HttpResponse.status(HttpStatus.BAD_GATEWAY);
+        			}
+        			return HttpResponse.status(HttpStatus.INTERNAL_SERVER_ERROR, e.getMessage());
+        		});
     }
 
-	private CompletableFuture<HttpResponse<Flowable<byte[]>>> buildResponse(Optional<ProxyConfiguration> config,
-			Flowable<HttpResponse<ByteBuffer<?>>> upstreamResponseFlowable) {
-		CompletableFuture<HttpResponse<Flowable<byte[]>>> futureResponse = new CompletableFuture<>();
-        UnicastProcessor<byte[]> responseBodyFlowable = UnicastProcessor.create();
-        
-        upstreamResponseFlowable.subscribe(new Subscriber<HttpResponse<ByteBuffer<?>>>() {
+    /**
+     * A single exchange with one upstream, keeping its statistics, health and latency up to date.
+     */
+    private Flowable<HttpResponse<ByteBuffer<?>>> attempt(HttpRequest<ByteBuffer<?>> request, ProxyConfiguration config, String path,
+    		ProxyUpstream upstream, @Nullable ProxyRetryPolicy retryPolicy, ProxyRouteMetrics metrics) {
+        MutableHttpRequest<Object> upstreamRequest = buildRequest(request, config, path, upstream, metrics);
+        ProxyClientStatistics statistics = statisticsMap.get(config.getName());
+        LOG.debug("About to pivot proxy call to {}{}", upstream.getUri(), path);
+        long start = System.nanoTime();
+        AtomicBoolean observed = new AtomicBoolean();
+        return upstream.getClient().exchangeStream(upstreamRequest)
+        		.doOnSubscribe(s -> {
+        			statistics.exchangeStarted();
+        			upstream.exchangeStarted();
+        		})
+        		.doOnEach(signal -> {
+        			// The latency observed is the time to the headers, or to the failure
+        			if (! signal.isOnComplete() && observed.compareAndSet(false, true)) {
+        				long elapsed = System.nanoTime() - start;
+        				upstream.observeLatency(elapsed);
+        				upstream.observeOutcome(isFailure(signal));
+        				if (retryPolicy != null && signal.isOnNext()) retryPolicy.observeHeaderLatency(elapsed);
+        			}
+        		})
+        		.doFinally(() -> {
+        			statistics.exchangeEnded();
+        			upstream.exchangeEnded();
+        		});
+    }
 
-			private Subscription subscription;
+    /**
+     * A second attempt, sent if the first hasn't got its headers after the delay and the budget allows it.
+     * If it fails before getting its headers, the first attempt is left to answer on its own.
+     */
+    private Flowable<HttpResponse<ByteBuffer<?>>> hedge(HttpRequest<ByteBuffer<?>> request, ProxyConfiguration config, String path,
+    		ProxyUpstreamGroup group, ProxyRetryPolicy retryPolicy, ProxyRouteMetrics metrics, long delayNanos) {
+        return Flowable.timer(delayNanos, TimeUnit.NANOSECONDS).flatMap(t -> {
+        	ProxyUpstream upstream = group.select();
+        	if (upstream == null || ! retryPolicy.tryHedge()) {
+        		return Flowable.never();
+        	}
+        	LOG.debug("Hedging " + request.getMethod() + " " + request.getPath() + " after " + delayNanos + " ns");
+        	AtomicBoolean responding = new AtomicBoolean();
+        	return attempt(request, config, path, upstream, retryPolicy, metrics)
+        			.doOnNext(r -> responding.set(true))
+        			.onErrorResumeNext((Throwable e) -> responding.get() ? Flowable.error(e) : Flowable.never());
+        });
+    }
 
-			@Override
-			public void onSubscribe(Subscription s) {
-				this.subscription = s;
-				s.request(1);
-			}
+    private static ProxyResponseBody createResponseBody(ProxyConfiguration config, Runnable onCancel) {
+        return config.getBuffer()
+                .map(buffer -> new ProxyResponseBody(onCancel, buffer.getMaxBytes(), buffer.getMemoryBytes(),
+                        buffer.getSpoolDirectory() != null ? Paths.get(buffer.getSpoolDirectory()) : null))
+                .orElseGet(() -> new ProxyResponseBody(onCancel));
+    }
+
+    private static long nanos(Duration timeout) {
+        return timeout != null ? timeout.toNanos() : 0;
+    }
+
+    private static boolean isFailure(Notification<HttpResponse<ByteBuffer<?>>> signal) {
+        return signal.isOnNext() ? signal.getValue().getStatus().getCode() >= 500 : isUpstreamFailure(signal.getError());
+    }
 
-			@Override
-			public void onNext(HttpResponse<ByteBuffer<?>> upstreamResponse) {
-				if (LOG.isTraceEnabled()) {
-					LOG.trace("************ Read Response from {}", upstreamResponse.body().toString(StandardCharsets.UTF_8));
+	Single<MutableHttpResponse<?>> buildResponse(ProxyConfiguration config,
+			Flowable<HttpResponse<ByteBuffer<?>>> upstreamResponseFlowable,
+			Function<HttpResponse<?>, ProxyResponseCache.Fill> cacheFill) {
+		return Single.create(emitter -> {
+	        AtomicBoolean headersReceived = new AtomicBoolean();
+	        
+	        upstreamResponseFlowable.subscribe(new Subscriber<HttpResponse<ByteBuffer<?>>>() {
+
+				private Subscription subscription;
+				private final ProxyResponseBody responseBodyFlowable = createResponseBody(config, () -> {
+					subscription.cancel();
+					abortFill();
+				});
+				private volatile ProxyResponseCache.Fill fill;
+
+				@Override
+				public void onSubscribe(Subscription s) {
+					this.subscription = s;
+					// If nobody is waiting for the headers anymore (e.g. timeout), stop the upstream exchange
+					emitter.setCancellable(() -> {
+						if (! headersReceived.get()) s.cancel();
+					});
+					s.request(1);
 				}
-				// When the upstream first first packet comes in, complete the response
-				if (! futureResponse.isDone()) {
-					LOG.info("Completed pivot: " + upstreamResponse.getStatus());
-					HttpResponse response = makeResponse(upstreamResponse, responseBodyFlowable, config);
-					futureResponse.complete(response);
+
+				@Override
+				public void onNext(HttpResponse<ByteBuffer<?>> upstreamResponse) {
+					if (LOG.isTraceEnabled()) {
+						LOG.trace("************ Read Response from {}", upstreamResponse.body().toString(StandardCharsets.UTF_8));
+					}
+					// When the upstream first first packet comes in, complete the response
+					if (headersReceived.compareAndSet(false, true)) {
+						LOG.debug("Completed pivot: {}", upstreamResponse.getStatus());
+						fill = cacheFill.apply(upstreamResponse);
+						emitter.onSuccess(makeResponse(upstreamResponse, responseBodyFlowable, config));
+					}
+					if (fill != null) {
+						fill.append(upstreamResponse.body());
+					}
+					// Hand the buffer on as is, the downstream (or the body, if never consumed) releases it
+					responseBodyFlowable.onNext(upstreamResponse.body());
+					subscription.request(1);
 				}
-				ByteBuffer<?> byteBuffer = upstreamResponse.body();
-				responseBodyFlowable.onNext(byteBuffer.toByteArray());
-	        	if (byteBuffer instanceof ReferenceCounted) ((ReferenceCounted)byteBuffer).release();
-				subscription.request(1);
-			}
 
-			@Override
-			public void onError(Throwable t) {
-				if (t instanceof HttpClientResponseException && ! futureResponse.isDone()) {
-					HttpClientResponseException upstreamException = (HttpClientResponseException) t;
-					LOG.info("HTTP error from upstream: " + upstreamException.getStatus().getReason());
-			    	HttpResponse upstreamErrorResponse = upstreamException.getResponse();
-			    	HttpResponse<ByteBuffer<?>> upstreamResponse = (HttpResponse<ByteBuffer<?>>) upstreamException.getResponse();
-			    	
-					LOG.info("Completed pivot: " + upstreamResponse.getStatus());
-					HttpResponse response = makeErrorResponse(upstreamResponse, config);
-					futureResponse.complete((HttpResponse<Flowable<byte[]>>) response);
-				} else {
-					LOG.info("Proxy got unknown error from upstream: " + t.getMessage(), t);
-					responseBodyFlowable.onError(t);
+				@Override
+				public void onError(Throwable t) {
+					if (t instanceof HttpClientResponseException && headersReceived.compareAndSet(false, true)) {
+						HttpClientResponseException upstreamException = (HttpClientResponseException) t;
+						LOG.debug("HTTP error from upstream: {}", upstreamException.getStatus().getReason());
+				    	HttpResponse<ByteBuffer<?>> upstreamResponse = (HttpResponse<ByteBuffer<?>>) upstreamException.getResponse();
+				    	
+						LOG.debug("Completed pivot: {}", upstreamResponse.getStatus());
+						emitter.onSuccess(makeErrorResponse(upstreamResponse, config));
+					} else if (headersReceived.compareAndSet(false, true)) {
+						LOG.debug("Proxy got unknown error from upstream: " + t.getMessage(), t);
+						emitter.tryOnError(t);
+					} else {
+						LOG.debug("Proxy got unknown error from upstream: " + t.getMessage(), t);
+						abortFill();
+						responseBodyFlowable.onError(t);
+					}
 				}
-			}
 
-			@Override
-			public void onComplete() {
-				LOG.trace("Upstream response body done");
-				responseBodyFlowable.onComplete();
-			}
+				private void abortFill() {
+					ProxyResponseCache.Fill f = fill;
+					if (f != null) {
+						f.abort();
+					}
+				}
+
+				@Override
+				public void onComplete() {
+					LOG.trace("Upstream response body done");
+					if (fill != null) {
+						fill.complete();
+					}
+					responseBodyFlowable.onComplete();
+				}
+			});
 		});
-		return futureResponse;
 	}
 
-	private MutableHttpRequest<Object> buildRequest(HttpRequest<ByteBuffer<?>> request, String path,
-			Optional<ProxyConfiguration> config) {
-		String originPath = config.get().getUri().getPath() + path;
+	private static boolean isUpstreamFailure(Throwable t) {
+		return ! (t instanceof HttpClientResponseException) || ((HttpClientResponseException) t).getStatus().getCode() >= 500;
+	}
+
+	MutableHttpRequest<Object> buildRequest(HttpRequest<ByteBuffer<?>> request, ProxyConfiguration config, String path,
+			ProxyUpstream upstream, ProxyRouteMetrics metrics) {
+		String originPath = upstream.getUri().getPath() + path;
         String queryPart = request.getUri().getQuery();
         String originUri = StringUtils.isEmpty(queryPart) ? originPath : (originPath + "?" + queryPart);
         LOG.debug("Proxy'ing incoming " + request.getMethod() + " " + request.getPath() + " -> " + originPath);
         MutableHttpRequest<Object> upstreamRequest = SimpleHttpRequestFactory.INSTANCE.create(request.getMethod(),
                 originUri);
+        copyHeaders(request.getHeaders(), upstreamRequest.getHeaders()::add, UPSTREAM_REQUEST_HEADERS, config::shouldIncludeRequestHeader);
+        addForwardedHeaders(request, upstreamRequest.getHeaders());
 
-        Optional<?> body = request.getBody();
         if (HttpMethod.permitsRequestBody(request.getMethod())) {
-            body.ifPresent((Object b) -> upstreamRequest.body(b));
+            request.getContentType().ifPresent(upstreamRequest::contentType);
+            Optional<Flowable<ByteBuf>> streamedBody = findStreamedBody(request);
+            if (streamedBody.isPresent()) {
+                upstreamRequest.body(streamedBody.get().doOnNext(content -> metrics.received(content.readableBytes())));
+            } else {
+                if (request.getContentLength() > 0) {
+                    metrics.received(request.getContentLength());
+                }
+                request.getBody().ifPresent((Object b) -> upstreamRequest.body(b));
+            }
         }
 		return upstreamRequest;
 	}
 
-	protected HttpResponse makeResponse(HttpResponse<?> upstreamResponse,
-    		Flowable<byte[]> responseFlowable,
-			Optional<ProxyConfiguration> config) {
-		MutableHttpResponse<Flowable<byte[]>> httpResponse = SimpleHttpResponseFactory.INSTANCE.status(upstreamResponse.getStatus(), responseFlowable);
+	/**
+	 * Copies the end-to-end headers allowed by the configuration, walking Netty's own header entries
+	 * when possible, so the names are matched without allocating.
+	 */
+	private static void copyHeaders(io.micronaut.http.HttpHeaders source, BiConsumer<CharSequence, CharSequence> target, ProxyHeaderNames skipped, Predicate<CharSequence> included) {
+		String connection = source.get(HttpHeaders.CONNECTION);
+		if (source instanceof NettyHttpHeaders) {
+			Iterator<Map.Entry<CharSequence, CharSequence>> entries = ((NettyHttpHeaders) source).getNettyHeaders().iteratorCharSequence();
+			while (entries.hasNext()) {
+				Map.Entry<CharSequence, CharSequence> header = entries.next();
+				if (isForwarded(header.getKey(), connection, skipped, included)) {
+					target.accept(header.getKey(), header.getValue());
+				}
+			}
+		} else {
+			for (String name : source.names()) {
+				if (isForwarded(name, connection, skipped, included)) {
+					for (String value : source.getAll(name)) {
+						target.accept(name, value);
+					}
+				}
+			}
+		}
+	}
+
+	private static boolean isForwarded(CharSequence name, @Nullable String connection, ProxyHeaderNames skipped, Predicate<CharSequence> included) {
+		return ! HOP_BY_HOP.contains(name)
+				&& ! skipped.contains(name)
+				// Connection also lists the headers that are hop-by-hop for this connection only
+				&& (connection == null || ! ProxyHeaderNames.listContains(connection, name))
+				&& included.test(name);
+	}
+
+	static String clientAddress(HttpRequest<?> request) {
+		InetSocketAddress remoteAddress = request.getRemoteAddress();
+		return remoteAddress.getAddress() != null ? remoteAddress.getAddress().getHostAddress() : remoteAddress.getHostString();
+	}
+
+	/**
+	 * Tells the upstream who the original client is, extending what any proxies in front of this one have said.
+	 */
+	private static void addForwardedHeaders(HttpRequest<?> request, MutableHttpHeaders target) {
+		io.micronaut.http.HttpHeaders headers = request.getHeaders();
+		String client = clientAddress(request);
+		String forwardedFor = headers.get(X_FORWARDED_FOR);
+		target.add(X_FORWARDED_FOR, forwardedFor != null ? forwardedFor + ", " + client : client);
+		String forwardedProto = headers.get(X_FORWARDED_PROTO);
+		target.add(X_FORWARDED_PROTO, forwardedProto != null ? forwardedProto : request.isSecure() ? "https" : "http");
+		String forwardedHost = headers.get(X_FORWARDED_HOST);
+		if (forwardedHost == null) {
+			forwardedHost = headers.get(HttpHeaders.HOST);
+		}
+		if (forwardedHost != null) {
+			target.add(X_FORWARDED_HOST, forwardedHost);
+		}
+	}
+
+	/**
+	 * Finds the incoming body as the chunks Netty receives them, if it hasn't been aggregated.
+	 * The upstream client writes each chunk as it is requested, so only a few chunks are held
+	 * in memory at any time, regardless of the size of the upload. 
+	 */
+	private Optional<Flowable<ByteBuf>> findStreamedBody(HttpRequest<?> request) {
+		if (request instanceof NettyHttpRequest) {
+			io.netty.handler.codec.http.HttpRequest nativeRequest = ((NettyHttpRequest<?>) request).getNativeRequest();
+			if (nativeRequest instanceof StreamedHttpRequest) {
+				return Optional.of(Flowable.fromPublisher((StreamedHttpRequest) nativeRequest).map(HttpContent::content));
+			}
+		}
+		return Optional.empty();
+	}
+
+	protected MutableHttpResponse<?> makeResponse(HttpResponse<?> upstreamResponse,
+    		Flowable<ByteBuffer<?>> responseFlowable,
+			ProxyConfiguration config) {
+		MutableHttpResponse<Flowable<ByteBuffer<?>>> httpResponse = HttpResponse.<Flowable<ByteBuffer<?>>>status(upstreamResponse.getStatus()).body(responseFlowable);
 		upstreamResponse.getContentType().ifPresent(mediaType -> httpResponse.contentType(mediaType));
+		copyHeaders(upstreamResponse.getHeaders(), httpResponse.getHeaders()::add, BODY_RESPONSE_HEADERS, config::shouldIncludeResponseHeader);
+		if (upstreamResponse.getContentLength() >= 0) {
+			httpResponse.setAttribute(ProxyCompression.CONTENT_LENGTH, upstreamResponse.getContentLength());
+		}
 		return httpResponse;
 	}
 
-	protected HttpResponse makeErrorResponse(HttpResponse<?> upstreamResponse,
-			Optional<ProxyConfiguration> config) {
-		MutableHttpResponse<Flowable<byte[]>> httpResponse = SimpleHttpResponseFactory.INSTANCE.status(upstreamResponse.getStatus(), Flowable.empty());
+	protected MutableHttpResponse<?> makeErrorResponse(HttpResponse<?> upstreamResponse,
+			ProxyConfiguration config) {
+		MutableHttpResponse<Flowable<ByteBuffer<?>>> httpResponse = HttpResponse.<Flowable<ByteBuffer<?>>>status(upstreamResponse.getStatus()).body(Flowable.empty());
 		upstreamResponse.getContentType().ifPresent(mediaType -> httpResponse.contentType(mediaType));
+		copyHeaders(upstreamResponse.getHeaders(), httpResponse.getHeaders()::add, BODY_RESPONSE_HEADERS, config::shouldIncludeResponseHeader);
 		return httpResponse;
 	}
 
 
-	private RxStreamingHttpClient findOrCreateClient(ProxyConfiguration config) {
+	/**
+	 * @return The headers of the upstream response that are relayed, in name and value pairs, to keep with a cached body
+	 */
+	private static String[] relayedHeaders(HttpResponse<?> upstreamResponse, ProxyConfiguration config) {
+		List<String> headers = new ArrayList<>();
+		copyHeaders(upstreamResponse.getHeaders(), (name, value) -> {
+			headers.add(name.toString());
+			headers.add(value.toString());
+		}, BODY_RESPONSE_HEADERS, config::shouldIncludeResponseHeader);
+		return headers.toArray(new String[0]);
+	}
+
+	protected MutableHttpResponse<?> makeCachedResponse(ProxyResponseCache.Entry cached,
+			ProxyConfiguration config) {
+		MutableHttpResponse<Flowable<ByteBuffer<?>>> httpResponse = HttpResponse.<Flowable<ByteBuffer<?>>>status(HttpStatus.OK)
+				.body(cached.body());
+		if (cached.contentType != null) {
+			httpResponse.contentType(cached.contentType);
+		}
+		// The headers the response was relayed with when stored, including its Content-Encoding
+		MutableHttpHeaders headers = httpResponse.getHeaders();
+		for (int i = 0; i < cached.headers.length; i += 2) {
+			if (! HttpHeaders.AGE.equalsIgnoreCase(cached.headers[i])) {
+				headers.add(cached.headers[i], cached.headers[i + 1]);
+			}
+		}
+		if (cached.length() >= 0) {
+			httpResponse.setAttribute(ProxyCompression.CONTENT_LENGTH, cached.length());
+		}
+		httpResponse.header(HttpHeaders.AGE, Long.toString(cached.getAgeSeconds()));
+		return httpResponse;
+	}
+
+	private ProxyUpstreamGroup findOrCreateUpstreams(ProxyConfiguration config) {
         return proxyMap.computeIfAbsent(config.getName(), n -> {
-            LOG.debug("Creating proxy for " + config.getUrl());
-            return beanContext.createBean(RxStreamingHttpClient.class, config.getUrl());
+            Optional<ProxyClientConfiguration> clientConfig = clientConfiguration(config);
+            List<URI> uris = config.getUris();
+            List<ProxyUpstream> upstreams = new ArrayList<>(uris.size());
+            for (URI uri : uris) {
+                LOG.debug("Creating proxy for " + uri);
+                upstreams.add(new ProxyUpstream(uri, createClient(uri, clientConfig, dnsMap.get(n)), config.getHealth()));
+            }
+            statisticsMap.put(n, new ProxyClientStatistics(n, clientConfig.map(c -> c.getConnectionPoolConfiguration()).orElse(null), upstreams));
+            return new ProxyUpstreamGroup(upstreams, ProxyLoadBalancer.forName(config.getBalancer()), config.getHealth());
         });
     }
 
-    private Optional<ProxyConfiguration> findConfigForRequest(String prefix) {
-        return configs.stream().filter(config -> config.getContext().equals(prefix)).findFirst();
+    /**
+     * The {@code connect} timeout of the {@code timeouts} section applies to the client, whether it has a section of its own or not
+     */
+    private static Optional<ProxyClientConfiguration> clientConfiguration(ProxyConfiguration config) {
+        Duration connect = config.getTimeouts().getConnect();
+        if (connect == null) {
+            return config.getClient();
+        }
+        ProxyClientConfiguration clientConfig = config.getClient().orElseGet(ProxyClientConfiguration::new);
+        clientConfig.setConnectTimeout(connect);
+        return Optional.of(clientConfig);
+    }
+
+    private RxStreamingHttpClient createClient(URI uri, Optional<ProxyClientConfiguration> clientConfig, @Nullable ProxyDnsCache dns) {
+        URL url;
+        try {
+            url = uri.toURL();
+        } catch (MalformedURLException e) {
+            throw new ConfigurationException("Invalid upstream URI " + uri + ": " + e.getMessage(), e);
+        }
+        if (dns != null) {
+            HttpClientConfiguration configuration = clientConfig.isPresent() ? clientConfig.get() : beanContext.getBean(DefaultHttpClientConfiguration.class);
+            return new ProxyHttpClient(url, configuration, beanContext.getBean(NettyClientSslBuilder.class),
+                    beanContext.getBean(MediaTypeCodecRegistry.class), dns);
+        }
+        if (clientConfig.isPresent()) {
+            return beanContext.createBean(RxStreamingHttpClient.class, url, clientConfig.get());
+        }
+        return beanContext.createBean(RxStreamingHttpClient.class, url);
+    }
+
+    /**
+     * @return The response caches of the routes that have caching enabled, by configuration name
+     */
+    public Map<String, ProxyResponseCache> getResponseCaches() {
+        return Collections.unmodifiableMap(cacheMap);
+    }
+
+    /**
+     * @return The request coalescers of the routes that have coalescing enabled, by configuration name
+     */
+    public Map<String, ProxyCoalescer> getCoalescers() {
+        return Collections.unmodifiableMap(coalescerMap);
+    }
+
+    /**
+     * @return The rate limiters of the routes that have one, by configuration name
+     */
+    public Map<String, ProxyRateLimiter> getRateLimiters() {
+        return Collections.unmodifiableMap(limiterMap);
+    }
+
+    /**
+     * Warms up the routes that have a {@code warmup} section, all at once, and then reports the proxy
+     * as ready. Only the first call starts the warm-ups, later calls return the same result.
+     *
+     * @return Completes when the proxy is ready
+     */
+    public synchronized Completable warmUp() {
+        if (warmup == null) {
+            List<Completable> warmups = new ArrayList<>();
+            for (ProxyConfiguration config : configs) {
+                ProxyWarmup routeWarmup = warmupMap.get(config.getName());
+                if (routeWarmup != null) {
+                    String path = config.getWarmup().get().getPath();
+                    warmups.add(Completable.defer(() -> routeWarmup.run(findOrCreateUpstreams(config).getUpstreams(),
+                            () -> serve((HttpRequest<ByteBuffer<?>>) (HttpRequest<?>) SimpleHttpRequestFactory.INSTANCE.create(HttpMethod.GET, config.getContext() + path),
+                                    config, path))));
+                }
+            }
+            warmup = Completable.merge(warmups)
+                    .doOnComplete(() -> {
+                        ready = true;
+                        beanContext.publishEvent(new ProxyReadyEvent(this));
+                    })
+                    .cache();
+            warmup.subscribe(() -> {}, e -> LOG.error("Warm-up failed: " + e.getMessage(), e));
+        }
+        return warmup;
+    }
+
+    /**
+     * @return Whether the proxy is ready for traffic, i.e. the warm-ups of all its routes are over
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * @return The warm-ups of the routes that have one, by configuration name
+     */
+    public Map<String, ProxyWarmup> getWarmups() {
+        return Collections.unmodifiableMap(warmupMap);
+    }
+
+    /**
+     * @return The address caches of the routes that have one, by configuration name
+     */
+    public Map<String, ProxyDnsCache> getDnsCaches() {
+        return Collections.unmodifiableMap(dnsMap);
+    }
+
+    /**
+     * @return The access logs of the routes that have one, by configuration name
+     */
+    public Map<String, ProxyAccessLog> getAccessLogs() {
+        return Collections.unmodifiableMap(accessLogMap);
+    }
+
+    /**
+     * @return The adaptive concurrency limiters of the routes that have one, by configuration name
+     */
+    public Map<String, ProxyConcurrencyLimiter> getConcurrencyLimiters() {
+        return Collections.unmodifiableMap(concurrencyMap);
+    }
+
+    /**
+     * @return The circuit breakers of the routes that have one, by configuration name
+     */
+    public Map<String, ProxyCircuitBreaker> getCircuitBreakers() {
+        return Collections.unmodifiableMap(breakerMap);
+    }
+
+    /**
+     * @return The retry policies of the routes that retry or hedge requests, by configuration name
+     */
+    public Map<String, ProxyRetryPolicy> getRetryPolicies() {
+        return Collections.unmodifiableMap(retryMap);
+    }
+
+    /**
+     * @return The traffic metrics of every route, by configuration name
+     */
+    public Map<String, ProxyRouteMetrics> getRouteMetrics() {
+        return Collections.unmodifiableMap(metricsMap);
+    }
+
+    /**
+     * @param name The name of a proxy configuration
+     * @return The upstream instances of the configuration, once its first request has been served
+     */
+    public List<ProxyUpstream> getUpstreams(String name) {
+        ProxyUpstreamGroup group = proxyMap.get(name);
+        return group != null ? group.getUpstreams() : Collections.emptyList();
+    }
+
+    /**
+     * @return The occupancy of the upstream clients created so far, by configuration name
+     */
+    public Map<String, ProxyClientStatistics> getClientStatistics() {
+        return Collections.unmodifiableMap(statisticsMap);
     }
 
     @Override
+    @PreDestroy
     public void close() throws IOException {
-        proxyMap.values().forEach(client -> client.stop());
+        proxyMap.values().forEach(ProxyUpstreamGroup::close);
         proxyMap.clear();
+        new HashSet<>(accessLogMap.values()).forEach(ProxyAccessLog::close);
+        timeouts.close();
+        statisticsMap.clear();
     }
 }
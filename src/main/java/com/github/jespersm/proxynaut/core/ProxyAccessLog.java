@@ -0,0 +1,257 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jespersm.proxynaut.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.reactivestreams.Publisher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.micronaut.core.io.buffer.ByteBuffer;
+import io.micronaut.http.HttpRequest;
+import io.micronaut.http.MutableHttpResponse;
+import io.reactivex.Flowable;
+
+/**
+ * An access log file, written in batches by a background thread.
+ *
+ * Requests are recorded into a preallocated ring of slots, with an array per field, so logging a
+ * request takes a sequence number and a few stores, but no formatting, locking or I/O on the request
+ * path. Should the writer fall a whole ring behind, requests aren't logged until it catches up, and
+ * are counted as dropped instead.
+ */
+public class ProxyAccessLog implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ProxyAccessLog.class);
+
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final int BATCH_CHARS = 64 * 1024;
+
+    private final Path file;
+    private final boolean json;
+    private final int mask;
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLongArray published;
+    private final long[] times;
+    private final long[] durations;
+    private final long[] bytes;
+    private final int[] statuses;
+    private final String[] routes;
+    private final String[] clients;
+    private final String[] methods;
+    private final String[] paths;
+    private final LongAdder logged = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+
+    private volatile long consumed;
+    private volatile boolean closed;
+
+    ProxyAccessLog(ProxyAccessLogConfiguration config) {
+        this.file = Paths.get(config.getFile());
+        this.json = ProxyAccessLogConfiguration.FORMAT_JSON.equals(config.getFormat());
+        int capacity = Integer.highestOneBit(Math.max(2, config.getBufferSize() - 1)) << 1;
+        this.mask = capacity - 1;
+        this.published = new AtomicLongArray(capacity);
+        this.times = new long[capacity];
+        this.durations = new long[capacity];
+        this.bytes = new long[capacity];
+        this.statuses = new int[capacity];
+        this.routes = new String[capacity];
+        this.clients = new String[capacity];
+        this.methods = new String[capacity];
+        this.paths = new String[capacity];
+        this.writer = new Thread(this::write, "proxynaut-access-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * @return The file requests are logged to
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * @return The number of requests logged
+     */
+    public long getLogged() {
+        return logged.sum();
+    }
+
+    /**
+     * @return The number of requests not logged, because the writer was too far behind
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Logs the request once its response body has been relayed, or right away if there is no body to stream,
+     * unless it isn't sampled.
+     */
+    MutableHttpResponse<?> logging(String route, double sampleRate, HttpRequest<?> request, MutableHttpResponse<?> response, long start) {
+        int status = response.getStatus().getCode();
+        if (status < 500 && sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return response;
+        }
+        String client = Proxy.clientAddress(request);
+        String method = request.getMethod().name();
+        String path = request.getPath();
+        Object body = response.body();
+        if (body instanceof Publisher) {
+            long[] sent = {0};
+            ((MutableHttpResponse<Object>) response).body(Flowable.fromPublisher((Publisher<ByteBuffer<?>>) body)
+                    .doOnNext(buffer -> sent[0] += buffer.readableBytes())
+                    .doFinally(() -> record(route, client, method, path, status, sent[0], System.nanoTime() - start)));
+        } else {
+            record(route, client, method, path, status, -1, System.nanoTime() - start);
+        }
+        return response;
+    }
+
+    void record(String route, String client, String method, String path, int status, long sent, long nanos) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed > mask) {
+                dropped.increment();
+                return;
+            }
+        } while (! claimed.compareAndSet(sequence, sequence + 1));
+        int slot = (int) sequence & mask;
+        times[slot] = System.currentTimeMillis();
+        durations[slot] = nanos;
+        bytes[slot] = sent;
+        statuses[slot] = status;
+        routes[slot] = route;
+        clients[slot] = client;
+        methods[slot] = method;
+        paths[slot] = path;
+        published.lazySet(slot, sequence + 1);
+    }
+
+    private void write() {
+        StringBuilder batch = new StringBuilder(BATCH_CHARS);
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            for (;;) {
+                long sequence = consumed;
+                int slot = (int) sequence & mask;
+                if (published.get(slot) == sequence + 1) {
+                    format(slot, batch);
+                    routes[slot] = clients[slot] = methods[slot] = paths[slot] = null;
+                    consumed = sequence + 1;
+                    logged.increment();
+                    if (batch.length() < BATCH_CHARS) {
+                        continue;
+                    }
+                }
+                if (batch.length() > 0) {
+                    out.append(batch);
+                    out.flush();
+                    batch.setLength(0);
+                } else if (closed) {
+                    return;
+                } else {
+                    LockSupport.parkNanos(this, IDLE_NANOS);
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("Unable to write access log {}: {}", file, e.getMessage());
+            // Everything recorded from now on is dropped
+            consumed = Long.MIN_VALUE / 2;
+        }
+    }
+
+    private void format(int slot, StringBuilder out) {
+        String time = Instant.ofEpochMilli(times[slot]).toString();
+        double millis = durations[slot] / 1_000_000.0;
+        if (json) {
+            out.append("{\"time\":\"").append(time)
+                    .append("\",\"route\":");
+            appendJson(out, routes[slot]);
+            out.append(",\"client\":");
+            appendJson(out, clients[slot]);
+            out.append(",\"method\":\"").append(methods[slot])
+                    .append("\",\"path\":");
+            appendJson(out, paths[slot]);
+            out.append(",\"status\":").append(statuses[slot]);
+            if (bytes[slot] >= 0) {
+                out.append(",\"bytes\":").append(bytes[slot]);
+            }
+            out.append(",\"ms\":").append(millis).append("}\n");
+        } else {
+            out.append(time).append(' ')
+                    .append(clients[slot]).append(' ')
+                    .append(routes[slot]).append(' ')
+                    .append(methods[slot]).append(' ')
+                    .append(paths[slot]).append(' ')
+                    .append(statuses[slot]).append(' ');
+            if (bytes[slot] >= 0) {
+                out.append(bytes[slot]);
+            } else {
+                out.append('-');
+            }
+            out.append(' ').append(millis).append('\n');
+        }
+    }
+
+    private static void appendJson(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+
+    /**
+     * Writes what has been recorded so far, and stops the writer.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jespersm.proxynaut.core;
+
+/**
+ * Settings for the access log of a proxied route, taken from the {@code accessLog} section of the
+ * route. The log is enabled by setting its file, e.g.:
+ *
+ * <pre>
+ * proxynaut:
+ *     api:
+ *         accessLog:
+ *             file: /var/log/proxynaut/access.log
+ *             format: json
+ *             sampleRate: 0.1
+ * </pre>
+ *
+ * Routes logging to the same file share its writer, which takes its format and buffer size from the
+ * first of them.
+ */
+public class ProxyAccessLogConfiguration {
+
+    public static final String FORMAT_LINE = "line";
+    public static final String FORMAT_JSON = "json";
+
+    private String file;
+    private String format = FORMAT_LINE;
+    private double sampleRate = 1.0;
+    private int bufferSize = 8192;
+
+    /**
+     * @return The file requests are logged to, or null if the access log is disabled
+     */
+    public String getFile() {
+        return file;
+    }
+
+    public void setFile(String file) {
+        this.file = file;
+    }
+
+    /**
+     * @return {@value #FORMAT_LINE} for a line of space separated fields per request, or {@value #FORMAT_JSON} for a JSON object per line
+     */
+    public String getFormat() {
+        return format;
+    }
+
+    public void setFormat(String format) {
+        if (! FORMAT_LINE.equals(format) && ! FORMAT_JSON.equals(format)) {
+            throw new IllegalArgumentException("Unknown access log format: " + format);
+        }
+        this.format = format;
+    }
+
+    /**
+     * @return The fraction of requests logged, between 0 and 1; server errors are always logged
+     */
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    public void setSampleRate(double sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * @return The number of requests held for the writer, beyond which further requests aren't logged until it catches up
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.jespersm.proxynaut.core;
+
+/**
+ * Settings for buffering the response bodies of a proxied route, taken from the {@code buffer}
+ * section of the route, e.g.:
+ *
+ * <pre>
+ * proxynaut:
+ *     api:
+ *         buffer:
+ *             maxBytes: 1073741824
+ *             memoryBytes: 1048576
+ *             spoolDirectory: /var/spool/proxynaut
+ * </pre>
+ *
+ * The upstream body is relayed as fast as the upstream delivers it, queueing what the client hasn't
+ * taken yet, so the upstream connection is released as soon as the upstream is done. A client that
+ * falls more than {@code maxBytes} behind is disconnected and the upstream exchange stopped, so the
+ * memory held for a response stays bounded however slowly the client reads. With a spool directory,
+ * only {@code memoryBytes} of that are kept in memory, and the rest in a temporary file.
+ * Routes without a {@code buffer} section queue in memory without limit.
+ */
+public class ProxyBufferConfiguration {
+
+    private long maxBytes = 16 * 1024 * 1024;
+    private long memoryBytes = 1024 * 1024;
+    private String spoolDirectory;
+
+    /**
+     * @return The number of bytes a client may fall behind the upstream before it is disconnected
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Buffer maxBytes must be positive: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return The number of bytes queued in memory for a client, before spooling the rest to disk
+     */
+    public long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    public void setMemoryBytes(long memoryBytes) {
+        this.memoryBytes = memoryBytes;
+    }
+
+    /**
+     * @return The directory bodies are spooled to, or null if they are only queued in memory
+     */
+    public String getSpoolDirectory() {
+        return spoolDirectory;
+    }
+
+    public void setSpoolDirectory(String spoolDirectory) {
+        this.spoolDirectory = spoolDirectory;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.jespersm.proxynaut.core;
+
+/**
+ * Settings for the response cache of a single proxied route, taken from the {@code cache}
+ * section of the route, e.g.:
+ *
+ * <pre>
+ * proxynaut:
+ *     catalog:
+ *         cache:
+ *             maxBytes: 67108864
+ *             maxEntryBytes: 1048576
+ * </pre>
+ */
+public class ProxyCacheConfiguration {
+
+    private long maxBytes = 64L * 1024 * 1024;
+    private long maxEntryBytes = 1024L * 1024;
+    private final ProxyDiskCacheConfiguration disk = new ProxyDiskCacheConfiguration();
+
+    /**
+     * @return The total size of the cached response bodies, beyond which the least recently used are evicted
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return The size of the largest response body that is cached in memory, larger ones go to the disk tier, if enabled
+     */
+    public long getMaxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    public void setMaxEntryBytes(long maxEntryBytes) {
+        this.maxEntryBytes = maxEntryBytes;
+    }
+
+    /**
+     * @return The settings of the disk tier, bound from the {@code disk} section
+     */
+    public ProxyDiskCacheConfiguration getDisk() {
+        return disk;
+    }
+}
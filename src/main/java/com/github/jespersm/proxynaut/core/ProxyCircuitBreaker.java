@@ -0,0 +1,218 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.jespersm.proxynaut.core;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The circuit breaker of a single proxied route.
+ *
+ * While closed, the outcomes of the most recent exchanges are kept in a sliding window, and the circuit
+ * opens when the rate of failed or slow exchanges in it crosses its threshold. While open, requests are
+ * rejected without touching the upstream. After a while, the circuit goes half-open and lets a few trial
+ * exchanges through, which decide whether it closes or opens again.
+ */
+public class ProxyCircuitBreaker {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ProxyCircuitBreaker.class);
+
+    private static final byte FAILED = 1;
+    private static final byte SLOW = 2;
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final String name;
+    private final ProxyCircuitBreakerConfiguration config;
+    private final long slowCallNanos;
+    private final Consumer<ProxyCircuitBreakerEvent> listener;
+    private final LongAdder rejected = new LongAdder();
+
+    private volatile State state = State.CLOSED;
+
+    // Guarded by this
+    private final byte[] window;
+    private int next;
+    private int calls;
+    private int failures;
+    private int slowCalls;
+    private long openUntil;
+    private int trialPermits;
+    private int trialCalls;
+    private int trialFailures;
+    private int trialSlowCalls;
+
+    ProxyCircuitBreaker(String name, ProxyCircuitBreakerConfiguration config, Consumer<ProxyCircuitBreakerEvent> listener) {
+        this.name = name;
+        this.config = config;
+        this.slowCallNanos = config.getSlowCallDuration().toNanos();
+        this.listener = listener;
+        this.window = new byte[Math.max(1, config.getWindowSize())];
+    }
+
+    /**
+     * @return Whether an exchange may be started; if so, its outcome must be reported to
+     * {@link #onResult(long, boolean)} or {@link #onIgnored()}
+     */
+    boolean tryAcquire() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        ProxyCircuitBreakerEvent event = null;
+        boolean acquired;
+        synchronized (this) {
+            if (state == State.OPEN && System.nanoTime() - openUntil >= 0) {
+                event = transition(State.HALF_OPEN);
+            }
+            if (state == State.HALF_OPEN && trialPermits > 0) {
+                trialPermits--;
+                acquired = true;
+            } else {
+                acquired = state == State.CLOSED;
+            }
+        }
+        publish(event);
+        if (! acquired) {
+            rejected.increment();
+        }
+        return acquired;
+    }
+
+    /**
+     * Records the outcome of an exchange.
+     *
+     * @param nanos The time it took to get the upstream headers, or to fail
+     * @param failed Whether the exchange failed
+     */
+    void onResult(long nanos, boolean failed) {
+        byte outcome = (byte) ((failed ? FAILED : 0) | (nanos >= slowCallNanos ? SLOW : 0));
+        ProxyCircuitBreakerEvent event = null;
+        synchronized (this) {
+            if (state == State.CLOSED) {
+                byte evicted = window[next];
+                if (calls == window.length) {
+                    failures -= evicted & FAILED;
+                    slowCalls -= (evicted & SLOW) >> 1;
+                } else {
+                    calls++;
+                }
+                window[next] = outcome;
+                next = (next + 1) % window.length;
+                failures += outcome & FAILED;
+                slowCalls += (outcome & SLOW) >> 1;
+                if (calls >= config.getMinimumCalls() && exceedsThresholds(calls, failures, slowCalls)) {
+                    event = transition(State.OPEN);
+                }
+            } else if (state == State.HALF_OPEN) {
+                trialCalls++;
+                trialFailures += outcome & FAILED;
+                trialSlowCalls += (outcome & SLOW) >> 1;
+                if (exceedsThresholds(trialCalls, trialFailures, trialSlowCalls)) {
+                    event = transition(State.OPEN);
+                } else if (trialCalls >= config.getHalfOpenCalls()) {
+                    event = transition(State.CLOSED);
+                }
+            }
+        }
+        publish(event);
+    }
+
+    /**
+     * Gives back a permit for an exchange that ended without an outcome, e.g. because the client went away.
+     */
+    synchronized void onIgnored() {
+        if (state == State.HALF_OPEN) {
+            trialPermits++;
+        }
+    }
+
+    private boolean exceedsThresholds(int calls, int failures, int slowCalls) {
+        return failures * 100.0f >= config.getFailureRateThreshold() * calls
+                || slowCalls * 100.0f >= config.getSlowCallRateThreshold() * calls;
+    }
+
+    private ProxyCircuitBreakerEvent transition(State to) {
+        State from = state;
+        state = to;
+        switch (to) {
+            case OPEN:
+                openUntil = System.nanoTime() + config.getOpenDuration().toNanos();
+                break;
+            case HALF_OPEN:
+                trialPermits = config.getHalfOpenCalls();
+                trialCalls = 0;
+                trialFailures = 0;
+                trialSlowCalls = 0;
+                break;
+            case CLOSED:
+                calls = 0;
+                failures = 0;
+                slowCalls = 0;
+                next = 0;
+                break;
+        }
+        return new ProxyCircuitBreakerEvent(this, from, to);
+    }
+
+    private void publish(ProxyCircuitBreakerEvent event) {
+        if (event != null) {
+            LOG.warn(event.toString());
+            listener.accept(event);
+        }
+    }
+
+    /**
+     * @return The name of the proxy configuration
+     */
+    public String getName() {
+        return name;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return The percentage of failed exchanges in the current window
+     */
+    public synchronized float getFailureRate() {
+        return calls == 0 ? 0.0f : failures * 100.0f / calls;
+    }
+
+    /**
+     * @return The percentage of slow exchanges in the current window
+     */
+    public synchronized float getSlowCallRate() {
+        return calls == 0 ? 0.0f : slowCalls * 100.0f / calls;
+    }
+
+    /**
+     * @return The number of requests rejected because the circuit wasn't closed
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + state + ", " + getFailureRate() + "% failed, " + getSlowCallRate() + "% slow, " + getRejected() + " rejected";
+    }
+}
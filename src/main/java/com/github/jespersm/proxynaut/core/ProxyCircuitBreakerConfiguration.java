@@ -0,0 +1,125 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.jespersm.proxynaut.core;
+
+import java.time.Duration;
+
+/**
+ * Settings for the circuit breaker of a proxied route, taken from the {@code circuitBreaker}
+ * section of the route, e.g.:
+ *
+ * <pre>
+ * proxynaut:
+ *     api:
+ *         circuitBreaker:
+ *             windowSize: 100
+ *             minimumCalls: 20
+ *             failureRateThreshold: 50
+ *             slowCallDuration: 5s
+ *             slowCallRateThreshold: 80
+ *             openDuration: 30s
+ *             halfOpenCalls: 5
+ * </pre>
+ */
+public class ProxyCircuitBreakerConfiguration {
+
+    private int windowSize = 100;
+    private int minimumCalls = 20;
+    private float failureRateThreshold = 50;
+    private Duration slowCallDuration = Duration.ofSeconds(10);
+    private float slowCallRateThreshold = 100;
+    private Duration openDuration = Duration.ofSeconds(30);
+    private int halfOpenCalls = 5;
+
+    /**
+     * @return The number of most recent exchanges the rates are computed over
+     */
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public void setWindowSize(int windowSize) {
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * @return The number of exchanges in the window before the circuit may open
+     */
+    public int getMinimumCalls() {
+        return minimumCalls;
+    }
+
+    public void setMinimumCalls(int minimumCalls) {
+        this.minimumCalls = minimumCalls;
+    }
+
+    /**
+     * @return The percentage of failed exchanges (5xx, connection errors, timeouts) that opens the circuit
+     */
+    public float getFailureRateThreshold() {
+        return failureRateThreshold;
+    }
+
+    public void setFailureRateThreshold(float failureRateThreshold) {
+        this.failureRateThreshold = failureRateThreshold;
+    }
+
+    /**
+     * @return The time to the upstream headers beyond which an exchange counts as slow
+     */
+    public Duration getSlowCallDuration() {
+        return slowCallDuration;
+    }
+
+    public void setSlowCallDuration(Duration slowCallDuration) {
+        this.slowCallDuration = slowCallDuration;
+    }
+
+    /**
+     * @return The percentage of slow exchanges that opens the circuit
+     */
+    public float getSlowCallRateThreshold() {
+        return slowCallRateThreshold;
+    }
+
+    public void setSlowCallRateThreshold(float slowCallRateThreshold) {
+        this.slowCallRateThreshold = slowCallRateThreshold;
+    }
+
+    /**
+     * @return The time the circuit stays open before letting trial exchanges through
+     */
+    public Duration getOpenDuration() {
+        return openDuration;
+    }
+
+    public void setOpenDuration(Duration openDuration) {
+        this.openDuration = openDuration;
+    }
+
+    /**
+     * @return The number of trial exchanges let through when half-open, deciding whether to close the circuit again
+     */
+    public int getHalfOpenCalls() {
+        return halfOpenCalls;
+    }
+
+    public void setHalfOpenCalls(int halfOpenCalls) {
+        this.halfOpenCalls = halfOpenCalls;
+    }
+}
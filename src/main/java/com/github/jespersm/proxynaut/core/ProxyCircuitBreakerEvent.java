@@ -0,0 +1,60 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.jespersm.proxynaut.core;
+
+import io.micronaut.context.event.ApplicationEvent;
+
+/**
+ * Published when the circuit breaker of a proxied route changes state.
+ */
+public class ProxyCircuitBreakerEvent extends ApplicationEvent {
+
+    private final ProxyCircuitBreaker.State from;
+    private final ProxyCircuitBreaker.State to;
+
+    ProxyCircuitBreakerEvent(ProxyCircuitBreaker breaker, ProxyCircuitBreaker.State from, ProxyCircuitBreaker.State to) {
+        super(breaker);
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    public ProxyCircuitBreaker getSource() {
+        return (ProxyCircuitBreaker) super.getSource();
+    }
+
+    /**
+     * @return The name of the proxy configuration
+     */
+    public String getName() {
+        return getSource().getName();
+    }
+
+    public ProxyCircuitBreaker.State getFrom() {
+        return from;
+    }
+
+    public ProxyCircuitBreaker.State getTo() {
+        return to;
+    }
+
+    @Override
+    public String toString() {
+        return "Circuit breaker of " + getName() + ": " + from + " -> " + to;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jespersm.proxynaut.core;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.micronaut.http.client.HttpClientConfiguration;
+import io.netty.channel.ChannelOption;
+
+/**
+ * Settings for the HTTP client towards the upstream of a single proxied route, taken from the
+ * {@code client} section of the route, e.g.:
+ *
+ * <pre>
+ * proxynaut:
+ *     blobstorage:
+ *         client:
+ *             connectTimeout: 2s
+ *             readIdleTimeout: 60s
+ *             keepAlive: true
+ *             numOfThreads: 4
+ *             pool:
+ *                 enabled: true
+ *                 maxConnections: 200
+ *                 maxPendingAcquires: 1000
+ *                 acquireTimeout: 5s
+ * </pre>
+ */
+public class ProxyClientConfiguration extends HttpClientConfiguration {
+
+    private final ConnectionPoolConfiguration pool = new ConnectionPoolConfiguration();
+
+    @Override
+    public ConnectionPoolConfiguration getConnectionPoolConfiguration() {
+        return pool;
+    }
+
+    /**
+     * @return The connection pool settings, bound from the {@code pool} section
+     */
+    public ConnectionPoolConfiguration getPool() {
+        return pool;
+    }
+
+    /**
+     * @param keepAlive Whether to enable TCP keep-alive on the upstream connections
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        Map<ChannelOption, Object> channelOptions = new HashMap<>(getChannelOptions());
+        channelOptions.put(ChannelOption.SO_KEEPALIVE, keepAlive);
+        setChannelOptions(Collections.unmodifiableMap(channelOptions));
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jespersm.proxynaut.core;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.micronaut.http.client.HttpClientConfiguration.ConnectionPoolConfiguration;
+
+/**
+ * Occupancy of the upstream client of a single proxied route. Each exchange in flight holds one
+ * upstream connection, from the request until the response body has been relayed.
+ *
+ * The pool itself isn't inspected: pending acquires and occupancy are estimated by comparing the
+ * exchanges in flight to each upstream with the size of that upstream's pool.
+ */
+public class ProxyClientStatistics {
+
+    private final String name;
+    private final int maxConnections;
+    private final int maxConnectionsPerUpstream;
+    private final List<ProxyUpstream> upstreams;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder exchanges = new LongAdder();
+
+    ProxyClientStatistics(String name, ConnectionPoolConfiguration pool, List<ProxyUpstream> upstreams) {
+        this.name = name;
+        this.upstreams = upstreams;
+        this.maxConnectionsPerUpstream = pool != null && pool.isEnabled() ? pool.getMaxConnections() : -1;
+        this.maxConnections = maxConnectionsPerUpstream < 0 ? -1 : maxConnectionsPerUpstream * upstreams.size();
+    }
+
+    void exchangeStarted() {
+        exchanges.increment();
+        inFlight.incrementAndGet();
+    }
+
+    void exchangeEnded() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * @return The name of the proxy configuration
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The configured maximum number of pooled connections, over all upstreams, or -1 if the client doesn't pool connections
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @return The number of exchanges currently using (or waiting for) an upstream connection
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return An estimate of the number of exchanges waiting for a pooled connection: the exchanges in flight to each upstream beyond the size of its pool
+     */
+    public int getEstimatedPendingAcquires() {
+        if (maxConnectionsPerUpstream < 0) {
+            return 0;
+        }
+        int pending = 0;
+        for (ProxyUpstream upstream : upstreams) {
+            pending += Math.max(0, upstream.getOutstanding() - maxConnectionsPerUpstream);
+        }
+        return pending;
+    }
+
+    /**
+     * @return An estimate of the fraction of the pooled connections in use, over all upstreams, or 0 if the client doesn't pool connections
+     */
+    public double getEstimatedOccupancy() {
+        if (maxConnections <= 0) {
+            return 0.0;
+        }
+        int inUse = 0;
+        for (ProxyUpstream upstream : upstreams) {
+            inUse += Math.min(upstream.getOutstanding(), maxConnectionsPerUpstream);
+        }
+        return inUse / (double) maxConnections;
+    }
+
+    /**
+     * @return The number of exchanges started since the client was created
+     */
+    public long getExchanges() {
+        return exchanges.sum();
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + getInFlight() + " in flight, " + getEstimatedPendingAcquires() + " pending (max " + maxConnections + "), " + getExchanges() + " exchanges";
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.jespersm.proxynaut.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import javax.annotation.Nullable;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import io.micronaut.buffer.netty.NettyByteBufferFactory;
+import io.micronaut.core.io.buffer.ByteBuffer;
+import io.micronaut.core.io.buffer.ReferenceCounted;
+import io.micronaut.http.HttpHeaders;
+import io.micronaut.http.HttpMethod;
+import io.micronaut.http.HttpRequest;
+import io.micronaut.http.HttpResponse;
+import io.micronaut.http.MutableHttpResponse;
+import io.netty.buffer.ByteBuf;
+import io.reactivex.Flowable;
+import io.reactivex.Single;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.subjects.SingleSubject;
+
+/**
+ * Coalesces identical concurrent {@code GET} and {@code HEAD} requests of a single proxied route into
+ * one upstream exchange, whose response is relayed to every request that joined it.
+ *
+ * Requests can join an exchange until its headers arrive. Each gets its own copy of the response and
+ * its own view of the body, sharing the upstream's buffers, so a slow client doesn't hold up the others.
+ * How far a client may fall behind is bounded by the route's {@code buffer} section, as for any response.
+ * Requests are identical if they have the same method, path, query and {@link #KEY_HEADERS key headers}.
+ * Range and conditional requests, whose responses depend on more than the resource, aren't coalesced.
+ *
+ * A response meant for a single client, one setting a cookie or marked {@code private} or {@code no-store},
+ * is only relayed to the first request of the exchange, and the others each get an exchange of their own.
+ */
+public class ProxyCoalescer {
+
+    /**
+     * The request headers that tell requests for the same resource apart.
+     */
+    static final String[] KEY_HEADERS = {
+            HttpHeaders.ACCEPT, HttpHeaders.ACCEPT_ENCODING, HttpHeaders.ACCEPT_LANGUAGE, HttpHeaders.AUTHORIZATION, HttpHeaders.COOKIE
+    };
+
+    /**
+     * The request headers that ask for part of a resource or for it on a condition, so the response doesn't fit other requests.
+     */
+    static final String[] UNCOALESCED_HEADERS = {
+            HttpHeaders.RANGE, HttpHeaders.IF_RANGE, HttpHeaders.IF_NONE_MATCH, HttpHeaders.IF_MODIFIED_SINCE,
+            HttpHeaders.IF_MATCH, HttpHeaders.IF_UNMODIFIED_SINCE
+    };
+
+    private final String name;
+    private final Function<Runnable, ProxyResponseBody> bodies;
+    private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<>();
+    private final LongAdder exchanges = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    ProxyCoalescer(String name) {
+        this(name, ProxyResponseBody::new);
+    }
+
+    /**
+     * @param bodies Creates the body of a participant's response, given what to do if its client goes away
+     */
+    ProxyCoalescer(String name, Function<Runnable, ProxyResponseBody> bodies) {
+        this.name = name;
+        this.bodies = bodies;
+    }
+
+    /**
+     * @return The key of the request, or null if it must not be coalesced
+     */
+    @Nullable
+    static String keyOf(HttpRequest<?> request) {
+        HttpMethod method = request.getMethod();
+        if (method != HttpMethod.GET && method != HttpMethod.HEAD) {
+            return null;
+        }
+        for (String header : UNCOALESCED_HEADERS) {
+            if (request.getHeaders().contains(header)) {
+                return null;
+            }
+        }
+        StringBuilder key = new StringBuilder(method.name()).append(' ').append(request.getUri());
+        for (String header : KEY_HEADERS) {
+            for (String value : request.getHeaders().getAll(header)) {
+                key.append('\n').append(header).append(':').append(value);
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Joins the exchange in flight for the key, or starts one using the given exchange if there is none.
+     */
+    Single<MutableHttpResponse<?>> join(String key, Supplier<Single<MutableHttpResponse<?>>> exchange) {
+        return Single.defer(() -> {
+            for (;;) {
+                Flight flight = flights.get(key);
+                if (flight == null) {
+                    Flight started = new Flight(key);
+                    if (flights.putIfAbsent(key, started) == null) {
+                        exchanges.increment();
+                        Single<MutableHttpResponse<?>> response = started.tryJoin();
+                        started.start(exchange);
+                        return response;
+                    }
+                } else {
+                    Single<MutableHttpResponse<?>> response = flight.tryJoin();
+                    if (response != null) {
+                        coalesced.increment();
+                        return response;
+                    }
+                    // Too late to join, the headers are in
+                    flights.remove(key, flight);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return The name of the proxy configuration
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The number of upstream exchanges started for coalescable requests
+     */
+    public long getExchanges() {
+        return exchanges.sum();
+    }
+
+    /**
+     * @return The number of requests that joined an exchange in flight instead of starting their own
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + getExchanges() + " exchanges, " + getCoalesced() + " coalesced";
+    }
+
+    private static ByteBuffer<?> share(ByteBuffer<?> buffer) {
+        Object nativeBuffer = buffer.asNativeBuffer();
+        if (nativeBuffer instanceof ByteBuf) {
+            return NettyByteBufferFactory.DEFAULT.wrap(((ByteBuf) nativeBuffer).retainedDuplicate());
+        }
+        return NettyByteBufferFactory.DEFAULT.wrap(buffer.toByteArray());
+    }
+
+    private static void release(ByteBuffer<?> buffer) {
+        if (buffer instanceof ReferenceCounted) ((ReferenceCounted)buffer).release();
+    }
+
+    /**
+     * A request waiting for, or relaying, the response of a shared exchange.
+     */
+    private static final class Participant {
+        final SingleSubject<MutableHttpResponse<?>> response = SingleSubject.create();
+        ProxyResponseBody body;
+        boolean left;
+        // The exchange of its own, if the shared response was meant for another client
+        volatile Disposable own;
+    }
+
+    /**
+     * An upstream exchange shared by the participants that joined it.
+     */
+    private final class Flight implements Subscriber<ByteBuffer<?>> {
+        private final String key;
+        private final List<Participant> participants = new ArrayList<>();
+        private boolean closed;
+        private Supplier<Single<MutableHttpResponse<?>>> exchangeSupplier;
+        private Disposable exchange;
+        private Subscription bodySubscription;
+
+        Flight(String key) {
+            this.key = key;
+        }
+
+        synchronized Single<MutableHttpResponse<?>> tryJoin() {
+            if (closed) {
+                return null;
+            }
+            Participant participant = new Participant();
+            participant.body = bodies.apply(() -> leave(participant));
+            participants.add(participant);
+            return participant.response.doOnDispose(() -> {
+                Disposable own = participant.own;
+                if (own != null) own.dispose();
+                else if (! participant.response.hasValue()) leave(participant);
+            });
+        }
+
+        void start(Supplier<Single<MutableHttpResponse<?>>> exchangeSupplier) {
+            this.exchangeSupplier = exchangeSupplier;
+            Disposable disposable = exchangeSupplier.get().subscribe(this::onResponse, this::onFailure);
+            synchronized (this) {
+                if (exchange == null) exchange = disposable;
+                if (participants.isEmpty()) disposable.dispose();
+            }
+        }
+
+        private void leave(Participant participant) {
+            Disposable toDispose = null;
+            Subscription toCancel = null;
+            synchronized (this) {
+                if (participant.left) {
+                    return;
+                }
+                participant.left = true;
+                participants.remove(participant);
+                if (participants.isEmpty()) {
+                    // Nobody is waiting for this exchange anymore
+                    closed = true;
+                    toDispose = exchange;
+                    toCancel = bodySubscription;
+                }
+            }
+            if (toDispose != null || toCancel != null) {
+                flights.remove(key, this);
+            }
+            if (toDispose != null) toDispose.dispose();
+            if (toCancel != null) toCancel.cancel();
+        }
+
+        private List<Participant> snapshot() {
+            synchronized (this) {
+                return new ArrayList<>(participants);
+            }
+        }
+
+        private void onResponse(MutableHttpResponse<?> upstreamResponse) {
+            synchronized (this) {
+                closed = true;
+            }
+            flights.remove(key, this);
+            List<Participant> sharing = snapshot();
+            if (sharing.size() > 1 && isPersonal(upstreamResponse)) {
+                List<Participant> others = new ArrayList<>(sharing.subList(1, sharing.size()));
+                sharing = sharing.subList(0, 1);
+                synchronized (this) {
+                    participants.removeAll(others);
+                    others.forEach(participant -> participant.left = true);
+                }
+                for (Participant participant : others) {
+                    coalesced.decrement();
+                    exchanges.increment();
+                    Disposable own = exchangeSupplier.get().subscribe(participant.response::onSuccess, participant.response::onError);
+                    participant.own = own;
+                    if (! participant.response.hasObservers() && ! participant.response.hasValue()) own.dispose();
+                }
+            }
+            Optional<?> body = upstreamResponse.getBody();
+            boolean streamed = body.isPresent() && body.get() instanceof Publisher;
+            for (Participant participant : sharing) {
+                MutableHttpResponse<Object> response = HttpResponse.status(upstreamResponse.getStatus(), upstreamResponse.reason());
+                upstreamResponse.getHeaders().forEachValue(response::header);
+                upstreamResponse.getAttribute(ProxyCompression.CONTENT_LENGTH).ifPresent(length -> response.setAttribute(ProxyCompression.CONTENT_LENGTH, length));
+                if (streamed) {
+                    response.body(participant.body);
+                } else {
+                    body.ifPresent(response::body);
+                }
+                participant.response.onSuccess(response);
+            }
+            if (streamed) {
+                Flowable.fromPublisher((Publisher<ByteBuffer<?>>) body.get()).subscribe(this);
+            }
+        }
+
+        private boolean isPersonal(HttpResponse<?> upstreamResponse) {
+            ProxyResponseCache.CacheControl control = ProxyResponseCache.CacheControl.parse(upstreamResponse.getHeaders());
+            return control.isPrivate || control.noStore || upstreamResponse.getHeaders().contains(HttpHeaders.SET_COOKIE);
+        }
+
+        private void onFailure(Throwable t) {
+            synchronized (this) {
+                closed = true;
+            }
+            flights.remove(key, this);
+            for (Participant participant : snapshot()) {
+                participant.response.onError(t);
+            }
+        }
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            boolean abandoned;
+            synchronized (this) {
+                bodySubscription = s;
+                abandoned = participants.isEmpty();
+            }
+            if (abandoned) {
+                s.cancel();
+            } else {
+                // Each participant's body queues what its client hasn't taken yet
+                s.request(Long.MAX_VALUE);
+            }
+        }
+
+        @Override
+        public void onNext(ByteBuffer<?> buffer) {
+            for (Participant participant : snapshot()) {
+                participant.body.onNext(share(buffer));
+            }
+            release(buffer);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            for (Participant participant : snapshot()) {
+                participant.body.onError(t);
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            for (Participant participant : snapshot()) {
+                participant.body.onComplete();
+            }
+        }
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.jespersm.proxynaut.core;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import javax.annotation.Nullable;
+
+import io.micronaut.buffer.netty.NettyByteBufferFactory;
+import io.micronaut.core.io.buffer.ByteBuffer;
+import io.micronaut.core.io.buffer.ReferenceCounted;
+import io.micronaut.http.HttpHeaders;
+import io.micronaut.http.HttpMethod;
+import io.micronaut.http.HttpRequest;
+import io.micronaut.http.MediaType;
+import io.micronaut.http.MutableHttpResponse;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.reactivex.Flowable;
+
+/**
+ * Compresses the responses of a single proxied route on the fly, as negotiated with each client.
+ * The body is deflated chunk by chunk, flushing after each, so the client gets every chunk as
+ * soon as the upstream sends it, just smaller.
+ */
+final class ProxyCompression {
+
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+
+    /** Attribute of a response holding the length of the uncompressed body, when it is known */
+    static final String CONTENT_LENGTH = "proxynaut.contentLength";
+
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+    private static final int OUTPUT_BYTES = 8192;
+
+    private final String[][] mimeTypes;
+    private final long minSize;
+    private final int level;
+
+    ProxyCompression(ProxyCompressionConfiguration config) {
+        List<String> types = config.getMimeTypes();
+        this.mimeTypes = new String[types.size()][];
+        for (int i = 0; i < mimeTypes.length; i++) {
+            String type = types.get(i).trim().toLowerCase(Locale.ENGLISH);
+            int slash = type.indexOf('/');
+            mimeTypes[i] = slash < 0 ? new String[] { type, "*" } : new String[] { type.substring(0, slash), type.substring(slash + 1) };
+        }
+        this.minSize = config.getMinSize();
+        this.level = config.getLevel();
+    }
+
+    /**
+     * Compresses the response body if the client accepts it and the response is worth compressing.
+     */
+    MutableHttpResponse<?> apply(HttpRequest<?> request, MutableHttpResponse<?> response) {
+        String encoding = negotiate(request, response);
+        if (encoding != null) {
+            Object body = response.body();
+            if (body instanceof Flowable) {
+                ((MutableHttpResponse<Object>) response).body(compress((Flowable<ByteBuffer<?>>) body, encoding, null));
+                encoded(response, encoding);
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Compresses a response from the cache, keeping the compressed body with the entry so the
+     * next client accepting the same encoding gets it without compressing it again.
+     */
+    MutableHttpResponse<?> applyCached(HttpRequest<?> request, MutableHttpResponse<?> response,
+            ProxyResponseCache cache, ProxyResponseCache.MemoryEntry entry) {
+        String encoding = negotiate(request, response);
+        if (encoding == null) {
+            return response;
+        }
+        byte[] compressed = entry.getCompressed(encoding);
+        Flowable<ByteBuffer<?>> body = compressed != null
+                ? Flowable.fromCallable(() -> NettyByteBufferFactory.DEFAULT.wrap(compressed))
+                : compress(entry.body(), encoding, bytes -> cache.storeCompressed(entry, encoding, bytes));
+        ((MutableHttpResponse<Object>) response).body(body);
+        encoded(response, encoding);
+        return response;
+    }
+
+    /**
+     * @return The encoding to compress the response with, or null if it is sent as is
+     */
+    @Nullable
+    String negotiate(HttpRequest<?> request, MutableHttpResponse<?> response) {
+        int status = response.getStatus().getCode();
+        if (status < 200 || status >= 300 || status == 204 || status == 206 || request.getMethod() == HttpMethod.HEAD) {
+            return null;
+        }
+        if (response.getHeaders().contains(HttpHeaders.CONTENT_ENCODING) || ! isCompressible(response.getContentType().orElse(null))) {
+            return null;
+        }
+        // The response differs by Accept-Encoding, whether or not this client gets it compressed
+        if (! variesByAcceptEncoding(response)) {
+            response.getHeaders().add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        }
+        Long length = response.getAttribute(CONTENT_LENGTH, Long.class).orElse(null);
+        if (length != null && length < minSize) {
+            return null;
+        }
+        String acceptEncoding = request.getHeaders().get(HttpHeaders.ACCEPT_ENCODING);
+        return acceptEncoding != null ? selectEncoding(acceptEncoding) : null;
+    }
+
+    private static boolean variesByAcceptEncoding(MutableHttpResponse<?> response) {
+        for (String vary : response.getHeaders().getAll(HttpHeaders.VARY)) {
+            if (ProxyHeaderNames.listContains(vary, HttpHeaders.ACCEPT_ENCODING) || ProxyHeaderNames.listContains(vary, "*")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean isCompressible(@Nullable MediaType contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.getType().toLowerCase(Locale.ENGLISH);
+        String subtype = contentType.getSubtype().toLowerCase(Locale.ENGLISH);
+        for (String[] mimeType : mimeTypes) {
+            if ((mimeType[0].equals("*") || mimeType[0].equals(type)) && subtypeMatches(mimeType[1], subtype)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean subtypeMatches(String pattern, String subtype) {
+        if (pattern.startsWith("*")) {
+            return subtype.endsWith(pattern.substring(1));
+        }
+        return pattern.equals(subtype);
+    }
+
+    /**
+     * Picks gzip or deflate by the quality values of an {@code Accept-Encoding} header, preferring gzip.
+     *
+     * @return The encoding, or null if the client accepts neither
+     */
+    @Nullable
+    static String selectEncoding(String acceptEncoding) {
+        double gzip = -1;
+        double deflate = -1;
+        double any = -1;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parameters = coding.split(";");
+            String name = parameters[0].trim().toLowerCase(Locale.ENGLISH);
+            double quality = 1;
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim();
+                if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            switch (name) {
+                case "gzip": case "x-gzip": gzip = quality; break;
+                case "deflate": deflate = quality; break;
+                case "*": any = quality; break;
+                default: break;
+            }
+        }
+        if (gzip < 0) gzip = any;
+        if (deflate < 0) deflate = any;
+        if (gzip > 0 && gzip >= deflate) {
+            return GZIP;
+        }
+        return deflate > 0 ? DEFLATE : null;
+    }
+
+    private static void encoded(MutableHttpResponse<?> response, String encoding) {
+        response.header(HttpHeaders.CONTENT_ENCODING, encoding);
+        response.getHeaders().remove(HttpHeaders.CONTENT_LENGTH);
+    }
+
+    /**
+     * @param body The uncompressed body, whose buffers are released as they are compressed
+     * @param whole If not null, is given the whole compressed body once it is complete
+     */
+    Flowable<ByteBuffer<?>> compress(Flowable<ByteBuffer<?>> body, String encoding, @Nullable Consumer<byte[]> whole) {
+        return Flowable.using(() -> new Encoder(encoding, level, whole != null),
+                encoder -> body.map(encoder::encode)
+                        .concatWith(Flowable.fromCallable(() -> {
+                            ByteBuf trailer = encoder.finish();
+                            byte[] compressed = encoder.collected();
+                            if (compressed != null) {
+                                whole.accept(compressed);
+                            }
+                            return NettyByteBufferFactory.DEFAULT.wrap(trailer);
+                        }))
+                        .filter(buffer -> {
+                            if (buffer.readableBytes() > 0) return true;
+                            release(buffer);
+                            return false;
+                        }),
+                Encoder::end);
+    }
+
+    private static void release(ByteBuffer<?> buffer) {
+        if (buffer instanceof ReferenceCounted) ((ReferenceCounted) buffer).release();
+    }
+
+    /**
+     * The deflater of a single response body. Its chunks are compressed one at a time.
+     */
+    private static final class Encoder {
+        private final Deflater deflater;
+        private final CRC32 crc;
+        private final byte[] output = new byte[OUTPUT_BYTES];
+        private byte[] input = new byte[OUTPUT_BYTES];
+        private boolean started;
+        private ByteBuf collected;
+        private boolean ended;
+
+        Encoder(String encoding, int level, boolean collect) {
+            boolean gzip = encoding.equals(GZIP);
+            this.deflater = new Deflater(level, gzip);
+            this.crc = gzip ? new CRC32() : null;
+            this.collected = collect ? ByteBufAllocator.DEFAULT.heapBuffer() : null;
+        }
+
+        // Synchronized, as a cancelled body may be ended while a chunk is being compressed
+        synchronized ByteBuffer<?> encode(ByteBuffer<?> chunk) {
+            int length = chunk.readableBytes();
+            if (input.length < length) {
+                input = new byte[Math.max(length, input.length * 2)];
+            }
+            try {
+                chunk.read(input, 0, length);
+            } finally {
+                release(chunk);
+            }
+            if (ended) {
+                return NettyByteBufferFactory.DEFAULT.wrap(Unpooled.EMPTY_BUFFER);
+            }
+            if (crc != null) {
+                crc.update(input, 0, length);
+            }
+            deflater.setInput(input, 0, length);
+            ByteBuf out = start();
+            int written;
+            do {
+                written = deflater.deflate(output, 0, output.length, Deflater.SYNC_FLUSH);
+                out.writeBytes(output, 0, written);
+            } while (written == output.length);
+            return emit(out);
+        }
+
+        synchronized ByteBuf finish() {
+            if (ended) {
+                return Unpooled.EMPTY_BUFFER;
+            }
+            ByteBuf out = start();
+            deflater.finish();
+            while (! deflater.finished()) {
+                out.writeBytes(output, 0, deflater.deflate(output));
+            }
+            if (crc != null) {
+                out.writeIntLE((int) crc.getValue());
+                out.writeIntLE((int) deflater.getBytesRead());
+            }
+            if (collected != null) {
+                collected.writeBytes(out, out.readerIndex(), out.readableBytes());
+            }
+            return out;
+        }
+
+        @Nullable
+        synchronized byte[] collected() {
+            if (collected == null) {
+                return null;
+            }
+            byte[] bytes = new byte[collected.readableBytes()];
+            collected.readBytes(bytes);
+            return bytes;
+        }
+
+        private ByteBuf start() {
+            ByteBuf out = ByteBufAllocator.DEFAULT.buffer();
+            if (! started) {
+                started = true;
+                if (crc != null) {
+                    out.writeBytes(GZIP_HEADER);
+                }
+            }
+            return out;
+        }
+
+        private ByteBuffer<?> emit(ByteBuf out) {
+            if (collected != null) {
+                collected.writeBytes(out, out.readerIndex(), out.readableBytes());
+            }
+            return NettyByteBufferFactory.DEFAULT.wrap(out);
+        }
+
+        synchronized void end() {
+            ended = true;
+            deflater.end();
+            if (collected != null) {
+                collected.release();
+                collected = null;
+            }
+        }
+    }
+}
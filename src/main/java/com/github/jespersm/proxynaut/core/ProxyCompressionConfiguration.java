@@ -0,0 +1,86 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.jespersm.proxynaut.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Settings for compressing the responses of a proxied route, taken from the {@code compression}
+ * section of the route, e.g.:
+ *
+ * <pre>
+ * proxynaut:
+ *     api:
+ *         compression:
+ *             mimeTypes: [ "text/*", "application/json" ]
+ *             minSize: 1024
+ *             level: 6
+ * </pre>
+ *
+ * Responses of the listed types are compressed with gzip or deflate as the client's
+ * {@code Accept-Encoding} allows, unless the upstream has already encoded them, or they are known
+ * to be smaller than the minimum size. A type may end in {@code *}, e.g. {@code text/*}, or
+ * start its subtype with it, e.g. {@code application/*+json}.
+ */
+public class ProxyCompressionConfiguration {
+
+    private List<String> mimeTypes = Collections.unmodifiableList(Arrays.asList(
+            "text/*", "application/json", "application/*+json", "application/javascript",
+            "application/xml", "application/*+xml", "image/svg+xml"));
+    private long minSize = 1024;
+    private int level = 6;
+
+    /**
+     * @return The media types that are compressed
+     */
+    public List<String> getMimeTypes() {
+        return mimeTypes;
+    }
+
+    public void setMimeTypes(List<String> mimeTypes) {
+        this.mimeTypes = Collections.unmodifiableList(new ArrayList<>(mimeTypes));
+    }
+
+    /**
+     * @return The size below which a response with a known length is sent as is
+     */
+    public long getMinSize() {
+        return minSize;
+    }
+
+    public void setMinSize(long minSize) {
+        this.minSize = minSize;
+    }
+
+    /**
+     * @return The compression level, from 1 (fastest) to 9 (smallest)
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    public void setLevel(int level) {
+        if (level < 1 || level > 9) {
+            throw new IllegalArgumentException("Compression level must be between 1 and 9: " + level);
+        }
+        this.level = level;
+    }
+}
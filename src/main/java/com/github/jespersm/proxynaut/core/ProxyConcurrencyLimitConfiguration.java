@@ -0,0 +1,123 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jespersm.proxynaut.core;
+
+import java.time.Duration;
+
+/**
+ * Settings for the adaptive concurrency limit of a proxied route, taken from the
+ * {@code concurrencyLimit} section of the route, e.g.:
+ *
+ * <pre>
+ * proxynaut:
+ *     api:
+ *         concurrencyLimit:
+ *             initialLimit: 20
+ *             minLimit: 4
+ *             maxLimit: 500
+ *             rttTolerance: 1.5
+ *             maxWait: 50ms
+ *             maxWaiting: 100
+ * </pre>
+ */
+public class ProxyConcurrencyLimitConfiguration {
+
+    private int initialLimit = 20;
+    private int minLimit = 1;
+    private int maxLimit = 200;
+    private double rttTolerance = 1.5;
+    private double smoothing = 0.2;
+    private Duration maxWait = Duration.ZERO;
+    private int maxWaiting = 100;
+
+    /**
+     * @return The number of concurrent exchanges allowed before any latency has been observed
+     */
+    public int getInitialLimit() {
+        return initialLimit;
+    }
+
+    public void setInitialLimit(int initialLimit) {
+        this.initialLimit = initialLimit;
+    }
+
+    /**
+     * @return The lowest the limit goes, however slow the upstream gets
+     */
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    public void setMinLimit(int minLimit) {
+        this.minLimit = Math.max(1, minLimit);
+    }
+
+    /**
+     * @return The highest the limit goes, however fast the upstream is
+     */
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    public void setMaxLimit(int maxLimit) {
+        this.maxLimit = maxLimit;
+    }
+
+    /**
+     * @return How many times the long-term latency the current latency may be before the limit is lowered
+     */
+    public double getRttTolerance() {
+        return rttTolerance;
+    }
+
+    public void setRttTolerance(double rttTolerance) {
+        this.rttTolerance = rttTolerance;
+    }
+
+    /**
+     * @return The weight of each new estimate of the limit, between 0 and 1
+     */
+    public double getSmoothing() {
+        return smoothing;
+    }
+
+    public void setSmoothing(double smoothing) {
+        this.smoothing = smoothing;
+    }
+
+    /**
+     * @return The time a request may wait for another exchange to finish when at the limit, or zero to shed it right away
+     */
+    public Duration getMaxWait() {
+        return maxWait;
+    }
+
+    public void setMaxWait(Duration maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * @return The number of requests that may wait at once, beyond which they are shed right away
+     */
+    public int getMaxWaiting() {
+        return maxWaiting;
+    }
+
+    public void setMaxWaiting(int maxWaiting) {
+        this.maxWaiting = maxWaiting;
+    }
+}
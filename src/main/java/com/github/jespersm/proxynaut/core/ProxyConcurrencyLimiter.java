@@ -0,0 +1,205 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jespersm.proxynaut.core;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.reactivex.Single;
+import io.reactivex.SingleEmitter;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * The adaptive concurrency limit of a single proxied route, capping the exchanges waiting for upstream
+ * headers at once. Requests beyond the limit wait briefly for an exchange to finish, if configured
+ * to, or are shed right away, rather than queueing up in front of an overloaded upstream.
+ *
+ * The limit follows the upstream's latency, as in the gradient algorithm: it grows while the latency
+ * of each exchange is within the tolerance of the long-term average, and shrinks in proportion as it
+ * climbs beyond it, or when exchanges fail. The long-term average slowly follows, so the limit
+ * settles where the upstream is busy but not yet queueing.
+ */
+public class ProxyConcurrencyLimiter {
+
+    private static final double LONG_WINDOW = 600;
+
+    private final String name;
+    private final ProxyConcurrencyLimitConfiguration config;
+    private final long maxWaitNanos;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final Queue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+    private final LongAdder rejected = new LongAdder();
+
+    private volatile int limit;
+
+    // Guarded by this
+    private double estimatedLimit;
+    private double longRtt;
+
+    ProxyConcurrencyLimiter(String name, ProxyConcurrencyLimitConfiguration config) {
+        this.name = name;
+        this.config = config;
+        this.maxWaitNanos = config.getMaxWait().toNanos();
+        this.estimatedLimit = Math.max(config.getMinLimit(), Math.min(config.getMaxLimit(), config.getInitialLimit()));
+        this.limit = (int) estimatedLimit;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The number of exchanges currently allowed at once
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return The number of exchanges currently waiting for upstream headers
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return The number of requests shed for exceeding the limit
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return Whether an exchange may be started, after waiting for one to finish if need be; if so, its
+     * outcome must be reported to {@link #onResult(long, boolean)} or {@link #onIgnored()}
+     */
+    Single<Boolean> acquire() {
+        if (tryAcquire()) {
+            return Single.just(true);
+        }
+        if (maxWaitNanos <= 0 || waiting.incrementAndGet() > config.getMaxWaiting()) {
+            if (maxWaitNanos > 0) waiting.decrementAndGet();
+            rejected.increment();
+            return Single.just(false);
+        }
+        return Single.create(emitter -> {
+            Waiter waiter = new Waiter(emitter);
+            Disposable timer = Schedulers.computation().scheduleDirect(() -> {
+                if (claim(waiter)) {
+                    waiters.remove(waiter);
+                    rejected.increment();
+                    emitter.onSuccess(false);
+                }
+            }, maxWaitNanos, TimeUnit.NANOSECONDS);
+            emitter.setCancellable(() -> {
+                timer.dispose();
+                if (claim(waiter)) waiters.remove(waiter);
+            });
+            waiters.offer(waiter);
+            // An exchange may have finished before the waiter was queued
+            grantWaiters();
+        });
+    }
+
+    private boolean tryAcquire() {
+        for (;;) {
+            int current = inFlight.get();
+            if (current >= limit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void release() {
+        inFlight.decrementAndGet();
+        grantWaiters();
+    }
+
+    private void grantWaiters() {
+        while (! waiters.isEmpty() && tryAcquire()) {
+            Waiter waiter = waiters.poll();
+            if (waiter != null && claim(waiter) && ! waiter.emitter.isDisposed()) {
+                waiter.emitter.onSuccess(true);
+            } else {
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    private boolean claim(Waiter waiter) {
+        if (waiter.compareAndSet(false, true)) {
+            waiting.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Ends an exchange, adjusting the limit to its outcome.
+     *
+     * @param rttNanos The time it took to get the upstream headers, or to fail
+     * @param failed Whether the exchange failed
+     */
+    void onResult(long rttNanos, boolean failed) {
+        synchronized (this) {
+            double newLimit;
+            if (failed) {
+                newLimit = estimatedLimit * 0.9;
+            } else {
+                double rtt = Math.max(1, rttNanos);
+                longRtt = longRtt == 0 ? rtt : longRtt + (rtt - longRtt) / LONG_WINDOW;
+                // Having been slow for long, the average lags behind a recovered upstream
+                if (longRtt / rtt > 2) {
+                    longRtt *= 0.95;
+                }
+                double gradient = Math.max(0.5, Math.min(1.0, config.getRttTolerance() * longRtt / rtt));
+                newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+            }
+            newLimit = estimatedLimit * (1 - config.getSmoothing()) + newLimit * config.getSmoothing();
+            estimatedLimit = Math.max(config.getMinLimit(), Math.min(config.getMaxLimit(), newLimit));
+            limit = (int) estimatedLimit;
+        }
+        release();
+    }
+
+    /**
+     * Ends an exchange that didn't get far enough to tell anything about the upstream.
+     */
+    void onIgnored() {
+        release();
+    }
+
+    /**
+     * A request waiting to start its exchange, claimed by whichever comes first of a permit, the timeout and a cancel.
+     */
+    private static final class Waiter extends AtomicBoolean {
+        final SingleEmitter<Boolean> emitter;
+
+        Waiter(SingleEmitter<Boolean> emitter) {
+            this.emitter = emitter;
+        }
+    }
+}
@@ -19,10 +19,14 @@ package com.github.jespersm.proxynaut.core;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -41,12 +45,32 @@ public class ProxyConfiguration {
     private int timeoutMs = 30_000;
     private String context = null;
     private URI uri = null;
+    private List<URI> uris = Collections.emptyList();
+    private String balancer = "round-robin";
     private EnumSet<HttpMethod> allowedMethods = ALL_METHODS;
     private Collection<String> includeRequestHeaders = Collections.emptySet();
     private Collection<String> excludeRequestHeaders = Collections.emptySet();
     private Collection<String> includeResponseHeaders = Collections.emptySet();
     private Collection<String> excludeResponseHeaders = Collections.emptySet();
+    private ProxyHeaderNames includeRequestHeaderNames = ProxyHeaderNames.EMPTY;
+    private ProxyHeaderNames excludeRequestHeaderNames = ProxyHeaderNames.EMPTY;
+    private ProxyHeaderNames includeResponseHeaderNames = ProxyHeaderNames.EMPTY;
+    private ProxyHeaderNames excludeResponseHeaderNames = ProxyHeaderNames.EMPTY;
     private URL url;
+    private ProxyClientConfiguration client;
+    private ProxyCacheConfiguration cache;
+    private boolean coalesce = false;
+    private ProxyHealthConfiguration health = new ProxyHealthConfiguration();
+    private ProxyBufferConfiguration buffer;
+    private ProxyCircuitBreakerConfiguration circuitBreaker;
+    private ProxyRetryConfiguration retry;
+    private ProxyCompressionConfiguration compression;
+    private ProxyRateLimitConfiguration rateLimit;
+    private ProxyConcurrencyLimitConfiguration concurrencyLimit;
+    private ProxyAccessLogConfiguration accessLog;
+    private ProxyTimeoutConfiguration timeouts = new ProxyTimeoutConfiguration();
+    private ProxyWarmupConfiguration warmup;
+    private ProxyDnsConfiguration dns;
 
     public ProxyConfiguration(@Parameter String name) {
         this.name = name;
@@ -73,6 +97,35 @@ public class ProxyConfiguration {
         this.url = uri.toURL();
     }
 
+    /**
+     * @return The upstream instances requests are balanced between, or just {@link #getUri()} if there is one
+     */
+    public List<URI> getUris() {
+        if (uris.isEmpty()) {
+            return uri != null ? Collections.singletonList(uri) : Collections.emptyList();
+        }
+        return uris;
+    }
+
+    public void setUris(List<URI> uris) throws MalformedURLException {
+        this.uris = Collections.unmodifiableList(new ArrayList<>(uris));
+        if (uri == null && ! uris.isEmpty()) {
+            setUri(uris.get(0));
+        }
+    }
+
+    /**
+     * @return The strategy for choosing between several upstreams, see {@link ProxyLoadBalancer#forName(String)}
+     */
+    public String getBalancer() {
+        return balancer;
+    }
+
+    public void setBalancer(String balancer) {
+        ProxyLoadBalancer.forName(balancer);
+        this.balancer = balancer;
+    }
+
     public Collection<String> getAllowedMethods() {
         return allowedMethods.stream().map(HttpMethod::name).collect(Collectors.toSet());
     }
@@ -102,6 +155,7 @@ public class ProxyConfiguration {
 
     public void setIncludeRequestHeaders(Collection<String> values) {
         this.includeRequestHeaders = upperCaseSet(values);
+        this.includeRequestHeaderNames = new ProxyHeaderNames(values);
     }
 
     public Collection<String> getExcludeRequestHeaders() {
@@ -110,15 +164,14 @@ public class ProxyConfiguration {
 
     public void setExcludeRequestHeaders(Collection<String> values) {
         this.excludeRequestHeaders = upperCaseSet(values);
+        this.excludeRequestHeaderNames = new ProxyHeaderNames(values);
     }
 
-    public boolean shouldIncludeRequestHeader(String headerName) {
-        if (! includeRequestHeaders.isEmpty()) {
-            return includeRequestHeaders.contains(safeUpper(headerName));
-        } else if (! excludeRequestHeaders.isEmpty()){
-            return ! excludeRequestHeaders.contains(safeUpper(headerName));
+    public boolean shouldIncludeRequestHeader(CharSequence headerName) {
+        if (! includeRequestHeaderNames.isEmpty()) {
+            return includeRequestHeaderNames.contains(headerName);
         } else {
-            return true;
+            return ! excludeRequestHeaderNames.contains(headerName);
         }
     }
 
@@ -128,6 +181,7 @@ public class ProxyConfiguration {
 
     public void setIncludeResponseHeaders(Collection<String> values) {
         this.includeResponseHeaders = upperCaseSet(values);
+        this.includeResponseHeaderNames = new ProxyHeaderNames(values);
     }
 
     public Collection<String> getExcludeResponseHeaders() {
@@ -136,15 +190,14 @@ public class ProxyConfiguration {
 
     public void setExcludeResponseHeaders(Collection<String> values) {
         this.excludeResponseHeaders = upperCaseSet(values);
+        this.excludeResponseHeaderNames = new ProxyHeaderNames(values);
     }
 
-    public boolean shouldIncludeResponseHeader(String headerName) {
-        if (! includeResponseHeaders.isEmpty()) {
-            return includeResponseHeaders.contains(safeUpper(headerName));
-        } else if (! excludeResponseHeaders.isEmpty()){
-            return ! excludeResponseHeaders.contains(safeUpper(headerName));
+    public boolean shouldIncludeResponseHeader(CharSequence headerName) {
+        if (! includeResponseHeaderNames.isEmpty()) {
+            return includeResponseHeaderNames.contains(headerName);
         } else {
-            return true;
+            return ! excludeResponseHeaderNames.contains(headerName);
         }
     }
     
@@ -163,4 +216,197 @@ public class ProxyConfiguration {
 	public void setTimeoutMs(int timeoutMs) {
 		this.timeoutMs = timeoutMs;
 	}
+
+    /**
+     * @return Whether identical concurrent GET and HEAD requests share a single upstream exchange
+     */
+    public boolean isCoalesce() {
+        return coalesce;
+    }
+
+    public void setCoalesce(boolean coalesce) {
+        this.coalesce = coalesce;
+    }
+
+    /**
+     * @return The settings for the client towards the upstream, if any are configured
+     */
+    public Optional<ProxyClientConfiguration> getClient() {
+        return Optional.ofNullable(client);
+    }
+
+    /**
+     * @param settings The {@code client} section of this route, see {@link ProxyClientConfiguration}
+     */
+    public void setClient(Map<String, Object> settings) {
+        this.client = ConfigurationSections.bind("proxynaut." + name + ".client", settings, new ProxyClientConfiguration());
+    }
+
+    /**
+     * @return The settings for caching the upstream's responses, if caching is enabled for this route
+     */
+    public Optional<ProxyCacheConfiguration> getCache() {
+        return Optional.ofNullable(cache);
+    }
+
+    /**
+     * @param settings The {@code cache} section of this route, see {@link ProxyCacheConfiguration}
+     */
+    public void setCache(Map<String, Object> settings) {
+        this.cache = ConfigurationSections.bind("proxynaut." + name + ".cache", settings, new ProxyCacheConfiguration());
+    }
+
+    /**
+     * @return The settings for detecting and avoiding unhealthy upstreams, with defaults if not configured
+     */
+    public ProxyHealthConfiguration getHealth() {
+        return health;
+    }
+
+    /**
+     * @param settings The {@code health} section of this route, see {@link ProxyHealthConfiguration}
+     */
+    public void setHealth(Map<String, Object> settings) {
+        this.health = ConfigurationSections.bind("proxynaut." + name + ".health", settings, new ProxyHealthConfiguration());
+    }
+
+    /**
+     * @return The settings for bounding how far a client may fall behind the upstream, if configured
+     */
+    public Optional<ProxyBufferConfiguration> getBuffer() {
+        return Optional.ofNullable(buffer);
+    }
+
+    /**
+     * @param settings The {@code buffer} section of this route, see {@link ProxyBufferConfiguration}
+     */
+    public void setBuffer(Map<String, Object> settings) {
+        this.buffer = ConfigurationSections.bind("proxynaut." + name + ".buffer", settings, new ProxyBufferConfiguration());
+    }
+
+    /**
+     * @return The settings of the circuit breaker of this route, if it has one
+     */
+    public Optional<ProxyCircuitBreakerConfiguration> getCircuitBreaker() {
+        return Optional.ofNullable(circuitBreaker);
+    }
+
+    /**
+     * @param settings The {@code circuitBreaker} section of this route, see {@link ProxyCircuitBreakerConfiguration}
+     */
+    public void setCircuitBreaker(Map<String, Object> settings) {
+        this.circuitBreaker = ConfigurationSections.bind("proxynaut." + name + ".circuit-breaker", settings, new ProxyCircuitBreakerConfiguration());
+    }
+
+    /**
+     * @return The settings for retrying and hedging idempotent requests, if enabled for this route
+     */
+    public Optional<ProxyRetryConfiguration> getRetry() {
+        return Optional.ofNullable(retry);
+    }
+
+    /**
+     * @param settings The {@code retry} section of this route, see {@link ProxyRetryConfiguration}
+     */
+    public void setRetry(Map<String, Object> settings) {
+        this.retry = ConfigurationSections.bind("proxynaut." + name + ".retry", settings, new ProxyRetryConfiguration());
+    }
+
+    /**
+     * @return The settings for compressing responses, if compression is enabled for this route
+     */
+    public Optional<ProxyCompressionConfiguration> getCompression() {
+        return Optional.ofNullable(compression);
+    }
+
+    /**
+     * @param settings The {@code compression} section of this route, see {@link ProxyCompressionConfiguration}
+     */
+    public void setCompression(Map<String, Object> settings) {
+        this.compression = ConfigurationSections.bind("proxynaut." + name + ".compression", settings, new ProxyCompressionConfiguration());
+    }
+
+    /**
+     * @return The settings for rate limiting requests to this route, if it is rate limited
+     */
+    public Optional<ProxyRateLimitConfiguration> getRateLimit() {
+        return Optional.ofNullable(rateLimit);
+    }
+
+    /**
+     * @param settings The {@code rateLimit} section of this route, see {@link ProxyRateLimitConfiguration}
+     */
+    public void setRateLimit(Map<String, Object> settings) {
+        this.rateLimit = ConfigurationSections.bind("proxynaut." + name + ".rate-limit", settings, new ProxyRateLimitConfiguration());
+    }
+
+    /**
+     * @return The settings for adaptively limiting concurrent exchanges with the upstream, if limited
+     */
+    public Optional<ProxyConcurrencyLimitConfiguration> getConcurrencyLimit() {
+        return Optional.ofNullable(concurrencyLimit);
+    }
+
+    /**
+     * @param settings The {@code concurrencyLimit} section of this route, see {@link ProxyConcurrencyLimitConfiguration}
+     */
+    public void setConcurrencyLimit(Map<String, Object> settings) {
+        this.concurrencyLimit = ConfigurationSections.bind("proxynaut." + name + ".concurrency-limit", settings, new ProxyConcurrencyLimitConfiguration());
+    }
+
+    /**
+     * @return The settings for logging the requests to this route, if configured
+     */
+    public Optional<ProxyAccessLogConfiguration> getAccessLog() {
+        return Optional.ofNullable(accessLog);
+    }
+
+    /**
+     * @param settings The {@code accessLog} section of this route, see {@link ProxyAccessLogConfiguration}
+     */
+    public void setAccessLog(Map<String, Object> settings) {
+        this.accessLog = ConfigurationSections.bind("proxynaut." + name + ".access-log", settings, new ProxyAccessLogConfiguration());
+    }
+
+    /**
+     * @return The timeouts of each phase of an exchange with the upstream, with defaults if not configured
+     */
+    public ProxyTimeoutConfiguration getTimeouts() {
+        return timeouts;
+    }
+
+    /**
+     * @param settings The {@code timeouts} section of this route, see {@link ProxyTimeoutConfiguration}
+     */
+    public void setTimeouts(Map<String, Object> settings) {
+        this.timeouts = ConfigurationSections.bind("proxynaut." + name + ".timeouts", settings, new ProxyTimeoutConfiguration());
+    }
+
+    /**
+     * @return The settings for warming up this route when the server starts, if configured
+     */
+    public Optional<ProxyWarmupConfiguration> getWarmup() {
+        return Optional.ofNullable(warmup);
+    }
+
+    /**
+     * @param settings The {@code warmup} section of this route, see {@link ProxyWarmupConfiguration}
+     */
+    public void setWarmup(Map<String, Object> settings) {
+        this.warmup = ConfigurationSections.bind("proxynaut." + name + ".warmup", settings, new ProxyWarmupConfiguration());
+    }
+
+    /**
+     * @return The settings for caching the addresses of the upstream hosts, if cached
+     */
+    public Optional<ProxyDnsConfiguration> getDns() {
+        return Optional.ofNullable(dns);
+    }
+
+    /**
+     * @param settings The {@code dns} section of this route, see {@link ProxyDnsConfiguration}
+     */
+    public void setDns(Map<String, Object> settings) {
+        this.dns = ConfigurationSections.bind("proxynaut." + name + ".dns", settings, new ProxyDnsConfiguration());
+    }
 }
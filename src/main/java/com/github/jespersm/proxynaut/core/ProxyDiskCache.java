@@ -0,0 +1,555 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.jespersm.proxynaut.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.micronaut.buffer.netty.NettyByteBufferFactory;
+import io.micronaut.context.exceptions.ConfigurationException;
+import io.micronaut.core.io.buffer.ByteBuffer;
+import io.micronaut.core.io.buffer.ReferenceCounted;
+import io.micronaut.http.HttpRequest;
+import io.micronaut.http.MediaType;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.reactivex.Flowable;
+import io.reactivex.Scheduler;
+import io.reactivex.processors.BehaviorProcessor;
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * The disk tier of a {@link ProxyResponseCache}, for bodies too large to keep in memory.
+ *
+ * Each body is written to a file of its own as it is relayed, and described by an index file once
+ * complete, so the cache survives restarts. Hits are served from memory-mapped slices of the file,
+ * without copying the body onto the heap, and a hit on a body that is still downloading follows
+ * the download as it is written.
+ *
+ * Files are created, written, mapped and deleted on a {@link Scheduler} for blocking I/O, never on the
+ * event loop relaying the response, and never while holding the lock on the index. A fill writes its body
+ * in order on a worker of its own, holding on to the buffers it hasn't written yet, which are bounded
+ * by the maximum entry size.
+ */
+final class ProxyDiskCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ProxyDiskCache.class);
+
+    private static final String BODY_SUFFIX = ".body";
+    private static final String INDEX_SUFFIX = ".index";
+    private static final int SLICE_BYTES = 64 * 1024;
+    private static final long WINDOW_BYTES = 64L * 1024 * 1024;
+
+    private final Path directory;
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final LinkedHashMap<String, List<DiskEntry>> index = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private final LongAdder evictions = new LongAdder();
+    private final Scheduler scheduler;
+
+    ProxyDiskCache(ProxyDiskCacheConfiguration config) {
+        this(config, Schedulers.io());
+    }
+
+    ProxyDiskCache(ProxyDiskCacheConfiguration config, Scheduler scheduler) {
+        this.scheduler = scheduler;
+        this.directory = Paths.get(config.getDirectory());
+        this.maxBytes = config.getMaxBytes();
+        this.maxEntryBytes = config.getMaxEntryBytes();
+        try {
+            Files.createDirectories(directory);
+            load();
+        } catch (IOException e) {
+            throw new ConfigurationException("Unable to use cache directory " + directory + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void load() throws IOException {
+        long now = System.currentTimeMillis();
+        List<Path> indexFiles;
+        try (Stream<Path> files = Files.list(directory)) {
+            indexFiles = files.filter(file -> file.toString().endsWith(INDEX_SUFFIX))
+                    .sorted(Comparator.comparing(ProxyDiskCache::lastModified))
+                    .collect(Collectors.toList());
+        }
+        for (Path indexFile : indexFiles) {
+            DiskEntry entry = readIndex(indexFile);
+            if (entry == null || entry.isExpired(now) || ! Files.exists(entry.file) || Files.size(entry.file) != entry.length) {
+                delete(indexFile);
+                continue;
+            }
+            entry.complete = true;
+            index.computeIfAbsent(entry.key, k -> new ArrayList<>(1)).add(entry);
+            bytes += entry.length;
+        }
+        // Bodies without an index file are from fills that never completed
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(file -> file.toString().endsWith(BODY_SUFFIX))
+                    .filter(file -> ! Files.exists(indexFileOf(file)))
+                    .forEach(ProxyDiskCache::delete);
+        }
+        evict(null);
+        LOG.debug("Loaded {} cached bodies ({} bytes) from {}", index.size(), bytes, directory);
+    }
+
+    /**
+     * @return A fresh cached response for the request, or null if there is none
+     */
+    @Nullable
+    DiskEntry lookup(String key, HttpRequest<?> request, long now) {
+        List<DiskEntry> expired = null;
+        DiskEntry found = null;
+        synchronized (index) {
+            List<DiskEntry> variants = index.get(key);
+            if (variants == null) {
+                return null;
+            }
+            for (Iterator<DiskEntry> it = variants.iterator(); it.hasNext(); ) {
+                DiskEntry entry = it.next();
+                if (entry.complete && entry.isExpired(now)) {
+                    it.remove();
+                    bytes -= entry.length;
+                    if (expired == null) expired = new ArrayList<>(1);
+                    expired.add(entry);
+                } else if (found == null && entry.matches(request)) {
+                    found = entry;
+                }
+            }
+            if (variants.isEmpty()) {
+                index.remove(key);
+            }
+        }
+        if (expired != null) {
+            expired.forEach(this::discard);
+        }
+        return found;
+    }
+
+    /**
+     * Starts writing a body to disk, making it available to lookups right away.
+     *
+     * @return The fill, or null if the body can't be written
+     */
+    @Nullable
+    DiskFill startFill(String key, @Nullable MediaType contentType, @Nullable String contentEncoding, String[] headers, String[] vary, String[] varyValues,
+            long storedAt, long expiresAt) {
+        String id = UUID.randomUUID().toString();
+        DiskEntry entry = new DiskEntry(key, directory.resolve(id + BODY_SUFFIX), contentType, contentEncoding, headers, vary, varyValues, storedAt, expiresAt);
+        synchronized (index) {
+            List<DiskEntry> variants = index.computeIfAbsent(key, k -> new ArrayList<>(1));
+            for (Iterator<DiskEntry> it = variants.iterator(); it.hasNext(); ) {
+                DiskEntry existing = it.next();
+                if (existing.isSameVariant(entry)) {
+                    it.remove();
+                    if (existing.complete) {
+                        bytes -= existing.length;
+                        discard(existing);
+                    }
+                }
+            }
+            variants.add(entry);
+        }
+        return new DiskFill(entry, scheduler.createWorker());
+    }
+
+    private void evict(@Nullable List<DiskEntry> keep) {
+        for (Iterator<List<DiskEntry>> eldest = index.values().iterator(); bytes > maxBytes && eldest.hasNext(); ) {
+            List<DiskEntry> variants = eldest.next();
+            if (variants == keep || variants.stream().anyMatch(entry -> ! entry.complete)) {
+                continue;
+            }
+            eldest.remove();
+            for (DiskEntry entry : variants) {
+                bytes -= entry.length;
+                discard(entry);
+            }
+            evictions.increment();
+        }
+    }
+
+    long getBytes() {
+        synchronized (index) {
+            return bytes;
+        }
+    }
+
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+    private void discard(DiskEntry entry) {
+        // Readers still holding a mapping of the body keep reading it after it is deleted
+        scheduler.scheduleDirect(() -> {
+            delete(indexFileOf(entry.file));
+            delete(entry.file);
+        });
+    }
+
+    private static Path indexFileOf(Path bodyFile) {
+        String name = bodyFile.getFileName().toString();
+        return bodyFile.resolveSibling(name.substring(0, name.length() - BODY_SUFFIX.length()) + INDEX_SUFFIX);
+    }
+
+    private static void writeIndex(DiskEntry entry) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("key", entry.key);
+        properties.setProperty("length", Long.toString(entry.length));
+        properties.setProperty("storedAt", Long.toString(entry.storedAt));
+        properties.setProperty("expiresAt", Long.toString(entry.expiresAt));
+        if (entry.contentType != null) {
+            properties.setProperty("contentType", entry.contentType.toString());
+        }
+        if (entry.contentEncoding != null) {
+            properties.setProperty("contentEncoding", entry.contentEncoding);
+        }
+        for (int i = 0; i < entry.headers.length; i += 2) {
+            properties.setProperty("header." + i / 2 + ".name", entry.headers[i]);
+            properties.setProperty("header." + i / 2 + ".value", entry.headers[i + 1]);
+        }
+        properties.setProperty("vary", String.join(",", entry.vary));
+        for (int i = 0; i < entry.vary.length; i++) {
+            if (entry.varyValues[i] != null) {
+                properties.setProperty("vary." + i, entry.varyValues[i]);
+            }
+        }
+        // Written aside and moved in place, so a crash never leaves a partial index file
+        Path indexFile = indexFileOf(entry.file);
+        Path temporary = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temporary)) {
+            properties.store(out, null);
+        }
+        Files.move(temporary, indexFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Nullable
+    private DiskEntry readIndex(Path indexFile) {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(indexFile)) {
+            properties.load(in);
+            String name = indexFile.getFileName().toString();
+            Path file = indexFile.resolveSibling(name.substring(0, name.length() - INDEX_SUFFIX.length()) + BODY_SUFFIX);
+            String varyProperty = properties.getProperty("vary", "");
+            String[] vary = varyProperty.isEmpty() ? new String[0] : varyProperty.split(",");
+            String[] varyValues = new String[vary.length];
+            for (int i = 0; i < vary.length; i++) {
+                varyValues[i] = properties.getProperty("vary." + i);
+            }
+            List<String> headers = new ArrayList<>();
+            for (int i = 0; properties.containsKey("header." + i + ".name"); i++) {
+                headers.add(properties.getProperty("header." + i + ".name"));
+                headers.add(properties.getProperty("header." + i + ".value", ""));
+            }
+            String contentType = properties.getProperty("contentType");
+            DiskEntry entry = new DiskEntry(properties.getProperty("key"), file,
+                    contentType != null ? new MediaType(contentType) : null, properties.getProperty("contentEncoding"), headers.toArray(new String[0]), vary, varyValues,
+                    Long.parseLong(properties.getProperty("storedAt")), Long.parseLong(properties.getProperty("expiresAt")));
+            entry.length = Long.parseLong(properties.getProperty("length"));
+            return entry.key != null ? entry : null;
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Ignoring unreadable cache index {}: {}", indexFile, e.getMessage());
+            return null;
+        }
+    }
+
+    private static FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOG.warn("Unable to delete cached file {}: {}", file, e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the part of a body between two offsets, as memory-mapped slices of the file. Each window of
+     * the file is opened, mapped and loaded into memory on the scheduler for blocking I/O, so neither
+     * that nor the page faults of reading it happen on the event loop relaying the slices.
+     */
+    Flowable<ByteBuffer<?>> read(Path file, long from, long to) {
+        if (from >= to) {
+            return Flowable.empty();
+        }
+        return Flowable.rangeLong(0, (to - from + WINDOW_BYTES - 1) / WINDOW_BYTES).concatMap(window -> {
+            long start = from + window * WINDOW_BYTES;
+            int size = (int) Math.min(WINDOW_BYTES, to - start);
+            return Flowable.fromCallable(() -> map(file, start, size))
+                    .subscribeOn(scheduler)
+                    .concatMap(mapped -> Flowable.range(0, (size + SLICE_BYTES - 1) / SLICE_BYTES).map(i -> {
+                        java.nio.ByteBuffer slice = mapped.duplicate();
+                        ((Buffer) slice).limit(Math.min(size, (i + 1) * SLICE_BYTES));
+                        ((Buffer) slice).position(i * SLICE_BYTES);
+                        return NettyByteBufferFactory.DEFAULT.wrap(Unpooled.wrappedBuffer(slice.slice()));
+                    }));
+        }, 1);
+    }
+
+    private static MappedByteBuffer map(Path file, long start, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, start, size).load();
+        }
+    }
+
+    /**
+     * A response cached on disk, possibly still being written.
+     */
+    final class DiskEntry extends ProxyResponseCache.Entry {
+        final String key;
+        final Path file;
+        final BehaviorProcessor<Long> progress = BehaviorProcessor.create();
+        volatile long length;
+        volatile boolean complete;
+
+        DiskEntry(String key, Path file, @Nullable MediaType contentType, @Nullable String contentEncoding, String[] headers,
+                String[] vary, String[] varyValues, long storedAt, long expiresAt) {
+            super(contentType, contentEncoding, headers, vary, varyValues, storedAt, expiresAt);
+            this.key = key;
+            this.file = file;
+        }
+
+        @Override
+        long length() {
+            return complete ? length : -1;
+        }
+
+        @Override
+        Flowable<ByteBuffer<?>> body() {
+            if (complete) {
+                return read(file, 0, length);
+            }
+            return Flowable.defer(() -> {
+                long[] position = {0};
+                return progress.onBackpressureLatest()
+                        .concatMap(written -> {
+                            Flowable<ByteBuffer<?>> chunk = read(file, position[0], written);
+                            position[0] = written;
+                            return chunk;
+                        }, 1)
+                        // Whatever was written after the last progress seen, e.g. if the fill completed before subscribing
+                        .concatWith(Flowable.defer(() -> read(file, position[0], length)));
+            });
+        }
+    }
+
+    /**
+     * Writes a body to disk while it is relayed, on a worker of its own. Each write is published to
+     * concurrent readers of the entry.
+     */
+    final class DiskFill {
+        private final DiskEntry entry;
+        private final Scheduler.Worker worker;
+        // Confined to the worker, null once closed or if the file couldn't be created
+        private FileChannel channel;
+        private long written;
+        // Guarded by this
+        private long queued;
+        private boolean done;
+
+        private DiskFill(DiskEntry entry, Scheduler.Worker worker) {
+            this.entry = entry;
+            this.worker = worker;
+            worker.schedule(this::open);
+        }
+
+        private void open() {
+            try {
+                channel = FileChannel.open(entry.file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        synchronized void append(ByteBuffer<?> buffer) {
+            if (done) {
+                return;
+            }
+            if (queued + buffer.readableBytes() > maxEntryBytes) {
+                abort();
+                return;
+            }
+            queued += buffer.readableBytes();
+            // The caller hands its buffer on, so the fill keeps a reference of its own until written
+            ByteBuffer<?> retained = retain(buffer);
+            worker.schedule(() -> {
+                try {
+                    write(retained);
+                } finally {
+                    release(retained);
+                }
+            });
+        }
+
+        private void write(ByteBuffer<?> buffer) {
+            if (channel == null) {
+                return;
+            }
+            try {
+                java.nio.ByteBuffer nioBuffer = buffer.asNioBuffer();
+                while (nioBuffer.hasRemaining()) {
+                    written += channel.write(nioBuffer);
+                }
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+            entry.length = written;
+            entry.progress.onNext(written);
+        }
+
+        synchronized void complete() {
+            if (done) {
+                return;
+            }
+            done = true;
+            worker.schedule(() -> {
+                try {
+                    if (channel == null) {
+                        return;
+                    }
+                    try {
+                        closeChannel();
+                        writeIndex(entry);
+                    } catch (IOException e) {
+                        LOG.warn("Unable to cache {} on disk: {}", entry.key, e.getMessage());
+                        remove();
+                        entry.progress.onError(e);
+                        return;
+                    }
+                    entry.complete = true;
+                    entry.progress.onComplete();
+                    boolean replaced;
+                    synchronized (index) {
+                        List<DiskEntry> variants = index.get(entry.key);
+                        replaced = variants == null || ! variants.contains(entry);
+                        if (! replaced) {
+                            bytes += written;
+                            evict(variants);
+                        }
+                    }
+                    if (replaced) {
+                        // Replaced by a newer fill of the same variant while downloading
+                        discard(entry);
+                    }
+                } finally {
+                    worker.dispose();
+                }
+            });
+        }
+
+        /**
+         * Gives up on the body, failing any concurrent readers.
+         */
+        synchronized void abort() {
+            if (done) {
+                return;
+            }
+            done = true;
+            worker.schedule(() -> {
+                try {
+                    if (channel != null) {
+                        closeQuietly();
+                        remove();
+                        entry.progress.onError(new IOException("Download of " + entry.key + " was aborted"));
+                    }
+                } finally {
+                    worker.dispose();
+                }
+            });
+        }
+
+        private void fail(IOException e) {
+            LOG.warn("Unable to cache {} on disk: {}", entry.key, e.getMessage());
+            synchronized (this) {
+                done = true;
+            }
+            closeQuietly();
+            remove();
+            entry.progress.onError(e);
+        }
+
+        private void closeChannel() throws IOException {
+            FileChannel closed = channel;
+            channel = null;
+            closed.close();
+        }
+
+        private void closeQuietly() {
+            if (channel != null) {
+                try {
+                    closeChannel();
+                } catch (IOException e) {
+                    LOG.debug("Unable to close {}: {}", entry.file, e.getMessage());
+                }
+            }
+        }
+
+        private void remove() {
+            synchronized (index) {
+                List<DiskEntry> variants = index.get(entry.key);
+                if (variants != null && variants.remove(entry) && variants.isEmpty()) {
+                    index.remove(entry.key);
+                }
+            }
+            discard(entry);
+        }
+    }
+
+    private static ByteBuffer<?> retain(ByteBuffer<?> buffer) {
+        Object nativeBuffer = buffer.asNativeBuffer();
+        if (nativeBuffer instanceof ByteBuf) {
+            return NettyByteBufferFactory.DEFAULT.wrap(((ByteBuf) nativeBuffer).retainedDuplicate());
+        }
+        return NettyByteBufferFactory.DEFAULT.wrap(buffer.toByteArray());
+    }
+
+    private static void release(ByteBuffer<?> buffer) {
+        if (buffer instanceof ReferenceCounted) ((ReferenceCounted) buffer).release();
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.jespersm.proxynaut.core;
+
+/**
+ * Settings for the disk tier of a route's response cache, taken from the {@code disk} section of
+ * the {@code cache} section. The tier is enabled by setting its directory, e.g.:
+ *
+ * <pre>
+ * proxynaut:
+ *     blobstorage:
+ *         cache:
+ *             disk:
+ *                 directory: /var/cache/proxynaut/blobstorage
+ *                 maxBytes: 10737418240
+ * </pre>
+ */
+public class ProxyDiskCacheConfiguration {
+
+    private String directory;
+    private long maxBytes = 1024L * 1024 * 1024;
+    private long maxEntryBytes = Long.MAX_VALUE;
+
+    /**
+     * @return The directory the cached bodies and their index are kept in, or null if the disk tier is disabled
+     */
+    public String getDirectory() {
+        return directory;
+    }
+
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return The total size of the bodies cached on disk, beyond which the least recently used are evicted
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return The size of the largest response body that is cached on disk
+     */
+    public long getMaxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    public void setMaxEntryBytes(long maxEntryBytes) {
+        this.maxEntryBytes = maxEntryBytes;
+    }
+}
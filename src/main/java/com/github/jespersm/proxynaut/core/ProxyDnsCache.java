@@ -0,0 +1,162 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jespersm.proxynaut.core;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.reactivex.Scheduler;
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * The addresses of the upstream hosts of a single proxied route, see {@link ProxyDnsConfiguration}.
+ *
+ * Looking up an address never waits for the resolver: a host is resolved in the background the first
+ * time it is asked for, and again whenever its addresses are due for a refresh. Until a host has been
+ * resolved at all, or once its addresses have expired without a refresh succeeding, e.g. after a quiet
+ * spell, there is no address for it and the client resolves it as it would without a cache.
+ * The system resolver doesn't tell the time to live of its records, so the configured one applies.
+ */
+public class ProxyDnsCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ProxyDnsCache.class);
+
+    /**
+     * Looks up all addresses of a host, blocking while doing so.
+     */
+    interface Resolver {
+        InetAddress[] resolve(String host) throws UnknownHostException;
+    }
+
+    private final String name;
+    private final Resolver resolver;
+    private final Scheduler scheduler;
+    private final long ttlNanos;
+    private final long refreshAheadNanos;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    ProxyDnsCache(String name, ProxyDnsConfiguration config) {
+        this(name, config, InetAddress::getAllByName, Schedulers.io());
+    }
+
+    ProxyDnsCache(String name, ProxyDnsConfiguration config, Resolver resolver, Scheduler scheduler) {
+        this.name = name;
+        this.resolver = resolver;
+        this.scheduler = scheduler;
+        this.ttlNanos = config.getTtl().toNanos();
+        this.refreshAheadNanos = Math.min(config.getRefreshAhead().toNanos(), ttlNanos);
+    }
+
+    /**
+     * @return The address to open the next connection to the host to, taking turns between all of them,
+     * or null if the host hasn't been resolved yet or its addresses have expired
+     */
+    @Nullable
+    InetAddress next(String host) {
+        Entry entry = entries.computeIfAbsent(host, h -> new Entry());
+        long now = System.nanoTime();
+        if (now - entry.refreshAt >= 0 && entry.refreshing.compareAndSet(false, true)) {
+            scheduler.scheduleDirect(() -> refresh(host, entry));
+        }
+        InetAddress[] addresses = entry.addresses;
+        if (addresses.length == 0 || now - entry.expiresAt >= 0) {
+            return null;
+        }
+        return addresses[(entry.next.getAndIncrement() & Integer.MAX_VALUE) % addresses.length];
+    }
+
+    private void refresh(String host, Entry entry) {
+        try {
+            InetAddress[] addresses = resolver.resolve(host);
+            if (addresses.length == 0) {
+                throw new UnknownHostException(host);
+            }
+            long now = System.nanoTime();
+            entry.addresses = addresses;
+            entry.expiresAt = now + ttlNanos;
+            entry.refreshAt = now + ttlNanos - refreshAheadNanos;
+            refreshes.increment();
+            LOG.debug("Resolved {} for {}: {}", host, name, Arrays.asList(addresses));
+        } catch (Exception e) {
+            // Keep using the addresses we have until they expire, and try again in a while
+            entry.refreshAt = System.nanoTime() + refreshAheadNanos;
+            failures.increment();
+            LOG.warn("Unable to resolve {} for {}: {}", host, name, e.toString());
+        } finally {
+            entry.refreshing.set(false);
+        }
+    }
+
+    /**
+     * Starts resolving a host in the background, so its addresses are there by the first connection.
+     */
+    void prime(String host) {
+        next(host);
+    }
+
+    /**
+     * @return The current addresses of the host, or an empty list if it hasn't been resolved yet
+     */
+    public List<InetAddress> getAddresses(String host) {
+        Entry entry = entries.get(host);
+        return entry == null ? Collections.emptyList() : Collections.unmodifiableList(Arrays.asList(entry.addresses));
+    }
+
+    /**
+     * @return The name of the proxy configuration
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The number of times a host has been resolved
+     */
+    public long getRefreshes() {
+        return refreshes.sum();
+    }
+
+    /**
+     * @return The number of times resolving a host failed
+     */
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    private static final class Entry {
+        volatile InetAddress[] addresses = new InetAddress[0];
+        volatile long refreshAt = System.nanoTime();
+        volatile long expiresAt = refreshAt;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+        final AtomicInteger next = new AtomicInteger();
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jespersm.proxynaut.core;
+
+import java.time.Duration;
+
+/**
+ * Settings for caching the addresses of the upstream hosts of a proxied route, taken from the
+ * {@code dns} section of the route, e.g.:
+ *
+ * <pre>
+ * proxynaut:
+ *     api:
+ *         dns:
+ *             ttl: 30s
+ *             refreshAhead: 5s
+ * </pre>
+ *
+ * All addresses of a host are kept, and new connections are spread over them. The addresses are
+ * looked up again in the background before they expire, and old addresses are used until that
+ * succeeds or they expire, whichever comes first. Only connections opened outside a connection
+ * pool use the cache, as the pools of the Micronaut HTTP client look up their upstream's address
+ * once.
+ */
+public class ProxyDnsConfiguration {
+
+    private Duration ttl = Duration.ofSeconds(30);
+    private Duration refreshAhead = Duration.ofSeconds(5);
+
+    /**
+     * @return The time the addresses of a host are used for
+     */
+    public Duration getTtl() {
+        return ttl;
+    }
+
+    public void setTtl(Duration ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * @return The time before the addresses expire that they are looked up again, and the time between attempts if that fails
+     */
+    public Duration getRefreshAhead() {
+        return refreshAhead;
+    }
+
+    public void setRefreshAhead(Duration refreshAhead) {
+        this.refreshAhead = refreshAhead;
+    }
+}
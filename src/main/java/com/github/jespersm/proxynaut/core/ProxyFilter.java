@@ -0,0 +1,74 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jespersm.proxynaut.core;
+
+import java.util.Optional;
+
+import org.reactivestreams.Publisher;
+
+import io.micronaut.core.io.buffer.ByteBuffer;
+import io.micronaut.core.order.Ordered;
+import io.micronaut.http.HttpAttributes;
+import io.micronaut.http.HttpRequest;
+import io.micronaut.http.MutableHttpResponse;
+import io.micronaut.http.annotation.Filter;
+import io.micronaut.http.filter.HttpServerFilter;
+import io.micronaut.http.filter.ServerFilterChain;
+import io.micronaut.web.router.UriRouteMatch;
+
+/**
+ * Answers requests matched to the routes from {@link ProxyRouteBuilder} with the non-blocking
+ * {@link Proxy#serve(HttpRequest, String)}, so no server thread waits for the upstream headers.
+ * 
+ * Micronaut only streams a response body chunk by chunk when the route method is declared to return
+ * an {@link io.micronaut.http.HttpResponse} of a publisher, which rules out returning a
+ * {@link io.reactivex.Single} from the route itself.
+ *
+ * As it answers proxied requests without passing them on, it comes after any other filter, so that
+ * the application's own filters, e.g. for security or tracing, still see every proxied request.
+ */
+@Filter("/**")
+public class ProxyFilter implements HttpServerFilter {
+
+    private final Proxy proxy;
+    private final ProxyRouteBuilder routeBuilder;
+
+    public ProxyFilter(Proxy proxy, ProxyRouteBuilder routeBuilder) {
+        this.proxy = proxy;
+        this.routeBuilder = routeBuilder;
+    }
+
+    @Override
+    public int getOrder() {
+        return Ordered.LOWEST_PRECEDENCE;
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    @Override
+    public Publisher<MutableHttpResponse<?>> doFilter(HttpRequest<?> request, ServerFilterChain chain) {
+        Optional<UriRouteMatch> routeMatch = request.getAttribute(HttpAttributes.ROUTE_MATCH, UriRouteMatch.class);
+        if (routeMatch.isPresent()) {
+            // The route itself identifies the configuration, so there is no need to look at the path
+            ProxyConfiguration config = routeBuilder.findConfiguration(routeMatch.get().getRoute());
+            if (config != null) {
+                Object path = routeMatch.get().getVariableValues().get("path");
+                return proxy.serve((HttpRequest<ByteBuffer<?>>) request, config, path != null ? path.toString() : null).toFlowable();
+            }
+        }
+        return chain.proceed(request);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.jespersm.proxynaut.core;
+
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * An immutable set of header names, matched ignoring (ASCII) case without allocating,
+ * so it can be asked about every header of every request.
+ */
+final class ProxyHeaderNames {
+
+    static final ProxyHeaderNames EMPTY = new ProxyHeaderNames(Collections.emptySet());
+
+    private final String[] table;
+    private final int mask;
+    private final int size;
+
+    ProxyHeaderNames(Collection<String> names) {
+        int capacity = Integer.highestOneBit(Math.max(1, names.size()) * 4 - 1) << 1;
+        this.table = new String[capacity];
+        this.mask = capacity - 1;
+        int count = 0;
+        for (String name : names) {
+            int slot = hash(name) & mask;
+            while (table[slot] != null && ! equalsIgnoreCase(table[slot], name)) {
+                slot = (slot + 1) & mask;
+            }
+            if (table[slot] == null) {
+                table[slot] = name;
+                count++;
+            }
+        }
+        this.size = count;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    boolean contains(CharSequence name) {
+        if (size == 0) {
+            return false;
+        }
+        int slot = hash(name) & mask;
+        String candidate;
+        while ((candidate = table[slot]) != null) {
+            if (equalsIgnoreCase(candidate, name)) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    private static int hash(CharSequence name) {
+        int h = 0;
+        for (int i = 0; i < name.length(); i++) {
+            h = 31 * h + toLower(name.charAt(i));
+        }
+        return h ^ (h >>> 16);
+    }
+
+    static boolean equalsIgnoreCase(CharSequence a, CharSequence b) {
+        int length = a.length();
+        if (length != b.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (toLower(a.charAt(i)) != toLower(b.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return Whether the comma separated list, like the value of a {@code Connection} header, has the given token
+     */
+    static boolean listContains(CharSequence list, CharSequence token) {
+        int length = list.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && (list.charAt(i) == ' ' || list.charAt(i) == ',' || list.charAt(i) == '\t')) {
+                i++;
+            }
+            int start = i;
+            while (i < length && list.charAt(i) != ',') {
+                i++;
+            }
+            int end = i;
+            while (end > start && (list.charAt(end - 1) == ' ' || list.charAt(end - 1) == '\t')) {
+                end--;
+            }
+            if (end - start == token.length() && regionEqualsIgnoreCase(list, start, token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean regionEqualsIgnoreCase(CharSequence s, int offset, CharSequence token) {
+        for (int i = 0; i < token.length(); i++) {
+            if (toLower(s.charAt(offset + i)) != toLower(token.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static char toLower(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.jespersm.proxynaut.core;
+
+import java.time.Duration;
+
+/**
+ * Settings for telling sick upstream instances of a route apart, taken from the {@code health}
+ * section of the route, e.g.:
+ *
+ * <pre>
+ * proxynaut:
+ *     replicated:
+ *         health:
+ *             path: /health
+ *             interval: 5s
+ *             consecutiveFailures: 5
+ *             baseEjectionTime: 10s
+ *             maxEjectionTime: 5m
+ * </pre>
+ *
+ * Upstreams are probed in the background if a path is given. Independently of that, an upstream is
+ * ejected after a number of consecutive failed exchanges (5xx responses or connection errors), for a
+ * time that doubles every time it is ejected again.
+ */
+public class ProxyHealthConfiguration {
+
+    private String path;
+    private Duration interval = Duration.ofSeconds(10);
+    private Duration timeout = Duration.ofSeconds(2);
+    private int consecutiveFailures = 5;
+    private Duration baseEjectionTime = Duration.ofSeconds(30);
+    private Duration maxEjectionTime = Duration.ofMinutes(5);
+
+    /**
+     * @return The path of the health endpoint of each upstream, relative to its URI, or null to not probe
+     */
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    /**
+     * @return The time between probes
+     */
+    public Duration getInterval() {
+        return interval;
+    }
+
+    public void setInterval(Duration interval) {
+        this.interval = interval;
+    }
+
+    /**
+     * @return The time a probe may take before the upstream is considered unhealthy
+     */
+    public Duration getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(Duration timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * @return The number of failed exchanges in a row that ejects an upstream, or 0 to never eject
+     */
+    public int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    public void setConsecutiveFailures(int consecutiveFailures) {
+        this.consecutiveFailures = consecutiveFailures;
+    }
+
+    /**
+     * @return The time an upstream is ejected for the first time
+     */
+    public Duration getBaseEjectionTime() {
+        return baseEjectionTime;
+    }
+
+    public void setBaseEjectionTime(Duration baseEjectionTime) {
+        this.baseEjectionTime = baseEjectionTime;
+    }
+
+    /**
+     * @return The longest time an upstream is ejected, however often it fails
+     */
+    public Duration getMaxEjectionTime() {
+        return maxEjectionTime;
+    }
+
+    public void setMaxEjectionTime(Duration maxEjectionTime) {
+        this.maxEjectionTime = maxEjectionTime;
+    }
+}
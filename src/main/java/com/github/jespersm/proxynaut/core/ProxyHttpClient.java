@@ -0,0 +1,54 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jespersm.proxynaut.core;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+
+import io.micronaut.http.client.DefaultHttpClient;
+import io.micronaut.http.client.HttpClientConfiguration;
+import io.micronaut.http.client.ssl.NettyClientSslBuilder;
+import io.micronaut.http.codec.MediaTypeCodecRegistry;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.ChannelFuture;
+
+/**
+ * An HTTP client towards an upstream which connects to the addresses from a {@link ProxyDnsCache},
+ * instead of resolving the host of the upstream for every connection. The request still names the
+ * host, as does the TLS handshake.
+ */
+final class ProxyHttpClient extends DefaultHttpClient {
+
+    private final ProxyDnsCache dns;
+
+    ProxyHttpClient(URL url, HttpClientConfiguration configuration, NettyClientSslBuilder sslBuilder,
+            MediaTypeCodecRegistry codecRegistry, ProxyDnsCache dns) {
+        super(url, configuration, sslBuilder, codecRegistry);
+        this.dns = dns;
+        dns.prime(url.getHost());
+    }
+
+    @Override
+    protected ChannelFuture doConnect(Bootstrap bootstrap, String host, int port) {
+        InetAddress address = dns.next(host);
+        if (address == null) {
+            return super.doConnect(bootstrap, host, port);
+        }
+        return bootstrap.connect(new InetSocketAddress(address, port));
+    }
+}
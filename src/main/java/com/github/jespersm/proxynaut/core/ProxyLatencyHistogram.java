@@ -0,0 +1,119 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.jespersm.proxynaut.core;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations, with buckets of at most 12.5% relative width from one microsecond
+ * upwards. Recording is a couple of bit operations and one atomic increment, without allocating.
+ *
+ * If a decay interval is given, all counts are halved once per interval, so percentiles follow
+ * recent behaviour rather than all time.
+ */
+public final class ProxyLatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final long decayNanos;
+    private final AtomicLong nextDecay;
+
+    /**
+     * @param decayNanos The interval to halve the counts at, or 0 to keep all time counts
+     */
+    ProxyLatencyHistogram(long decayNanos) {
+        this.decayNanos = decayNanos;
+        this.nextDecay = new AtomicLong(System.nanoTime() + decayNanos);
+    }
+
+    void record(long nanos) {
+        counts.incrementAndGet(indexOf(TimeUnit.NANOSECONDS.toMicros(nanos)));
+        if (decayNanos > 0) {
+            long decayAt = nextDecay.get();
+            long now = System.nanoTime();
+            if (now - decayAt >= 0 && nextDecay.compareAndSet(decayAt, now + decayNanos)) {
+                for (int i = 0; i < BUCKETS; i++) {
+                    long count = counts.get(i);
+                    counts.addAndGet(i, -(count - count / 2));
+                }
+            }
+        }
+    }
+
+    static int indexOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) Math.max(0, micros);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return The highest duration, in microseconds, that falls into the bucket
+     */
+    static long upperBoundOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = index % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * @return The number of durations recorded (and not decayed)
+     */
+    public long getCount() {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * @param percentile The percentile, e.g. 99.9
+     * @return The duration in nanoseconds below which the given percentage of the recorded durations fall, or 0 if none are recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return TimeUnit.MICROSECONDS.toNanos(upperBoundOf(i));
+            }
+        }
+        return TimeUnit.MICROSECONDS.toNanos(upperBoundOf(BUCKETS - 1));
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.jespersm.proxynaut.core;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.micronaut.context.exceptions.ConfigurationException;
+
+/**
+ * Picks the upstream instance for each request of a route with several upstreams. Implementations
+ * are called concurrently for every request, so they must not block.
+ */
+public interface ProxyLoadBalancer {
+
+    /**
+     * @param upstreams The upstreams of the route, never empty
+     * @return The upstream to send the request to
+     */
+    ProxyUpstream select(ProxyUpstream[] upstreams);
+
+    /**
+     * @param name The name of a strategy: {@code round-robin}, {@code least-outstanding} or {@code peak-ewma}
+     * @return A new balancer using the strategy
+     */
+    static ProxyLoadBalancer forName(String name) {
+        switch (name.toLowerCase(Locale.ENGLISH).replace('_', '-')) {
+            case "round-robin": return new RoundRobin();
+            case "least-outstanding": return new LeastOutstanding();
+            case "peak-ewma": return new PeakEwma();
+            default: throw new ConfigurationException("Unknown load balancing strategy: " + name);
+        }
+    }
+
+    /**
+     * Takes turns.
+     */
+    final class RoundRobin implements ProxyLoadBalancer {
+        private final AtomicInteger next = new AtomicInteger();
+
+        @Override
+        public ProxyUpstream select(ProxyUpstream[] upstreams) {
+            return upstreams[Math.floorMod(next.getAndIncrement(), upstreams.length)];
+        }
+    }
+
+    /**
+     * Picks the upstream with the fewest exchanges in flight, taking turns between equally loaded ones.
+     */
+    final class LeastOutstanding implements ProxyLoadBalancer {
+        private final AtomicInteger next = new AtomicInteger();
+
+        @Override
+        public ProxyUpstream select(ProxyUpstream[] upstreams) {
+            int start = Math.floorMod(next.getAndIncrement(), upstreams.length);
+            ProxyUpstream best = upstreams[start];
+            for (int i = 1; i < upstreams.length && best.getOutstanding() > 0; i++) {
+                ProxyUpstream candidate = upstreams[(start + i) % upstreams.length];
+                if (candidate.getOutstanding() < best.getOutstanding()) {
+                    best = candidate;
+                }
+            }
+            return best;
+        }
+    }
+
+    /**
+     * Picks the cheaper of two random upstreams, by their peak latency average times their load
+     * (see {@link ProxyUpstream#getCost()}), so slow instances get less traffic without any starving.
+     */
+    final class PeakEwma implements ProxyLoadBalancer {
+        @Override
+        public ProxyUpstream select(ProxyUpstream[] upstreams) {
+            if (upstreams.length == 1) {
+                return upstreams[0];
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(upstreams.length);
+            int second = random.nextInt(upstreams.length - 1);
+            if (second >= first) {
+                second++;
+            }
+            ProxyUpstream a = upstreams[first];
+            ProxyUpstream b = upstreams[second];
+            return a.getCost() <= b.getCost() ? a : b;
+        }
+    }
+}
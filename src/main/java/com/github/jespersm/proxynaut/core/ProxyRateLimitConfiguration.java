@@ -0,0 +1,100 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jespersm.proxynaut.core;
+
+/**
+ * Settings for rate limiting a proxied route, taken from the {@code rateLimit} section of the route, e.g.:
+ *
+ * <pre>
+ * proxynaut:
+ *     api:
+ *         rateLimit:
+ *             rate: 500
+ *             burst: 1000
+ *             clientRate: 20
+ *             clientBurst: 50
+ *             clientHeader: X-Api-Key
+ * </pre>
+ *
+ * Each limit is a token bucket, refilled at its rate per second and holding up to its burst. The
+ * route limit applies to all requests together, the client limit to each client separately. Clients
+ * are told apart by their address, or by the value of the client header if one is configured and sent.
+ * A rate of 0 disables the limit.
+ */
+public class ProxyRateLimitConfiguration {
+
+    private double rate;
+    private int burst = 1;
+    private double clientRate;
+    private int clientBurst = 1;
+    private String clientHeader;
+
+    /**
+     * @return The number of requests per second to the route as a whole, or 0 for no limit
+     */
+    public double getRate() {
+        return rate;
+    }
+
+    public void setRate(double rate) {
+        this.rate = rate;
+    }
+
+    /**
+     * @return The number of requests to the route that may arrive at once, after a quiet period
+     */
+    public int getBurst() {
+        return burst;
+    }
+
+    public void setBurst(int burst) {
+        this.burst = Math.max(1, burst);
+    }
+
+    /**
+     * @return The number of requests per second from a single client, or 0 for no limit
+     */
+    public double getClientRate() {
+        return clientRate;
+    }
+
+    public void setClientRate(double clientRate) {
+        this.clientRate = clientRate;
+    }
+
+    /**
+     * @return The number of requests from a single client that may arrive at once, after a quiet period
+     */
+    public int getClientBurst() {
+        return clientBurst;
+    }
+
+    public void setClientBurst(int clientBurst) {
+        this.clientBurst = Math.max(1, clientBurst);
+    }
+
+    /**
+     * @return The request header identifying the client, e.g. an API key, or null to go by the client's address
+     */
+    public String getClientHeader() {
+        return clientHeader;
+    }
+
+    public void setClientHeader(String clientHeader) {
+        this.clientHeader = clientHeader;
+    }
+}
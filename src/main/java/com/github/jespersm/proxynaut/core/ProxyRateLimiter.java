@@ -0,0 +1,129 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jespersm.proxynaut.core;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.micronaut.http.HttpRequest;
+
+/**
+ * The rate limits of a single proxied route, see {@link ProxyRateLimitConfiguration}.
+ *
+ * The token buckets are kept as the time at which they will be full again (the "theoretical arrival
+ * time" of the generic cell rate algorithm), so taking a token is a single compare-and-set, and a
+ * client's bucket is just an {@link AtomicLong}. A bucket that is full is the same as no bucket, so
+ * the buckets of clients that have been quiet long enough to refill are dropped now and then.
+ */
+public class ProxyRateLimiter {
+
+    private static final long SWEEP_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final String name;
+    private final String clientHeader;
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final long clientIntervalNanos;
+    private final long clientToleranceNanos;
+    private final AtomicLong route = new AtomicLong(System.nanoTime());
+    private final Map<String, AtomicLong> clients = new ConcurrentHashMap<>();
+    private final AtomicLong nextSweep = new AtomicLong(System.nanoTime() + SWEEP_NANOS);
+    private final LongAdder rejected = new LongAdder();
+
+    ProxyRateLimiter(String name, ProxyRateLimitConfiguration config) {
+        this.name = name;
+        this.clientHeader = config.getClientHeader();
+        this.intervalNanos = intervalOf(config.getRate());
+        this.toleranceNanos = intervalNanos * (config.getBurst() - 1);
+        this.clientIntervalNanos = intervalOf(config.getClientRate());
+        this.clientToleranceNanos = clientIntervalNanos * (config.getClientBurst() - 1);
+    }
+
+    private static long intervalOf(double rate) {
+        return rate > 0 ? Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate)) : 0;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The number of requests rejected for exceeding a limit
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return The number of clients currently tracked
+     */
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    /**
+     * Takes a token for the request from the client's bucket and the route's.
+     *
+     * @return 0 if the request may proceed, otherwise the number of nanoseconds until it would be allowed
+     */
+    long tryAcquire(HttpRequest<?> request) {
+        long now = System.nanoTime();
+        long wait = 0;
+        if (clientIntervalNanos > 0) {
+            long sweep = nextSweep.get();
+            if (now - sweep >= 0 && nextSweep.compareAndSet(sweep, now + SWEEP_NANOS)) {
+                clients.values().removeIf(bucket -> bucket.get() - now <= 0);
+            }
+            AtomicLong bucket = clients.computeIfAbsent(clientKey(request), key -> new AtomicLong(now));
+            wait = acquire(bucket, now, clientIntervalNanos, clientToleranceNanos);
+        }
+        if (wait == 0 && intervalNanos > 0) {
+            wait = acquire(route, now, intervalNanos, toleranceNanos);
+        }
+        if (wait > 0) {
+            rejected.increment();
+        }
+        return wait;
+    }
+
+    private String clientKey(HttpRequest<?> request) {
+        if (clientHeader != null) {
+            String value = request.getHeaders().get(clientHeader);
+            if (value != null) {
+                return value;
+            }
+        }
+        return Proxy.clientAddress(request);
+    }
+
+    private static long acquire(AtomicLong bucket, long now, long intervalNanos, long toleranceNanos) {
+        for (;;) {
+            long full = bucket.get();
+            long base = full - now > 0 ? full : now;
+            long wait = base - now - toleranceNanos;
+            if (wait > 0) {
+                return wait;
+            }
+            if (bucket.compareAndSet(full, base + intervalNanos)) {
+                return 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jespersm.proxynaut.core;
+
+import io.micronaut.context.event.ApplicationEvent;
+
+/**
+ * Published when the warm-ups of all proxied routes are over, and the proxy is ready for traffic.
+ */
+public class ProxyReadyEvent extends ApplicationEvent {
+
+    ProxyReadyEvent(Proxy proxy) {
+        super(proxy);
+    }
+
+    @Override
+    public Proxy getSource() {
+        return (Proxy) super.getSource();
+    }
+
+    @Override
+    public String toString() {
+        return "Proxy ready: " + getSource().getWarmups().values();
+    }
+}
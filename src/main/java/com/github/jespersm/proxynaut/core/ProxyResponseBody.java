@@ -0,0 +1,351 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jespersm.proxynaut.core;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nullable;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import io.micronaut.core.io.buffer.ByteBuffer;
+import io.micronaut.core.io.buffer.ReferenceCounted;
+import io.reactivex.Flowable;
+import io.reactivex.Scheduler;
+import io.reactivex.internal.subscriptions.EmptySubscription;
+import io.reactivex.internal.subscriptions.SubscriptionHelper;
+import io.reactivex.internal.util.BackpressureHelper;
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * The body of a proxied response, relaying the upstream's (reference counted) buffers as they are
+ * to a single downstream subscriber, which then owns them.
+ *
+ * Buffers that never make it downstream, because the downstream cancelled or the stream failed, are
+ * released here, so nothing is leaked however the exchange ends.
+ *
+ * At most {@code maxQueuedBytes} may be queued for a downstream that reads slower than the
+ * upstream delivers. Beyond that, the upstream exchange is stopped, the queue dropped and the
+ * downstream failed, so a slow client can't make the proxy hold an entire body in memory.
+ *
+ * Given a spool directory, only up to {@code maxMemoryBytes} are queued in memory, and the rest is
+ * spooled to a temporary file, so the upstream can still be read at full speed. The spool is written
+ * and read back on the given scheduler, one buffer ahead of the downstream, and failing to do so
+ * fails the body.
+ */
+final class ProxyResponseBody extends Flowable<ByteBuffer<?>> implements Subscription {
+
+    private final Queue<Queued> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final AtomicBoolean once = new AtomicBoolean();
+    private final AtomicBoolean stopped = new AtomicBoolean();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicLong memoryBytes = new AtomicLong();
+    private final Runnable onCancel;
+    private final long maxQueuedBytes;
+    private final long maxMemoryBytes;
+    private final Path spoolDirectory;
+    private final Scheduler spoolScheduler;
+    private ProxySpool spool;
+    private boolean spoolClosed;
+    private final AtomicBoolean reading = new AtomicBoolean();
+    private final AtomicReference<ByteBuffer<?>> readAhead = new AtomicReference<>();
+
+    private volatile Subscriber<? super ByteBuffer<?>> downstream;
+    private volatile boolean done;
+    private volatile boolean cancelled;
+    private volatile boolean aborted;
+    private Throwable error;
+
+    /**
+     * @param onCancel Invoked once if the downstream cancels, typically to stop the upstream exchange
+     */
+    ProxyResponseBody(Runnable onCancel) {
+        this(onCancel, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param onCancel Invoked once if the downstream cancels or falls too far behind, typically to stop the upstream exchange
+     * @param maxQueuedBytes The number of bytes the downstream may fall behind the upstream
+     */
+    ProxyResponseBody(Runnable onCancel, long maxQueuedBytes) {
+        this(onCancel, maxQueuedBytes, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * @param onCancel Invoked once if the downstream cancels or falls too far behind, typically to stop the upstream exchange
+     * @param maxQueuedBytes The number of bytes the downstream may fall behind the upstream
+     * @param maxMemoryBytes The number of those bytes queued in memory, before spooling the rest
+     * @param spoolDirectory Where to spool to, or null to queue everything in memory
+     */
+    ProxyResponseBody(Runnable onCancel, long maxQueuedBytes, long maxMemoryBytes, @Nullable Path spoolDirectory) {
+        this(onCancel, maxQueuedBytes, maxMemoryBytes, spoolDirectory, Schedulers.io());
+    }
+
+    /**
+     * @param onCancel Invoked once if the downstream cancels or falls too far behind, typically to stop the upstream exchange
+     * @param maxQueuedBytes The number of bytes the downstream may fall behind the upstream
+     * @param maxMemoryBytes The number of those bytes queued in memory, before spooling the rest
+     * @param spoolDirectory Where to spool to, or null to queue everything in memory
+     * @param spoolScheduler Where the spool file is written and read
+     */
+    ProxyResponseBody(Runnable onCancel, long maxQueuedBytes, long maxMemoryBytes, @Nullable Path spoolDirectory,
+            Scheduler spoolScheduler) {
+        this.onCancel = onCancel;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.spoolDirectory = spoolDirectory;
+        this.spoolScheduler = spoolScheduler;
+    }
+
+    void onNext(ByteBuffer<?> buffer) {
+        if (done || cancelled) {
+            release(buffer);
+            return;
+        }
+        int bytes = buffer.readableBytes();
+        Queued queued;
+        ProxySpool spool = bytes > 0 && memoryBytes.get() + bytes > maxMemoryBytes ? spool() : null;
+        if (spool != null) {
+            queued = new Queued(null, bytes);
+        } else {
+            queued = new Queued(buffer, bytes);
+            memoryBytes.addAndGet(bytes);
+        }
+        queuedBytes.addAndGet(bytes);
+        queue.offer(queued);
+        if (spool != null) {
+            spool.write(buffer, e -> {
+                if (e != null) {
+                    abort(e);
+                } else {
+                    queued.written = true;
+                    drain();
+                }
+            });
+        }
+        drain();
+        if (queuedBytes.get() > maxQueuedBytes) {
+            abort(new IOException("The client fell more than " + maxQueuedBytes + " bytes behind the upstream"));
+        }
+    }
+
+    private void abort(Throwable t) {
+        error = t;
+        aborted = true;
+        done = true;
+        stopUpstream();
+        drain();
+    }
+
+    @Nullable
+    private synchronized ProxySpool spool() {
+        if (spool == null && spoolDirectory != null && ! spoolClosed) {
+            spool = ProxySpool.create(spoolDirectory, spoolScheduler);
+        }
+        return spool;
+    }
+
+    private synchronized void closeSpool() {
+        spoolClosed = true;
+        if (spool != null) {
+            spool.close();
+        }
+    }
+
+    /**
+     * @return The number of bytes received from upstream, but not yet taken by the downstream
+     */
+    long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    void onError(Throwable t) {
+        error = t;
+        done = true;
+        drain();
+    }
+
+    void onComplete() {
+        done = true;
+        drain();
+    }
+
+    @Override
+    protected void subscribeActual(Subscriber<? super ByteBuffer<?>> s) {
+        if (once.compareAndSet(false, true)) {
+            s.onSubscribe(this);
+            downstream = s;
+            drain();
+        } else {
+            EmptySubscription.error(new IllegalStateException("The proxied response body allows only a single subscriber"), s);
+        }
+    }
+
+    @Override
+    public void request(long n) {
+        if (SubscriptionHelper.validate(n)) {
+            BackpressureHelper.add(requested, n);
+            drain();
+        }
+    }
+
+    @Override
+    public void cancel() {
+        if (! cancelled) {
+            cancelled = true;
+            stopUpstream();
+            drain();
+        }
+    }
+
+    private void stopUpstream() {
+        if (stopped.compareAndSet(false, true)) {
+            onCancel.run();
+        }
+    }
+
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        for (;;) {
+            if (cancelled) {
+                clear();
+            } else {
+                if (aborted) {
+                    clear();
+                }
+                Subscriber<? super ByteBuffer<?>> s = downstream;
+                if (s != null) {
+                    long r = requested.get();
+                    long e = 0L;
+                    while (e != r) {
+                        boolean d = done;
+                        Queued queued = queue.peek();
+                        if (queued == null) {
+                            if (d) {
+                                terminate(s);
+                                return;
+                            }
+                            break;
+                        }
+                        ByteBuffer<?> buffer = queued.buffer;
+                        if (buffer != null) {
+                            memoryBytes.addAndGet(-queued.bytes);
+                        } else {
+                            // Spooled, so wait for the bytes to be written and then read back
+                            buffer = readAhead.getAndSet(null);
+                            if (buffer == null) {
+                                if (queued.written && reading.compareAndSet(false, true)) {
+                                    spool.read(queued.bytes, this::onRead);
+                                }
+                                break;
+                            }
+                        }
+                        queue.poll();
+                        queuedBytes.addAndGet(-queued.bytes);
+                        s.onNext(buffer);
+                        e++;
+                        if (cancelled) {
+                            break;
+                        }
+                    }
+                    if (e == r && done && queue.isEmpty() && ! cancelled) {
+                        terminate(s);
+                        return;
+                    }
+                    if (e != 0L) {
+                        BackpressureHelper.produced(requested, e);
+                    }
+                }
+            }
+            missed = wip.addAndGet(-missed);
+            if (missed == 0) {
+                break;
+            }
+        }
+    }
+
+    private void onRead(@Nullable ByteBuffer<?> buffer, @Nullable IOException e) {
+        if (e != null) {
+            abort(e);
+        } else {
+            readAhead.set(buffer);
+            if (cancelled || aborted) {
+                // Cleared meanwhile, unless clearing took it already
+                release(readAhead.getAndSet(null));
+            }
+        }
+        reading.set(false);
+        drain();
+    }
+
+    private void terminate(Subscriber<? super ByteBuffer<?>> s) {
+        cancelled = true;
+        closeSpool();
+        Throwable t = error;
+        if (t != null) {
+            s.onError(t);
+        } else {
+            s.onComplete();
+        }
+    }
+
+    private void clear() {
+        Queued queued;
+        while ((queued = queue.poll()) != null) {
+            queuedBytes.addAndGet(-queued.bytes);
+            if (queued.buffer != null) {
+                memoryBytes.addAndGet(-queued.bytes);
+                release(queued.buffer);
+            }
+        }
+        release(readAhead.getAndSet(null));
+        closeSpool();
+    }
+
+    private static void release(@Nullable ByteBuffer<?> buffer) {
+        if (buffer instanceof ReferenceCounted) ((ReferenceCounted)buffer).release();
+    }
+
+    /**
+     * A buffer waiting for the downstream, with its size as received, whatever happens to its reader index.
+     * Spooled buffers have no buffer, their bytes are next in the spool once written.
+     */
+    private static final class Queued {
+        final ByteBuffer<?> buffer;
+        final int bytes;
+        volatile boolean written;
+
+        Queued(@Nullable ByteBuffer<?> buffer, int bytes) {
+            this.buffer = buffer;
+            this.bytes = bytes;
+            this.written = buffer != null;
+        }
+    }
+}
@@ -0,0 +1,581 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.jespersm.proxynaut.core;
+
+import java.io.ByteArrayOutputStream;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.annotation.Nullable;
+
+import io.micronaut.buffer.netty.NettyByteBufferFactory;
+import io.micronaut.core.io.buffer.ByteBuffer;
+import io.micronaut.http.HttpHeaders;
+import io.micronaut.http.HttpMethod;
+import io.micronaut.http.HttpRequest;
+import io.micronaut.http.HttpResponse;
+import io.micronaut.http.HttpStatus;
+import io.micronaut.http.MediaType;
+import io.reactivex.Flowable;
+
+/**
+ * A shared, in-memory cache of the upstream responses of a single proxied route, bounded by the total
+ * size of the cached bodies and evicting the least recently used resources first.
+ *
+ * Only successful responses to {@code GET} requests without credentials are cached, for as long as the
+ * upstream's {@code Cache-Control} ({@code s-maxage} or {@code max-age}) or {@code Expires} allows, and
+ * separately for each combination of the request headers named by {@code Vary}. Larger bodies go to
+ * the {@link ProxyDiskCache disk tier}, if one is configured.
+ */
+public class ProxyResponseCache {
+
+    private final String name;
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final LinkedHashMap<String, Resource> resources = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private final ProxyDiskCache disk;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder stores = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder diskHits = new LongAdder();
+
+    ProxyResponseCache(String name, ProxyCacheConfiguration config) {
+        this.name = name;
+        this.maxBytes = config.getMaxBytes();
+        this.maxEntryBytes = config.getMaxEntryBytes();
+        this.disk = config.getDisk().getDirectory() != null ? new ProxyDiskCache(config.getDisk()) : null;
+    }
+
+    /**
+     * @return A fresh cached response for the request, or null if it must go to the upstream
+     */
+    @Nullable
+    Entry lookup(HttpRequest<?> request) {
+        if (! isCacheable(request)) {
+            return null;
+        }
+        CacheControl requestControl = CacheControl.parse(request.getHeaders());
+        if (requestControl.noStore || requestControl.noCache || requestControl.maxAge == 0) {
+            misses.increment();
+            return null;
+        }
+        String key = keyOf(request);
+        long now = System.currentTimeMillis();
+        synchronized (resources) {
+            Resource resource = resources.get(key);
+            if (resource != null) {
+                for (Iterator<MemoryEntry> variants = resource.variants.iterator(); variants.hasNext(); ) {
+                    MemoryEntry entry = variants.next();
+                    if (entry.isExpired(now)) {
+                        variants.remove();
+                        resource.bytes -= entry.size();
+                        bytes -= entry.size();
+                    } else if (entry.matches(request)) {
+                        if (isTooOld(entry, requestControl, now)) {
+                            break;
+                        }
+                        hits.increment();
+                        return entry;
+                    }
+                }
+                if (resource.variants.isEmpty()) {
+                    resources.remove(key);
+                }
+            }
+        }
+        Entry onDisk = disk != null ? disk.lookup(key, request, now) : null;
+        if (onDisk != null && ! isTooOld(onDisk, requestControl, now)) {
+            hits.increment();
+            diskHits.increment();
+            return onDisk;
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * @param relayedHeaders The response headers to replay on hits, as the proxy relays them, in name and value pairs
+     * @return A fill collecting the body of the upstream response, or null if the response must not be stored
+     */
+    @Nullable
+    Fill startFill(HttpRequest<?> request, HttpResponse<?> upstreamResponse, Supplier<String[]> relayedHeaders) {
+        if (! isCacheable(request) || upstreamResponse.getStatus() != HttpStatus.OK) {
+            return null;
+        }
+        if (CacheControl.parse(request.getHeaders()).noStore) {
+            return null;
+        }
+        HttpHeaders headers = upstreamResponse.getHeaders();
+        CacheControl responseControl = CacheControl.parse(headers);
+        if (responseControl.noStore || responseControl.noCache || responseControl.isPrivate || headers.contains(HttpHeaders.SET_COOKIE)) {
+            return null;
+        }
+        String[] vary = varyOf(headers);
+        if (vary == null) {
+            return null;
+        }
+        // The response may have spent a while in caches upstream already, which counts against its freshness
+        long ageSeconds = ageOf(headers);
+        long freshnessSeconds = freshnessOf(responseControl, headers);
+        if (freshnessSeconds <= ageSeconds) {
+            return null;
+        }
+        String[] varyValues = new String[vary.length];
+        for (int i = 0; i < vary.length; i++) {
+            varyValues[i] = request.getHeaders().get(vary[i]);
+        }
+        long storedAt = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(ageSeconds);
+        Fill fill = new Fill(keyOf(request), upstreamResponse.getContentType().orElse(null), headers.get(HttpHeaders.CONTENT_ENCODING), relayedHeaders.get(), vary, varyValues, storedAt, storedAt + TimeUnit.SECONDS.toMillis(freshnessSeconds));
+        // Bodies known to be too large for memory go straight to disk, where concurrent requests can follow the download
+        if (disk != null && upstreamResponse.getContentLength() > maxEntryBytes) {
+            fill.spill();
+        }
+        return fill;
+    }
+
+    private void store(String key, MemoryEntry entry) {
+        synchronized (resources) {
+            Resource resource = resources.computeIfAbsent(key, k -> new Resource());
+            for (Iterator<MemoryEntry> variants = resource.variants.iterator(); variants.hasNext(); ) {
+                MemoryEntry existing = variants.next();
+                if (existing.isSameVariant(entry)) {
+                    variants.remove();
+                    resource.bytes -= existing.size();
+                    bytes -= existing.size();
+                }
+            }
+            resource.variants.add(entry);
+            resource.bytes += entry.size();
+            bytes += entry.size();
+            stores.increment();
+            evict(resource);
+        }
+    }
+
+    /**
+     * Keeps the compressed form of a body next to it, as long as the entry is still cached.
+     */
+    void storeCompressed(MemoryEntry entry, String encoding, byte[] compressed) {
+        synchronized (resources) {
+            Resource resource = resources.get(entry.key);
+            if (resource == null || ! resource.variants.contains(entry) || entry.compressed != null) {
+                return;
+            }
+            entry.compressedEncoding = encoding;
+            entry.compressed = compressed;
+            resource.bytes += compressed.length;
+            bytes += compressed.length;
+            evict(resource);
+        }
+    }
+
+    private void evict(Resource kept) {
+        // Evict from the least recently used end, but never the resource just stored
+        for (Iterator<Map.Entry<String, Resource>> eldest = resources.entrySet().iterator(); bytes > maxBytes && eldest.hasNext(); ) {
+            Map.Entry<String, Resource> candidate = eldest.next();
+            if (candidate.getValue() != kept) {
+                eldest.remove();
+                bytes -= candidate.getValue().bytes;
+                evictions.increment();
+            }
+        }
+    }
+
+    private static boolean isCacheable(HttpRequest<?> request) {
+        return request.getMethod() == HttpMethod.GET && ! request.getHeaders().contains(HttpHeaders.AUTHORIZATION);
+    }
+
+    private static String keyOf(HttpRequest<?> request) {
+        return request.getUri().toString();
+    }
+
+    /**
+     * @return The lower case names of the headers the response varies by, or null if it varies by anything
+     */
+    @Nullable
+    private static String[] varyOf(HttpHeaders headers) {
+        List<String> names = new ArrayList<>();
+        for (String value : headers.getAll(HttpHeaders.VARY)) {
+            for (String name : value.split(",")) {
+                name = name.trim().toLowerCase(Locale.ENGLISH);
+                if (name.equals("*")) {
+                    return null;
+                }
+                if (! name.isEmpty() && ! names.contains(name)) {
+                    names.add(name);
+                }
+            }
+        }
+        String[] vary = names.toArray(new String[0]);
+        Arrays.sort(vary);
+        return vary;
+    }
+
+    /**
+     * @return Whether the entry is older than the request's {@code max-age} allows
+     */
+    private static boolean isTooOld(Entry entry, CacheControl requestControl, long now) {
+        return requestControl.maxAge >= 0 && now - entry.storedAt > TimeUnit.SECONDS.toMillis(requestControl.maxAge);
+    }
+
+    private static long ageOf(HttpHeaders headers) {
+        String age = headers.get(HttpHeaders.AGE);
+        if (age == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(age.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static long freshnessOf(CacheControl control, HttpHeaders headers) {
+        if (control.sharedMaxAge >= 0) {
+            return control.sharedMaxAge;
+        }
+        if (control.maxAge >= 0) {
+            return control.maxAge;
+        }
+        Instant expires = parseDate(headers.get(HttpHeaders.EXPIRES));
+        if (expires == null) {
+            return 0;
+        }
+        Instant date = parseDate(headers.get(HttpHeaders.DATE));
+        return expires.getEpochSecond() - (date != null ? date : Instant.now()).getEpochSecond();
+    }
+
+    @Nullable
+    private static Instant parseDate(@Nullable String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+        } catch (DateTimeParseException e) {
+            // An invalid date means already expired
+            return Instant.EPOCH;
+        }
+    }
+
+    /**
+     * @return The name of the proxy configuration
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The number of requests answered from the cache
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return The number of requests answered from the disk tier, included in {@link #getHits()}
+     */
+    public long getDiskHits() {
+        return diskHits.sum();
+    }
+
+    /**
+     * @return The number of cacheable requests that went to the upstream
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return The number of responses stored
+     */
+    public long getStores() {
+        return stores.sum();
+    }
+
+    /**
+     * @return The number of resources evicted to stay within the configured sizes, from either tier
+     */
+    public long getEvictions() {
+        return evictions.sum() + (disk != null ? disk.getEvictions() : 0);
+    }
+
+    /**
+     * @return The total size of the response bodies cached in memory
+     */
+    public long getBytes() {
+        synchronized (resources) {
+            return bytes;
+        }
+    }
+
+    /**
+     * @return The total size of the response bodies cached on disk
+     */
+    public long getDiskBytes() {
+        return disk != null ? disk.getBytes() : 0;
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + getHits() + " hits, " + getMisses() + " misses, " + getEvictions() + " evictions, " + getBytes() + " of " + maxBytes + " bytes";
+    }
+
+    private static final class Resource {
+        final List<MemoryEntry> variants = new ArrayList<>(1);
+        long bytes;
+    }
+
+    /**
+     * A cached response, in memory or on disk.
+     */
+    abstract static class Entry {
+        final MediaType contentType;
+        final String contentEncoding;
+        final String[] headers;
+        final String[] vary;
+        final String[] varyValues;
+        // When the response was received, less the Age it already had, so hits tell its age all told
+        final long storedAt;
+        final long expiresAt;
+
+        Entry(@Nullable MediaType contentType, @Nullable String contentEncoding, String[] headers, String[] vary, String[] varyValues, long storedAt, long expiresAt) {
+            this.contentType = contentType;
+            this.contentEncoding = contentEncoding;
+            this.headers = headers;
+            this.vary = vary;
+            this.varyValues = varyValues;
+            this.storedAt = storedAt;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * @return The cached body, for a single response
+         */
+        abstract Flowable<ByteBuffer<?>> body();
+
+        /**
+         * @return The length of the cached body, or -1 if it isn't known yet
+         */
+        abstract long length();
+
+        boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+
+        boolean isSameVariant(Entry other) {
+            return Arrays.equals(vary, other.vary) && Arrays.equals(varyValues, other.varyValues);
+        }
+
+        boolean matches(HttpRequest<?> request) {
+            for (int i = 0; i < vary.length; i++) {
+                String value = request.getHeaders().get(vary[i]);
+                if (value == null ? varyValues[i] != null : ! value.equals(varyValues[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return The age of the cached response in seconds, for the {@code Age} header
+         */
+        long getAgeSeconds() {
+            return Math.max(0, TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - storedAt));
+        }
+    }
+
+    /**
+     * A response cached in memory. The body is never modified once stored, so hits can wrap it without copying.
+     * The body compressed for the first client that asked for it is kept alongside, see {@link ProxyCompression}.
+     */
+    static final class MemoryEntry extends Entry {
+        final String key;
+        final byte[] body;
+        // Both guarded by the cache, and published together through the volatile write
+        String compressedEncoding;
+        volatile byte[] compressed;
+
+        MemoryEntry(String key, byte[] body, @Nullable MediaType contentType, @Nullable String contentEncoding, String[] headers,
+                String[] vary, String[] varyValues, long storedAt, long expiresAt) {
+            super(contentType, contentEncoding, headers, vary, varyValues, storedAt, expiresAt);
+            this.key = key;
+            this.body = body;
+        }
+
+        /**
+         * @return The body compressed with the given encoding, or null if it hasn't been kept
+         */
+        @Nullable
+        byte[] getCompressed(String encoding) {
+            byte[] bytes = compressed;
+            return bytes != null && encoding.equals(compressedEncoding) ? bytes : null;
+        }
+
+        long size() {
+            byte[] bytes = compressed;
+            return body.length + (bytes != null ? bytes.length : 0);
+        }
+
+        @Override
+        Flowable<ByteBuffer<?>> body() {
+            return Flowable.fromCallable(() -> NettyByteBufferFactory.DEFAULT.wrap(body));
+        }
+
+        @Override
+        long length() {
+            return body.length;
+        }
+    }
+
+    /**
+     * Collects the body of an upstream response while it is relayed, storing it once complete.
+     * Bodies larger than the configured maximum entry size are spilled to the disk tier, if there
+     * is one, and otherwise dropped as soon as they exceed it.
+     */
+    final class Fill {
+        private final String key;
+        private final MediaType contentType;
+        private final String contentEncoding;
+        private final String[] headers;
+        private final String[] vary;
+        private final String[] varyValues;
+        private final long storedAt;
+        private final long expiresAt;
+        private ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private ProxyDiskCache.DiskFill diskFill;
+
+        private Fill(String key, @Nullable MediaType contentType, @Nullable String contentEncoding, String[] headers, String[] vary, String[] varyValues,
+                long storedAt, long expiresAt) {
+            this.key = key;
+            this.contentType = contentType;
+            this.contentEncoding = contentEncoding;
+            this.headers = headers;
+            this.vary = vary;
+            this.varyValues = varyValues;
+            this.storedAt = storedAt;
+            this.expiresAt = expiresAt;
+        }
+
+        synchronized void append(ByteBuffer<?> buffer) {
+            if (diskFill != null) {
+                diskFill.append(buffer);
+            } else if (body == null) {
+                return;
+            } else if (body.size() + buffer.readableBytes() > maxEntryBytes) {
+                spill();
+                if (diskFill != null) {
+                    diskFill.append(buffer);
+                }
+            } else {
+                byte[] bytes = buffer.toByteArray();
+                body.write(bytes, 0, bytes.length);
+            }
+        }
+
+        synchronized void complete() {
+            if (diskFill != null) {
+                diskFill.complete();
+            } else if (body != null) {
+                store(key, new MemoryEntry(key, body.toByteArray(), contentType, contentEncoding, headers, vary, varyValues, storedAt, expiresAt));
+            }
+            body = null;
+        }
+
+        /**
+         * Gives up on the fill, e.g. because the exchange failed or was cancelled.
+         */
+        synchronized void abort() {
+            if (diskFill != null) {
+                diskFill.abort();
+            }
+            body = null;
+        }
+
+        private void spill() {
+            ByteArrayOutputStream collected = body;
+            body = null;
+            if (disk != null) {
+                diskFill = disk.startFill(key, contentType, contentEncoding, headers, vary, varyValues, storedAt, expiresAt);
+                if (diskFill != null && collected.size() > 0) {
+                    diskFill.append(NettyByteBufferFactory.DEFAULT.wrap(collected.toByteArray()));
+                }
+            }
+        }
+    }
+
+    /**
+     * The directives of a {@code Cache-Control} header that matter to a shared cache.
+     */
+    static final class CacheControl {
+        boolean noStore;
+        boolean noCache;
+        boolean isPrivate;
+        long maxAge = -1;
+        long sharedMaxAge = -1;
+
+        static CacheControl parse(HttpHeaders headers) {
+            CacheControl control = new CacheControl();
+            for (String value : headers.getAll(HttpHeaders.CACHE_CONTROL)) {
+                for (String directive : value.split(",")) {
+                    int equals = directive.indexOf('=');
+                    String name = (equals < 0 ? directive : directive.substring(0, equals)).trim().toLowerCase(Locale.ENGLISH);
+                    String argument = equals < 0 ? null : directive.substring(equals + 1).trim();
+                    switch (name) {
+                        case "no-store": control.noStore = true; break;
+                        case "no-cache": control.noCache = true; break;
+                        case "private": control.isPrivate = true; break;
+                        case "max-age": control.maxAge = parseSeconds(argument); break;
+                        case "s-maxage": control.sharedMaxAge = parseSeconds(argument); break;
+                        default: break;
+                    }
+                }
+            }
+            if ("no-cache".equalsIgnoreCase(headers.get(HttpHeaders.PRAGMA))) {
+                control.noCache = true;
+            }
+            return control;
+        }
+
+        private static long parseSeconds(@Nullable String argument) {
+            if (argument == null) {
+                return 0;
+            }
+            try {
+                return Long.parseLong(argument.startsWith("\"") ? argument.replace("\"", "") : argument);
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+    }
+}
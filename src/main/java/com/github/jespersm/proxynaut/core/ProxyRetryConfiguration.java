@@ -0,0 +1,127 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.jespersm.proxynaut.core;
+
+import java.time.Duration;
+
+/**
+ * Settings for retrying and hedging the idempotent requests of a proxied route, taken from the
+ * {@code retry} section of the route, e.g.:
+ *
+ * <pre>
+ * proxynaut:
+ *     api:
+ *         retry:
+ *             maxRetries: 2
+ *             hedge: true
+ *             hedgePercentile: 95
+ *             budgetRatio: 0.1
+ * </pre>
+ *
+ * Requests that fail to connect are retried, on another upstream if there are several. With hedging,
+ * a {@code GET} or {@code HEAD} still waiting for headers after the given percentile of recent header
+ * latencies is sent again, and whichever response arrives first is used. Both draw on a budget that
+ * grows with the number of requests, so they can't multiply the load on a failing upstream.
+ */
+public class ProxyRetryConfiguration {
+
+    private int maxRetries = 2;
+    private boolean hedge = false;
+    private double hedgePercentile = 95.0;
+    private Duration hedgeMinDelay = Duration.ofMillis(5);
+    private int hedgeMinSamples = 100;
+    private double budgetRatio = 0.1;
+    private int budgetMax = 10;
+
+    /**
+     * @return The number of times a request that failed to connect is retried
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * @return Whether slow {@code GET} and {@code HEAD} requests are hedged
+     */
+    public boolean isHedge() {
+        return hedge;
+    }
+
+    public void setHedge(boolean hedge) {
+        this.hedge = hedge;
+    }
+
+    /**
+     * @return The percentile of recent times to the upstream headers after which a request is hedged
+     */
+    public double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    public void setHedgePercentile(double hedgePercentile) {
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    /**
+     * @return The shortest time to wait before hedging, whatever the percentile
+     */
+    public Duration getHedgeMinDelay() {
+        return hedgeMinDelay;
+    }
+
+    public void setHedgeMinDelay(Duration hedgeMinDelay) {
+        this.hedgeMinDelay = hedgeMinDelay;
+    }
+
+    /**
+     * @return The number of observed latencies needed before hedging starts
+     */
+    public int getHedgeMinSamples() {
+        return hedgeMinSamples;
+    }
+
+    public void setHedgeMinSamples(int hedgeMinSamples) {
+        this.hedgeMinSamples = hedgeMinSamples;
+    }
+
+    /**
+     * @return The number of retries and hedges each request adds to the budget, e.g. 0.1 for one in ten
+     */
+    public double getBudgetRatio() {
+        return budgetRatio;
+    }
+
+    public void setBudgetRatio(double budgetRatio) {
+        this.budgetRatio = budgetRatio;
+    }
+
+    /**
+     * @return The most retries and hedges the budget can save up, which is also what it starts with
+     */
+    public int getBudgetMax() {
+        return budgetMax;
+    }
+
+    public void setBudgetMax(int budgetMax) {
+        this.budgetMax = budgetMax;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.jespersm.proxynaut.core;
+
+import java.net.ConnectException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.micronaut.http.HttpMethod;
+
+/**
+ * Decides when the requests of a single proxied route are retried or hedged, and keeps the budget
+ * that limits how many extra exchanges that may cost.
+ */
+public class ProxyRetryPolicy {
+
+    private static final long TOKEN = 1000;
+
+    /**
+     * The number of header latencies observed between updates of the hedge delay, once warmed up.
+     */
+    private static final int HEDGE_UPDATE_INTERVAL = 64;
+
+    private final String name;
+    private final ProxyRetryConfiguration config;
+    private final long depositPerRequest;
+    private final long maxBalance;
+    private final AtomicLong balance;
+    private final ProxyLatencyHistogram headerLatency = new ProxyLatencyHistogram(TimeUnit.SECONDS.toNanos(30));
+    private final AtomicLong observations = new AtomicLong();
+    private volatile long hedgeDelayNanos = -1;
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder denied = new LongAdder();
+
+    ProxyRetryPolicy(String name, ProxyRetryConfiguration config) {
+        this.name = name;
+        this.config = config;
+        this.depositPerRequest = Math.round(config.getBudgetRatio() * TOKEN);
+        this.maxBalance = config.getBudgetMax() * TOKEN;
+        this.balance = new AtomicLong(maxBalance);
+    }
+
+    /**
+     * Adds a request's share to the budget.
+     */
+    void deposit() {
+        long current;
+        do {
+            current = balance.get();
+            if (current >= maxBalance) {
+                return;
+            }
+        } while (! balance.compareAndSet(current, Math.min(maxBalance, current + depositPerRequest)));
+    }
+
+    private boolean withdraw() {
+        long current;
+        do {
+            current = balance.get();
+            if (current < TOKEN) {
+                denied.increment();
+                return false;
+            }
+        } while (! balance.compareAndSet(current, current - TOKEN));
+        return true;
+    }
+
+    static boolean isIdempotent(HttpMethod method) {
+        return method == HttpMethod.GET || method == HttpMethod.HEAD || method == HttpMethod.OPTIONS;
+    }
+
+    /**
+     * @return Whether the failed attempt number {@code attempt} (counting from 1) of a request may be retried
+     */
+    boolean shouldRetry(HttpMethod method, int attempt, Throwable failure) {
+        if (attempt > config.getMaxRetries() || ! isIdempotent(method) || ! isConnectFailure(failure)) {
+            return false;
+        }
+        if (withdraw()) {
+            retries.increment();
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean isConnectFailure(Throwable t) {
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The time to wait for headers before hedging the request, or -1 if it must not be hedged
+     */
+    long hedgeDelayNanos(HttpMethod method) {
+        if (! config.isHedge() || (method != HttpMethod.GET && method != HttpMethod.HEAD)) {
+            return -1;
+        }
+        return hedgeDelayNanos;
+    }
+
+    /**
+     * @return Whether the hedge may be sent, as far as the budget goes
+     */
+    boolean tryHedge() {
+        if (withdraw()) {
+            hedges.increment();
+            return true;
+        }
+        return false;
+    }
+
+    void observeHeaderLatency(long nanos) {
+        headerLatency.record(nanos);
+        if (! config.isHedge()) {
+            return;
+        }
+        // Scanning the histogram is too costly for every request, so the delay is only updated now and then
+        long observed = observations.incrementAndGet();
+        if (observed <= config.getHedgeMinSamples() || observed % HEDGE_UPDATE_INTERVAL == 0) {
+            hedgeDelayNanos = headerLatency.getCount() < config.getHedgeMinSamples() ? -1
+                    : Math.max(config.getHedgeMinDelay().toNanos(), headerLatency.getValueAtPercentile(config.getHedgePercentile()));
+        }
+    }
+
+    /**
+     * @return The name of the proxy configuration
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The number of retries sent
+     */
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    /**
+     * @return The number of hedges sent
+     */
+    public long getHedges() {
+        return hedges.sum();
+    }
+
+    /**
+     * @return The number of retries and hedges not sent because the budget was spent
+     */
+    public long getDenied() {
+        return denied.sum();
+    }
+
+    /**
+     * @return The number of retries and hedges the budget currently allows
+     */
+    public double getBudget() {
+        return balance.get() / (double) TOKEN;
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + getRetries() + " retries, " + getHedges() + " hedges, " + getDenied() + " denied, budget " + getBudget();
+    }
+}
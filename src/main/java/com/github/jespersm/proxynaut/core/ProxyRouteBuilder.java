@@ -17,7 +17,10 @@
 package com.github.jespersm.proxynaut.core;
 
 import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
@@ -25,10 +28,13 @@ import io.micronaut.context.ExecutionHandleLocator;
 import io.micronaut.http.HttpMethod;
 import io.micronaut.http.HttpRequest;
 import io.micronaut.web.router.DefaultRouteBuilder;
+import io.micronaut.web.router.UriRoute;
 
 @Singleton  
 public class ProxyRouteBuilder extends DefaultRouteBuilder {
 
+    private final Map<UriRoute, ProxyConfiguration> routeConfigs = new IdentityHashMap<>();
+
     public ProxyRouteBuilder(ExecutionHandleLocator executionHandleLocator, UriNamingStrategy uriNamingStrategy) {
         super(executionHandleLocator, uriNamingStrategy);
     }
@@ -39,8 +45,19 @@ public class ProxyRouteBuilder extends DefaultRouteBuilder {
             String contextPath = config.getContext() + "{+path:?}";
             for (HttpMethod method : HttpMethod.values()) {
                 if (! config.shouldAllowMethod(method)) continue;
-                buildRoute(method, contextPath, Proxy.class, "serve", HttpRequest.class, String.class);
+                // Bodies are relayed as is, whatever their content type
+                UriRoute route = buildRoute(method, contextPath, Proxy.class, "route", HttpRequest.class, String.class).acceptAll();
+                routeConfigs.put(route, config);
             }        
         }
     }
+
+    /**
+     * @param route A route matched by the router
+     * @return The configuration the route was built for, or null if it isn't a proxy route
+     */
+    @Nullable
+    public ProxyConfiguration findConfiguration(UriRoute route) {
+        return routeConfigs.get(route);
+    }
 }
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.jespersm.proxynaut.core;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.reactivestreams.Publisher;
+
+import io.micronaut.core.io.buffer.ByteBuffer;
+import io.micronaut.http.MutableHttpResponse;
+import io.reactivex.Flowable;
+import io.reactivex.functions.Consumer;
+
+/**
+ * Traffic through a single proxied route: how long requests take, how much they stream and how they end.
+ *
+ * The time to the upstream's headers is kept apart from the total time, which lasts until the response
+ * body has been relayed. Everything recorded per chunk or per request is counted in place, without allocating.
+ */
+public class ProxyRouteMetrics {
+
+    private final String name;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder[] statusClasses = new LongAdder[5];
+    private final ProxyLatencyHistogram upstreamHeaderLatency = new ProxyLatencyHistogram(0);
+    private final ProxyLatencyHistogram totalLatency = new ProxyLatencyHistogram(0);
+    private final Consumer<ByteBuffer<?>> countBytesOut = buffer -> bytesOut.add(buffer.readableBytes());
+
+    ProxyRouteMetrics(String name) {
+        this.name = name;
+        for (int i = 0; i < statusClasses.length; i++) {
+            statusClasses[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @return The start of the request, to pass on when it ends
+     */
+    long requestStarted() {
+        requests.increment();
+        inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    void requestEnded(long start) {
+        totalLatency.record(System.nanoTime() - start);
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Counts the response by its status, and its body as it is relayed. The request ends with the body,
+     * or right away if there is no body to stream.
+     */
+    MutableHttpResponse<?> responding(MutableHttpResponse<?> response, long start) {
+        int statusClass = response.getStatus().getCode() / 100;
+        if (statusClass >= 1 && statusClass <= statusClasses.length) {
+            statusClasses[statusClass - 1].increment();
+        }
+        Object body = response.body();
+        if (body instanceof Publisher) {
+            ((MutableHttpResponse<Object>) response).body(Flowable.fromPublisher((Publisher<ByteBuffer<?>>) body)
+                    .doOnNext(countBytesOut)
+                    .doFinally(() -> requestEnded(start)));
+        } else {
+            requestEnded(start);
+        }
+        return response;
+    }
+
+    void upstreamHeadersReceived(long nanos) {
+        upstreamHeaderLatency.record(nanos);
+    }
+
+    void timedOut() {
+        timeouts.increment();
+    }
+
+    void received(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    /**
+     * @return The name of the proxy configuration
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The number of requests served, from the upstream or otherwise
+     */
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    /**
+     * @return The number of requests whose response hasn't been fully relayed yet
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return The number of requests that timed out, whether waiting for the upstream's headers or,
+     * after them, for the rest of the body to arrive, be it a pause in it or the exchange as a whole
+     */
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    /**
+     * @return The number of request body bytes relayed to the upstream
+     */
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    /**
+     * @return The number of response body bytes relayed to the clients
+     */
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    /**
+     * @param statusClass The first digit of the status, e.g. 5 for 5xx
+     * @return The number of responses with a status in the class
+     */
+    public long getResponses(int statusClass) {
+        return statusClass >= 1 && statusClass <= statusClasses.length ? statusClasses[statusClass - 1].sum() : 0;
+    }
+
+    /**
+     * @return The times from sending a request upstream to receiving its headers
+     */
+    public ProxyLatencyHistogram getUpstreamHeaderLatency() {
+        return upstreamHeaderLatency;
+    }
+
+    /**
+     * @return The times from receiving a request to having relayed the whole response
+     */
+    public ProxyLatencyHistogram getTotalLatency() {
+        return totalLatency;
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + getRequests() + " requests, " + getInFlight() + " in flight, " + getTimeouts() + " timeouts, "
+                + getBytesIn() + " bytes in, " + getBytesOut() + " bytes out, upstream headers p99 "
+                + upstreamHeaderLatency.getValueAtPercentile(99) / 1000 + " us, total p99 " + totalLatency.getValueAtPercentile(99) / 1000 + " us";
+    }
+}
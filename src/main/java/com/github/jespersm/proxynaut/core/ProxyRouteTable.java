@@ -0,0 +1,100 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jespersm.proxynaut.core;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.annotation.Nullable;
+
+/**
+ * Immutable prefix trie over the configured proxy contexts, built once at startup.
+ * Lookups find the longest configured context that prefixes a request path, without allocating.
+ */
+final class ProxyRouteTable {
+
+    private final Node root;
+
+    ProxyRouteTable(Collection<ProxyConfiguration> configs) {
+        Builder rootBuilder = new Builder();
+        for (ProxyConfiguration config : configs) {
+            String context = config.getContext();
+            if (context == null) continue;
+            Builder node = rootBuilder;
+            for (int i = 0; i < context.length(); i++) {
+                node = node.children.computeIfAbsent(context.charAt(i), c -> new Builder());
+            }
+            // Like the router, the first configuration for a context wins
+            if (node.config == null) {
+                node.config = config;
+            }
+        }
+        this.root = rootBuilder.build();
+    }
+
+    /**
+     * @param path The request path
+     * @return The configuration with the longest context that is a prefix of the path, or null if there is none
+     */
+    @Nullable
+    ProxyConfiguration findLongestPrefix(String path) {
+        Node node = root;
+        ProxyConfiguration best = node.config;
+        for (int i = 0; i < path.length(); i++) {
+            int index = Arrays.binarySearch(node.labels, path.charAt(i));
+            if (index < 0) {
+                break;
+            }
+            node = node.children[index];
+            if (node.config != null) {
+                best = node.config;
+            }
+        }
+        return best;
+    }
+
+    private static final class Node {
+        final char[] labels;
+        final Node[] children;
+        final ProxyConfiguration config;
+
+        Node(char[] labels, Node[] children, ProxyConfiguration config) {
+            this.labels = labels;
+            this.children = children;
+            this.config = config;
+        }
+    }
+
+    private static final class Builder {
+        final Map<Character, Builder> children = new TreeMap<>();
+        ProxyConfiguration config;
+
+        Node build() {
+            char[] labels = new char[children.size()];
+            Node[] nodes = new Node[children.size()];
+            int i = 0;
+            for (Map.Entry<Character, Builder> child : children.entrySet()) {
+                labels[i] = child.getKey();
+                nodes[i] = child.getValue().build();
+                i++;
+            }
+            return new Node(labels, nodes, config);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jespersm.proxynaut.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.micronaut.buffer.netty.NettyByteBufferFactory;
+import io.micronaut.core.io.buffer.ByteBuffer;
+import io.micronaut.core.io.buffer.ReferenceCounted;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.reactivex.Scheduler;
+
+/**
+ * A temporary file holding the part of a response body a slow client hasn't taken yet. Bytes are
+ * read back in the order they were written, and the file is deleted when the spool is closed.
+ *
+ * The file is created, written, read and deleted in the background, one operation at a time on a
+ * worker of the given scheduler, so the event loops relaying the response never wait for the disk.
+ * Buffers handed to the spool are held in memory until written.
+ */
+final class ProxySpool implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ProxySpool.class);
+
+    private final Path directory;
+    private final Scheduler.Worker worker;
+    // Confined to the worker
+    private Path file;
+    private FileChannel channel;
+    private IOException failure;
+    private long written;
+    private long read;
+    // Guarded by this
+    private boolean closed;
+
+    private ProxySpool(Path directory, Scheduler.Worker worker) {
+        this.directory = directory;
+        this.worker = worker;
+    }
+
+    /**
+     * @return A new spool, whose file is created in the directory in the background
+     */
+    static ProxySpool create(Path directory, Scheduler scheduler) {
+        ProxySpool spool = new ProxySpool(directory, scheduler.createWorker());
+        spool.worker.schedule(spool::open);
+        return spool;
+    }
+
+    private void open() {
+        try {
+            Files.createDirectories(directory);
+            file = Files.createTempFile(directory, "proxynaut-", ".spool");
+            channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+        } catch (IOException e) {
+            LOG.warn("Unable to spool response to {}: {}", directory, e.getMessage());
+            failure = e;
+        }
+    }
+
+    /**
+     * Appends the readable bytes of a buffer in the background, then releases the buffer.
+     *
+     * @param done Given null once the bytes are written, or the reason they weren't
+     */
+    synchronized void write(ByteBuffer<?> buffer, Consumer<IOException> done) {
+        if (closed) {
+            release(buffer);
+            done.accept(new IOException("The spool is closed"));
+            return;
+        }
+        worker.schedule(() -> {
+            IOException error = failure;
+            if (error == null) {
+                try {
+                    java.nio.ByteBuffer nioBuffer = buffer.asNioBuffer();
+                    long position = written;
+                    while (nioBuffer.hasRemaining()) {
+                        position += channel.write(nioBuffer, position);
+                    }
+                    written = position;
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+            release(buffer);
+            done.accept(error);
+        });
+    }
+
+    /**
+     * Reads the next bytes written in the background, into a new buffer owned by the caller.
+     *
+     * @param done Given the buffer read, or the reason it couldn't be
+     */
+    synchronized void read(int length, BiConsumer<ByteBuffer<?>, IOException> done) {
+        if (closed) {
+            done.accept(null, new IOException("The spool is closed"));
+            return;
+        }
+        worker.schedule(() -> {
+            if (failure != null) {
+                done.accept(null, failure);
+                return;
+            }
+            ByteBuf buf = ByteBufAllocator.DEFAULT.ioBuffer(length);
+            try {
+                while (buf.readableBytes() < length) {
+                    int n = buf.writeBytes(channel, read, length - buf.readableBytes());
+                    if (n < 0) {
+                        throw new IOException("Unexpected end of " + file);
+                    }
+                    read += n;
+                }
+            } catch (IOException e) {
+                buf.release();
+                done.accept(null, e);
+                return;
+            }
+            done.accept(NettyByteBufferFactory.DEFAULT.wrap(buf), null);
+        });
+    }
+
+    /**
+     * Deletes the file in the background, once the writes and reads already asked for are done.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        worker.schedule(() -> {
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                LOG.debug("Unable to close {}: {}", file, e.getMessage());
+            } finally {
+                worker.dispose();
+            }
+        });
+    }
+
+    private static void release(ByteBuffer<?> buffer) {
+        if (buffer instanceof ReferenceCounted) ((ReferenceCounted)buffer).release();
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jespersm.proxynaut.core;
+
+import java.time.Duration;
+
+/**
+ * Settings for the timeouts of each phase of an exchange with the upstream of a proxied route,
+ * taken from the {@code timeouts} section of the route, e.g.:
+ *
+ * <pre>
+ * proxynaut:
+ *     api:
+ *         timeouts:
+ *             connect: 2s
+ *             firstByte: 10s
+ *             bodyIdle: 30s
+ *             total: 5m
+ * </pre>
+ *
+ * Phases without a timeout may take as long as they take, except for the wait for the upstream's
+ * headers, which falls back to the route's {@code timeoutMs}.
+ */
+public class ProxyTimeoutConfiguration {
+
+    private Duration connect;
+    private Duration firstByte;
+    private Duration bodyIdle;
+    private Duration total;
+
+    /**
+     * @return The time to connect to the upstream, or null for the client's default
+     */
+    public Duration getConnect() {
+        return connect;
+    }
+
+    public void setConnect(Duration connect) {
+        this.connect = connect;
+    }
+
+    /**
+     * @return The time from sending the request to receiving the upstream's headers, or null for the route's {@code timeoutMs}
+     */
+    public Duration getFirstByte() {
+        return firstByte;
+    }
+
+    public void setFirstByte(Duration firstByte) {
+        this.firstByte = firstByte;
+    }
+
+    /**
+     * @return The longest pause in the upstream's response body, or null for no limit
+     */
+    public Duration getBodyIdle() {
+        return bodyIdle;
+    }
+
+    public void setBodyIdle(Duration bodyIdle) {
+        this.bodyIdle = bodyIdle;
+    }
+
+    /**
+     * @return The time from sending the request to receiving the whole response body, or null for no limit
+     */
+    public Duration getTotal() {
+        return total;
+    }
+
+    public void setTotal(Duration total) {
+        this.total = total;
+    }
+}
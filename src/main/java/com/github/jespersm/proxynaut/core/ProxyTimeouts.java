@@ -0,0 +1,200 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jespersm.proxynaut.core;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import io.micronaut.core.io.buffer.ByteBuffer;
+import io.micronaut.core.io.buffer.ReferenceCounted;
+import io.micronaut.http.HttpResponse;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.reactivex.Flowable;
+import io.reactivex.FlowableSubscriber;
+import io.reactivex.internal.subscriptions.SubscriptionHelper;
+
+/**
+ * The timeouts of exchanges with the upstreams, all scheduled on one hashed wheel timer, rather than a
+ * task on a scheduler per request.
+ *
+ * An exchange may have to get the upstream's headers within one timeout, may not pause in its body
+ * for longer than another, and may have to be done within a third. When one expires, the upstream
+ * exchange is cancelled and a {@link TimeoutException} signalled downstream in its place. The pause
+ * in the body is checked once per timeout rather than rescheduled for every chunk.
+ */
+final class ProxyTimeouts implements Closeable {
+
+    private final HashedWheelTimer timer = new HashedWheelTimer(new DefaultThreadFactory("proxynaut-timeouts", true),
+            10, TimeUnit.MILLISECONDS, 512);
+
+    /**
+     * @param firstByteNanos The time to the headers, or 0 for no limit
+     * @param bodyIdleNanos The longest pause between the chunks of the body, or 0 for no limit
+     * @param totalNanos The time to the end of the body, or 0 for no limit
+     */
+    Flowable<HttpResponse<ByteBuffer<?>>> apply(Flowable<HttpResponse<ByteBuffer<?>>> source, long firstByteNanos, long bodyIdleNanos, long totalNanos) {
+        if (firstByteNanos <= 0 && bodyIdleNanos <= 0 && totalNanos <= 0) {
+            return source;
+        }
+        return new Flowable<HttpResponse<ByteBuffer<?>>>() {
+            @Override
+            protected void subscribeActual(Subscriber<? super HttpResponse<ByteBuffer<?>>> s) {
+                source.subscribe(new TimeoutSubscriber(s, firstByteNanos, bodyIdleNanos, totalNanos));
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        timer.stop();
+    }
+
+    private final class TimeoutSubscriber implements FlowableSubscriber<HttpResponse<ByteBuffer<?>>>, Subscription {
+        private final Subscriber<? super HttpResponse<ByteBuffer<?>>> downstream;
+        private final long firstByteNanos;
+        private final long bodyIdleNanos;
+        private final long totalNanos;
+        private Subscription upstream;
+        private volatile long lastReceived;
+        private volatile Timeout phase;
+        private volatile Timeout deadline;
+        // Guarded by this
+        private boolean received;
+        private boolean done;
+
+        TimeoutSubscriber(Subscriber<? super HttpResponse<ByteBuffer<?>>> downstream, long firstByteNanos, long bodyIdleNanos, long totalNanos) {
+            this.downstream = downstream;
+            this.firstByteNanos = firstByteNanos;
+            this.bodyIdleNanos = bodyIdleNanos;
+            this.totalNanos = totalNanos;
+        }
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            if (SubscriptionHelper.validate(upstream, s)) {
+                upstream = s;
+                if (totalNanos > 0) {
+                    deadline = timer.newTimeout(t -> expire("No complete upstream response within " + totalNanos / 1_000_000 + " ms"),
+                            totalNanos, TimeUnit.NANOSECONDS);
+                }
+                if (firstByteNanos > 0) {
+                    phase = timer.newTimeout(t -> expire("No upstream headers within " + firstByteNanos / 1_000_000 + " ms"),
+                            firstByteNanos, TimeUnit.NANOSECONDS);
+                }
+                downstream.onSubscribe(this);
+            }
+        }
+
+        @Override
+        public void onNext(HttpResponse<ByteBuffer<?>> response) {
+            lastReceived = System.nanoTime();
+            synchronized (this) {
+                if (done) {
+                    // Expired in the meantime, and nobody else will release the body
+                    ByteBuffer<?> body = response.body();
+                    if (body instanceof ReferenceCounted) ((ReferenceCounted) body).release();
+                    return;
+                }
+                if (! received) {
+                    received = true;
+                    cancel(phase);
+                    if (bodyIdleNanos > 0) {
+                        phase = timer.newTimeout(t -> checkIdle(), bodyIdleNanos, TimeUnit.NANOSECONDS);
+                    }
+                }
+                downstream.onNext(response);
+            }
+        }
+
+        private void checkIdle() {
+            long idle = System.nanoTime() - lastReceived;
+            if (idle >= bodyIdleNanos) {
+                expire("No upstream body for " + bodyIdleNanos / 1_000_000 + " ms");
+            } else if (! isDone()) {
+                phase = timer.newTimeout(t -> checkIdle(), bodyIdleNanos - idle, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private synchronized boolean isDone() {
+            return done;
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                done = true;
+                cancelTimeouts();
+                downstream.onError(t);
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                done = true;
+                cancelTimeouts();
+                downstream.onComplete();
+            }
+        }
+
+        private void expire(String reason) {
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                done = true;
+                cancelTimeouts();
+                upstream.cancel();
+                downstream.onError(new TimeoutException(reason));
+            }
+        }
+
+        @Override
+        public void request(long n) {
+            upstream.request(n);
+        }
+
+        @Override
+        public void cancel() {
+            cancelTimeouts();
+            upstream.cancel();
+        }
+
+        private void cancelTimeouts() {
+            cancel(phase);
+            cancel(deadline);
+        }
+
+        private void cancel(Timeout timeout) {
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.jespersm.proxynaut.core;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.micronaut.http.client.RxStreamingHttpClient;
+
+/**
+ * One upstream instance of a proxied route, with the client towards it and the load it carries,
+ * as seen by the {@link ProxyLoadBalancer}.
+ */
+public class ProxyUpstream {
+
+    /**
+     * The time it takes the latency average to forget a peak, roughly.
+     */
+    private static final long DECAY_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final URI uri;
+    private final RxStreamingHttpClient client;
+    private final ProxyHealthConfiguration health;
+    private final long decayNanos;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final LongAdder exchanges = new LongAdder();
+    private final AtomicReference<Latency> latency = new AtomicReference<>(new Latency(0.0, System.nanoTime()));
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicInteger ejections = new AtomicInteger();
+    private volatile long ejectedUntil;
+    private volatile boolean ejected;
+    private volatile boolean probedHealthy = true;
+
+    ProxyUpstream(URI uri, RxStreamingHttpClient client, ProxyHealthConfiguration health) {
+        this(uri, client, health, DECAY_NANOS);
+    }
+
+    ProxyUpstream(URI uri, RxStreamingHttpClient client, ProxyHealthConfiguration health, long decayNanos) {
+        this.uri = uri;
+        this.client = client;
+        this.health = health;
+        this.decayNanos = decayNanos;
+    }
+
+    RxStreamingHttpClient getClient() {
+        return client;
+    }
+
+    void exchangeStarted() {
+        exchanges.increment();
+        outstanding.incrementAndGet();
+    }
+
+    void exchangeEnded() {
+        outstanding.decrementAndGet();
+    }
+
+    /**
+     * Records the time it took the upstream to respond, as a moving average that jumps to any peak
+     * right away, but only decays slowly from it.
+     */
+    void observeLatency(long nanos) {
+        for (;;) {
+            Latency current = latency.get();
+            long now = System.nanoTime();
+            double next;
+            if (nanos > current.average) {
+                next = nanos;
+            } else {
+                double weight = current.weightAt(now, decayNanos);
+                next = current.average * weight + nanos * (1.0 - weight);
+            }
+            if (latency.compareAndSet(current, new Latency(next, now))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Records the outcome of an exchange, ejecting the upstream after too many failures in a row.
+     * Each ejection in a row lasts twice as long as the one before, up to the configured maximum.
+     */
+    void observeOutcome(boolean failed) {
+        long now = System.nanoTime();
+        if (! failed) {
+            consecutiveFailures.set(0);
+            // Forgive earlier ejections once the upstream has behaved for as long as the last one lasted
+            if (ejections.get() > 0 && now - ejectedUntil > ejectionNanos(ejections.get())) {
+                ejections.set(0);
+            }
+            return;
+        }
+        int threshold = health.getConsecutiveFailures();
+        if (threshold > 0 && consecutiveFailures.incrementAndGet() == threshold) {
+            long duration = ejectionNanos(ejections.incrementAndGet());
+            ejectedUntil = now + duration;
+            ejected = true;
+            consecutiveFailures.set(0);
+            ProxyUpstreamGroup.LOG.warn("Ejecting upstream {} for {} ms after {} failures in a row", uri, TimeUnit.NANOSECONDS.toMillis(duration), threshold);
+        }
+    }
+
+    private long ejectionNanos(int ejection) {
+        long base = health.getBaseEjectionTime().toNanos();
+        long max = health.getMaxEjectionTime().toNanos();
+        int doublings = Math.min(ejection - 1, 30);
+        return base > (max >> doublings) ? max : base << doublings;
+    }
+
+    void setProbedHealthy(boolean healthy) {
+        if (healthy != probedHealthy) {
+            probedHealthy = healthy;
+            ProxyUpstreamGroup.LOG.warn("Health check of upstream {} is now {}", uri, healthy ? "passing" : "failing");
+        }
+    }
+
+    /**
+     * @return Whether requests may be sent to this upstream, i.e. it passes its health checks and isn't ejected
+     */
+    public boolean isAvailable() {
+        if (! probedHealthy) {
+            return false;
+        }
+        if (ejected && System.nanoTime() - ejectedUntil >= 0) {
+            ejected = false;
+        }
+        return ! ejected;
+    }
+
+    /**
+     * @return Whether the last health check of this upstream passed, or true if it isn't probed
+     */
+    public boolean isProbedHealthy() {
+        return probedHealthy;
+    }
+
+    /**
+     * @return The number of times in a row this upstream has been ejected
+     */
+    public int getEjections() {
+        return ejections.get();
+    }
+
+    /**
+     * @return The expected cost of sending one more request to this upstream, by its peak latency and load
+     */
+    double getCost() {
+        return averageLatency() * (outstanding.get() + 1);
+    }
+
+    /**
+     * The latency average, decayed for the time since it was last observed, so an upstream that isn't
+     * picked because of a past peak gets cheaper until it is picked again.
+     */
+    private double averageLatency() {
+        Latency current = latency.get();
+        return current.average * current.weightAt(System.nanoTime(), decayNanos);
+    }
+
+    /**
+     * @return The URI of the upstream
+     */
+    public URI getUri() {
+        return uri;
+    }
+
+    /**
+     * @return The number of exchanges with this upstream currently in flight
+     */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * @return The number of exchanges started with this upstream
+     */
+    public long getExchanges() {
+        return exchanges.sum();
+    }
+
+    /**
+     * @return The peak-sensitive moving average of the time to the upstream's response headers, in milliseconds
+     */
+    public double getLatencyMillis() {
+        return averageLatency() / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    @Override
+    public String toString() {
+        return uri + (isAvailable() ? "" : " (unavailable)") + ": " + getOutstanding() + " outstanding, " + getExchanges() + " exchanges, " + String.format("%.1f", getLatencyMillis()) + " ms";
+    }
+
+    private static final class Latency {
+        final double average;
+        final long at;
+
+        Latency(double average, long at) {
+            this.average = average;
+            this.at = at;
+        }
+
+        double weightAt(long now, long decayNanos) {
+            return Math.exp(- Math.max(0, now - at) / (double) decayNanos);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.jespersm.proxynaut.core;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.micronaut.http.HttpRequest;
+import io.reactivex.Flowable;
+import io.reactivex.disposables.Disposable;
+
+/**
+ * The upstream instances of a single proxied route and the balancer choosing between them, leaving
+ * out the instances that fail their health checks or have been ejected for failing exchanges.
+ */
+final class ProxyUpstreamGroup {
+
+    static final Logger LOG = LoggerFactory.getLogger(ProxyUpstreamGroup.class);
+
+    private final ProxyUpstream[] upstreams;
+    private final ProxyLoadBalancer balancer;
+    private final Disposable probes;
+
+    ProxyUpstreamGroup(List<ProxyUpstream> upstreams, ProxyLoadBalancer balancer, ProxyHealthConfiguration health) {
+        this.upstreams = upstreams.toArray(new ProxyUpstream[0]);
+        this.balancer = balancer;
+        this.probes = health.getPath() != null ? startProbes(health) : null;
+    }
+
+    /**
+     * @return The upstream to send a request to, or null if none of them are available
+     */
+    @Nullable
+    ProxyUpstream select() {
+        int available = 0;
+        for (ProxyUpstream upstream : upstreams) {
+            if (upstream.isAvailable()) available++;
+        }
+        if (available == upstreams.length) {
+            return upstreams.length == 1 ? upstreams[0] : balancer.select(upstreams);
+        }
+        if (available == 0) {
+            return null;
+        }
+        ProxyUpstream[] candidates = new ProxyUpstream[available];
+        int i = 0;
+        for (ProxyUpstream upstream : upstreams) {
+            if (upstream.isAvailable() && i < available) candidates[i++] = upstream;
+        }
+        return i == 1 ? candidates[0] : balancer.select(i == available ? candidates : Arrays.copyOf(candidates, i));
+    }
+
+    private Disposable startProbes(ProxyHealthConfiguration health) {
+        long intervalMs = health.getInterval().toMillis();
+        return Flowable.interval(0, intervalMs, TimeUnit.MILLISECONDS)
+                .onBackpressureDrop()
+                .flatMapCompletable(tick -> Flowable.fromArray(upstreams).flatMapCompletable(upstream -> upstream.getClient()
+                        .exchange(HttpRequest.GET(upstream.getUri().getPath() + health.getPath()))
+                        .firstOrError()
+                        .timeout(health.getTimeout().toMillis(), TimeUnit.MILLISECONDS)
+                        .doOnSuccess(response -> upstream.setProbedHealthy(response.getStatus().getCode() < 400))
+                        .doOnError(e -> {
+                            LOG.debug("Health check of upstream {} failed: {}", upstream.getUri(), e.toString());
+                            upstream.setProbedHealthy(false);
+                        })
+                        .ignoreElement()
+                        .onErrorComplete()), false, 1)
+                .subscribe(() -> {}, e -> LOG.error("Health checks stopped: " + e.getMessage(), e));
+    }
+
+    List<ProxyUpstream> getUpstreams() {
+        return Collections.unmodifiableList(Arrays.asList(upstreams));
+    }
+
+    void close() {
+        if (probes != null) {
+            probes.dispose();
+        }
+        for (ProxyUpstream upstream : upstreams) {
+            upstream.getClient().stop();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jespersm.proxynaut.core;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.reactivestreams.Publisher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.micronaut.core.io.buffer.ReferenceCounted;
+import io.micronaut.http.HttpRequest;
+import io.micronaut.http.MutableHttpResponse;
+import io.micronaut.http.client.exceptions.HttpClientResponseException;
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
+import io.reactivex.Single;
+
+/**
+ * The warm-up of a single proxied route, see {@link ProxyWarmupConfiguration}, and how it went.
+ *
+ * Any response from an upstream means its connection is open, even an error status. A warm-up that
+ * fails or times out is logged and counted, but doesn't keep the proxy from being ready, as the
+ * route works as well as it would have without a warm-up.
+ */
+public class ProxyWarmup {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ProxyWarmup.class);
+
+    private final String name;
+    private final ProxyWarmupConfiguration config;
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private volatile long elapsedNanos = -1;
+
+    ProxyWarmup(String name, ProxyWarmupConfiguration config) {
+        this.name = name;
+        this.config = config;
+    }
+
+    /**
+     * @param upstreams The upstreams to open connections to
+     * @param relay Relays one request through the proxy to the route
+     */
+    Completable run(List<ProxyUpstream> upstreams, Supplier<Single<MutableHttpResponse<?>>> relay) {
+        long start = System.nanoTime();
+        Completable connect = Flowable.fromIterable(upstreams)
+                .flatMapCompletable(upstream -> Flowable.range(0, config.getConnections())
+                        .flatMapCompletable(i -> upstream.getClient()
+                                .exchange(HttpRequest.GET(upstream.getUri().getPath() + config.getPath()))
+                                .ignoreElements()
+                                .onErrorComplete(e -> e instanceof HttpClientResponseException)
+                                .doOnComplete(connections::increment)
+                                .doOnError(e -> fail("connect to " + upstream.getUri(), e))
+                                .onErrorComplete()));
+        Completable relayed = Flowable.range(0, config.getRequests())
+                .concatMapCompletable(i -> Single.defer(relay::get)
+                        .flatMapCompletable(ProxyWarmup::drain)
+                        .doOnComplete(requests::increment)
+                        .doOnError(e -> fail("relay a request", e))
+                        .onErrorComplete());
+        return connect.andThen(relayed)
+                .timeout(config.getTimeout().toMillis(), TimeUnit.MILLISECONDS)
+                .doOnError(e -> fail("finish in time", e))
+                .onErrorComplete()
+                .doOnComplete(() -> {
+                    elapsedNanos = System.nanoTime() - start;
+                    LOG.info("Warmed up {}: {}", name, this);
+                });
+    }
+
+    private void fail(String what, Throwable e) {
+        failures.increment();
+        LOG.warn("Warm-up of {} failed to {}: {}", name, what, e.toString());
+    }
+
+    private static Completable drain(MutableHttpResponse<?> response) {
+        Object body = response.body();
+        if (! (body instanceof Publisher)) {
+            return Completable.complete();
+        }
+        return Flowable.fromPublisher((Publisher<?>) body)
+                .doOnNext(chunk -> {
+                    if (chunk instanceof ReferenceCounted) ((ReferenceCounted) chunk).release();
+                })
+                .ignoreElements();
+    }
+
+    /**
+     * @return The name of the proxy configuration
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return Whether the warm-up is over, however it went
+     */
+    public boolean isDone() {
+        return elapsedNanos >= 0;
+    }
+
+    /**
+     * @return The time the warm-up took in milliseconds, or -1 if it isn't over
+     */
+    public long getElapsedMillis() {
+        long elapsed = elapsedNanos;
+        return elapsed < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(elapsed);
+    }
+
+    /**
+     * @return The number of connections opened to the upstreams
+     */
+    public long getConnections() {
+        return connections.sum();
+    }
+
+    /**
+     * @return The number of requests relayed through the proxy
+     */
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    /**
+     * @return The number of connections and requests that failed, plus one if the warm-up timed out
+     */
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    @Override
+    public String toString() {
+        return getConnections() + " connections, " + getRequests() + " requests, " + getFailures() + " failures"
+                + (isDone() ? " in " + getElapsedMillis() + " ms" : "");
+    }
+}
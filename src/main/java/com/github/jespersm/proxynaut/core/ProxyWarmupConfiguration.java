@@ -0,0 +1,93 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jespersm.proxynaut.core;
+
+import java.time.Duration;
+
+/**
+ * Settings for warming up a proxied route when the server starts, taken from the {@code warmup}
+ * section of the route, e.g.:
+ *
+ * <pre>
+ * proxynaut:
+ *     api:
+ *         warmup:
+ *             connections: 8
+ *             path: /ping
+ *             requests: 100
+ *             timeout: 30s
+ * </pre>
+ *
+ * The clients of the route are created right away, and each upstream is sent as many concurrent
+ * requests as there are connections to open, which stay open for later requests if the client has
+ * a connection pool. Then requests are relayed through the proxy itself, one after the other, so
+ * the code relaying them is compiled before the first real request arrives.
+ *
+ * Opening connections is pointless without a pool, which the proxy warns about at startup. A pooled
+ * client doesn't use the route's {@code dns} section, so the two don't go together.
+ */
+public class ProxyWarmupConfiguration {
+
+    private int connections = 1;
+    private String path = "/";
+    private int requests = 0;
+    private Duration timeout = Duration.ofSeconds(30);
+
+    /**
+     * @return The number of connections to open to each upstream
+     */
+    public int getConnections() {
+        return connections;
+    }
+
+    public void setConnections(int connections) {
+        this.connections = connections;
+    }
+
+    /**
+     * @return The path requested, relative to each upstream's URI, and to the route's context when relayed
+     */
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    /**
+     * @return The number of requests relayed through the proxy after opening the connections
+     */
+    public int getRequests() {
+        return requests;
+    }
+
+    public void setRequests(int requests) {
+        this.requests = requests;
+    }
+
+    /**
+     * @return The time the warm-up may take before the route is reported ready anyway
+     */
+    public Duration getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(Duration timeout) {
+        this.timeout = timeout;
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jespersm.proxynaut.core;
+
+import javax.inject.Singleton;
+
+import io.micronaut.context.event.ApplicationEventListener;
+import io.micronaut.runtime.server.event.ServerStartupEvent;
+
+/**
+ * Starts warming up the proxied routes as soon as the server is listening, see {@link Proxy#warmUp()}.
+ */
+@Singleton
+public class ProxyWarmupListener implements ApplicationEventListener<ServerStartupEvent> {
+
+    private final Proxy proxy;
+
+    public ProxyWarmupListener(Proxy proxy) {
+        this.proxy = proxy;
+    }
+
+    @Override
+    public void onApplicationEvent(ServerStartupEvent event) {
+        proxy.warmUp();
+    }
+}
@@ -37,6 +37,7 @@ import io.micronaut.http.HttpMethod;
 import io.micronaut.http.HttpRequest;
 import io.micronaut.http.HttpResponse;
 import io.micronaut.http.HttpStatus;
+import io.micronaut.http.MediaType;
 import io.micronaut.http.client.DefaultHttpClient;
 import io.micronaut.http.client.RxStreamingHttpClient;
 import io.micronaut.http.client.exceptions.HttpClientResponseException;
@@ -72,6 +73,16 @@ public abstract class AbstractOperationTest {
         assertEquals(CHUNK_COUNT * CHUNK_SIZE, allBytes);
     }
 
+    @Test
+    public void testStreamUpload() throws InterruptedException {
+    	byte[] chunk = new byte[(int) CHUNK_SIZE];
+    	long chunks = 100;
+    	Flowable<byte[]> data = Flowable.just(chunk).repeat(chunks);
+    	String response = client.toBlocking().retrieve(HttpRequest.POST(getPrefixUnderTest() + "/upload", data)
+    			.contentType(MediaType.APPLICATION_OCTET_STREAM_TYPE));
+    	assertEquals("Origin got " + (chunks * CHUNK_SIZE) + " bytes", response);
+    }
+
     @Test
     public void testRoot200() throws InterruptedException {
         HttpResponse<String> response = client.toBlocking().exchange(getPrefixUnderTest() + "", String.class);
@@ -16,20 +16,29 @@
 
 package com.github.jespersm.proxynaut.core;
 
+import java.util.Locale;
 import java.util.Random;
+import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.micronaut.http.HttpHeaders;
+import io.micronaut.http.HttpRequest;
 import io.micronaut.http.HttpResponse;
 import io.micronaut.http.MediaType;
+import io.micronaut.http.annotation.Body;
 import io.micronaut.http.annotation.Controller;
 import io.micronaut.http.annotation.Get;
+import io.micronaut.http.annotation.Header;
+import io.micronaut.http.annotation.Post;
 import io.micronaut.http.annotation.QueryValue;
 import io.reactivex.Flowable;
+import io.reactivex.Single;
 
 @Controller("/origin")
 public class OriginController {
@@ -39,6 +48,9 @@ public class OriginController {
 
     protected static final Logger LOG = LoggerFactory.getLogger(OriginController.class);
 
+    private final AtomicInteger cacheableCalls = new AtomicInteger();
+    private final AtomicInteger slowCalls = new AtomicInteger();
+
     @Get(uri="/", produces=MediaType.TEXT_PLAIN)
     public HttpResponse<String> index() {
         return HttpResponse.ok("Origin shows all");
@@ -49,6 +61,17 @@ public class OriginController {
         return HttpResponse.ok("Origin says 'ok'");
     }
 
+    @Get(uri="/echoHeaders", produces=MediaType.TEXT_PLAIN)
+    public HttpResponse<String> echoHeaders(HttpRequest<?> request) {
+        StringBuilder headers = new StringBuilder();
+        new TreeSet<>(request.getHeaders().names()).forEach(name -> headers.append(name.toLowerCase(Locale.ENGLISH))
+                .append(": ").append(request.getHeaders().getAll(name)).append('\n'));
+        return HttpResponse.ok(headers.toString())
+                .header("X-Public", "yes")
+                .header("X-Internal", "secret")
+                .header("Keep-Alive", "timeout=5");
+    }
+
     @Get(uri="/bad", produces=MediaType.TEXT_PLAIN)
     public HttpResponse<String> bad() {
     	LOG.info("Can't touch this!");
@@ -65,6 +88,48 @@ public class OriginController {
         return Flowable.just("{\"attribute\":42}".getBytes()).delay(300, TimeUnit.MILLISECONDS);
     }
     
+    @Get(uri="/cacheable", produces=MediaType.TEXT_PLAIN)
+    public HttpResponse<String> cacheable(@Header("Accept-Language") @Nullable String language) {
+        return HttpResponse.ok("Origin call #" + cacheableCalls.incrementAndGet() + " for " + language)
+                .header(HttpHeaders.CACHE_CONTROL, "public, max-age=60")
+                .header(HttpHeaders.VARY, "Accept-Language");
+    }
+
+    @Get(uri="/agedCacheable", produces=MediaType.TEXT_PLAIN)
+    public HttpResponse<String> agedCacheable() {
+        return HttpResponse.ok("Origin call #" + cacheableCalls.incrementAndGet())
+                .header(HttpHeaders.CACHE_CONTROL, "public, max-age=60")
+                .header(HttpHeaders.AGE, "50");
+    }
+
+    @Get(uri="/cacheableText", produces=MediaType.TEXT_PLAIN)
+    public HttpResponse<String> cacheableText() {
+        return HttpResponse.ok("Origin call #" + cacheableCalls.incrementAndGet() + SPACES_1000 + SPACES_1000)
+                .header(HttpHeaders.CACHE_CONTROL, "max-age=60");
+    }
+
+    @Get(uri="/cacheableBlob", produces=MediaType.APPLICATION_OCTET_STREAM)
+    public HttpResponse<Flowable<byte[]>> cacheableBlob() {
+        byte[] chunk = SPACES_1000.getBytes();
+        return HttpResponse.ok(Flowable.just(chunk).repeat(100))
+                .header(HttpHeaders.CACHE_CONTROL, "max-age=60");
+    }
+
+    @Get(uri="/slowCount", produces=MediaType.TEXT_PLAIN)
+    public Flowable<String> slowCount() {
+        return Flowable.just("Origin call #" + slowCalls.incrementAndGet()).delay(300, TimeUnit.MILLISECONDS);
+    }
+
+    @Get(uri="/stallingBody", produces=MediaType.APPLICATION_OCTET_STREAM)
+    public Flowable<byte[]> stallingBody() {
+        return Flowable.concat(Flowable.just("first".getBytes()), Flowable.just("second".getBytes()).delay(1, TimeUnit.SECONDS));
+    }
+
+    @Post(uri="/upload", consumes=MediaType.APPLICATION_OCTET_STREAM, produces=MediaType.TEXT_PLAIN)
+    public Single<String> upload(@Body Flowable<byte[]> data) {
+        return data.map(bytes -> (long) bytes.length).reduce(0L, Long::sum).map(count -> "Origin got " + count + " bytes");
+    }
+
     @Get(uri="/randomData{?chunks,size}", produces=MediaType.APPLICATION_OCTET_STREAM)
     public Flowable<byte[]> randomData(@QueryValue @Nullable Integer chunks, @QueryValue @Nullable Integer size) {
     	byte[] randomData = new byte[size];
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jespersm.proxynaut.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.micronaut.http.HttpRequest;
+import io.micronaut.http.HttpResponse;
+import io.micronaut.http.HttpStatus;
+
+public class ProxyAccessLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ProxyAccessLog accessLog(File file, String format) {
+        ProxyAccessLogConfiguration config = new ProxyAccessLogConfiguration();
+        config.setFile(file.getPath());
+        config.setFormat(format);
+        return new ProxyAccessLog(config);
+    }
+
+    @Test
+    public void testWritesLines() throws IOException {
+        File file = new File(folder.getRoot(), "access.log");
+        ProxyAccessLog log = accessLog(file, ProxyAccessLogConfiguration.FORMAT_LINE);
+        log.record("api", "10.0.0.1", "GET", "/api/a", 200, 1234, 2_500_000);
+        log.record("api", "10.0.0.2", "POST", "/api/b", 502, -1, 1_000_000);
+        log.close();
+
+        List<String> lines = Files.readAllLines(file.toPath());
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0), lines.get(0).endsWith(" 10.0.0.1 api GET /api/a 200 1234 2.5"));
+        assertTrue(lines.get(1), lines.get(1).endsWith(" 10.0.0.2 api POST /api/b 502 - 1.0"));
+        assertEquals(2, log.getLogged());
+    }
+
+    @Test
+    public void testWritesJson() throws IOException {
+        File file = new File(folder.getRoot(), "access.json");
+        ProxyAccessLog log = accessLog(file, ProxyAccessLogConfiguration.FORMAT_JSON);
+        log.record("api", "10.0.0.1", "GET", "/api/\"quoted\"", 200, 10, 1_000_000);
+        log.close();
+
+        String line = Files.readAllLines(file.toPath()).get(0);
+        assertTrue(line, line.startsWith("{\"time\":\""));
+        assertTrue(line, line.endsWith("\"route\":\"api\",\"client\":\"10.0.0.1\",\"method\":\"GET\",\"path\":\"/api/\\\"quoted\\\"\",\"status\":200,\"bytes\":10,\"ms\":1.0}"));
+    }
+
+    @Test
+    public void testSamplesAllButServerErrors() throws IOException {
+        File file = new File(folder.getRoot(), "sampled.log");
+        ProxyAccessLog log = accessLog(file, ProxyAccessLogConfiguration.FORMAT_LINE);
+        HttpRequest<?> request = HttpRequest.GET("/api/a");
+        for (int i = 0; i < 10; i++) {
+            log.logging("api", 0, request, HttpResponse.ok(), System.nanoTime());
+        }
+        log.logging("api", 0, request, HttpResponse.status(HttpStatus.SERVICE_UNAVAILABLE), System.nanoTime());
+        log.close();
+
+        List<String> lines = Files.readAllLines(file.toPath());
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0), lines.get(0).contains(" GET /api/a 503 - "));
+    }
+}
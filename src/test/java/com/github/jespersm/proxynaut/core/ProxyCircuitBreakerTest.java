@@ -0,0 +1,122 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.jespersm.proxynaut.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.github.jespersm.proxynaut.core.ProxyCircuitBreaker.State;
+
+public class ProxyCircuitBreakerTest {
+
+    private final ProxyCircuitBreakerConfiguration config = new ProxyCircuitBreakerConfiguration();
+    private final List<ProxyCircuitBreakerEvent> events = new ArrayList<>();
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(1);
+
+    public ProxyCircuitBreakerTest() {
+        config.setWindowSize(10);
+        config.setMinimumCalls(4);
+        config.setFailureRateThreshold(50);
+        config.setSlowCallDuration(Duration.ofMillis(100));
+        config.setSlowCallRateThreshold(75);
+        config.setOpenDuration(Duration.ofMillis(100));
+        config.setHalfOpenCalls(2);
+    }
+
+    private ProxyCircuitBreaker breaker() {
+        return new ProxyCircuitBreaker("test", config, events::add);
+    }
+
+    @Test
+    public void testOpensOnFailureRate() {
+        ProxyCircuitBreaker breaker = breaker();
+        breaker.onResult(FAST, true);
+        breaker.onResult(FAST, true);
+        breaker.onResult(FAST, false);
+        assertEquals("Expected the minimum number of calls to be respected", State.CLOSED, breaker.getState());
+        breaker.onResult(FAST, false);
+        assertEquals(State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+        assertEquals(1, breaker.getRejected());
+        assertEquals(1, events.size());
+        assertEquals(State.CLOSED, events.get(0).getFrom());
+        assertEquals(State.OPEN, events.get(0).getTo());
+    }
+
+    @Test
+    public void testOpensOnSlowCallRate() {
+        ProxyCircuitBreaker breaker = breaker();
+        long slow = TimeUnit.MILLISECONDS.toNanos(200);
+        for (int i = 0; i < 3; i++) {
+            breaker.onResult(slow, false);
+        }
+        breaker.onResult(FAST, false);
+        assertEquals(State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void testSlidingWindowForgetsOldFailures() {
+        config.setMinimumCalls(10);
+        ProxyCircuitBreaker breaker = breaker();
+        for (int i = 0; i < 10; i++) {
+            breaker.onResult(FAST, i < 4);
+        }
+        assertEquals(40.0f, breaker.getFailureRate(), 0.01f);
+        for (int i = 0; i < 4; i++) {
+            breaker.onResult(FAST, false);
+        }
+        assertEquals("Expected the oldest failures to leave the window", 0.0f, breaker.getFailureRate(), 0.01f);
+        for (int i = 0; i < 5; i++) {
+            breaker.onResult(FAST, true);
+        }
+        assertEquals(State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void testHalfOpenTrialsCloseOrReopen() throws InterruptedException {
+        ProxyCircuitBreaker breaker = breaker();
+        for (int i = 0; i < 4; i++) {
+            breaker.onResult(FAST, true);
+        }
+        Thread.sleep(150);
+        assertTrue(breaker.tryAcquire());
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+        assertFalse("Expected only the trial calls to pass", breaker.tryAcquire());
+        breaker.onResult(FAST, true);
+        assertEquals(State.OPEN, breaker.getState());
+
+        Thread.sleep(150);
+        assertTrue(breaker.tryAcquire());
+        breaker.onIgnored();
+        assertTrue(breaker.tryAcquire());
+        assertTrue(breaker.tryAcquire());
+        breaker.onResult(FAST, false);
+        breaker.onResult(FAST, false);
+        assertEquals(State.CLOSED, breaker.getState());
+        assertEquals(0.0f, breaker.getFailureRate(), 0.0f);
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jespersm.proxynaut.core;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.URI;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import io.micronaut.http.client.HttpClientConfiguration.ConnectionPoolConfiguration;
+
+public class ProxyClientStatisticsTest {
+
+    private final ProxyUpstream one = new ProxyUpstream(URI.create("http://one/"), null, new ProxyHealthConfiguration());
+    private final ProxyUpstream two = new ProxyUpstream(URI.create("http://two/"), null, new ProxyHealthConfiguration());
+
+    @Test
+    public void testEstimatesPerUpstream() {
+        ConnectionPoolConfiguration pool = new ConnectionPoolConfiguration();
+        pool.setEnabled(true);
+        pool.setMaxConnections(2);
+        ProxyClientStatistics statistics = new ProxyClientStatistics("test", pool, Arrays.asList(one, two));
+        assertEquals(4, statistics.getMaxConnections());
+        // Four exchanges in flight would fit the pools, were they not all to the same upstream
+        for (int i = 0; i < 4; i++) {
+            statistics.exchangeStarted();
+            one.exchangeStarted();
+        }
+        assertEquals(2, statistics.getEstimatedPendingAcquires());
+        assertEquals(0.5, statistics.getEstimatedOccupancy(), 0.0);
+    }
+
+    @Test
+    public void testNothingPendingWithoutPool() {
+        ProxyClientStatistics statistics = new ProxyClientStatistics("test", null, Arrays.asList(one, two));
+        one.exchangeStarted();
+        assertEquals(-1, statistics.getMaxConnections());
+        assertEquals(0, statistics.getEstimatedPendingAcquires());
+        assertEquals(0.0, statistics.getEstimatedOccupancy(), 0.0);
+    }
+}
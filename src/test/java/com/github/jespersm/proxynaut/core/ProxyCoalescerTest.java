@@ -0,0 +1,141 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.jespersm.proxynaut.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+import io.micronaut.buffer.netty.NettyByteBufferFactory;
+import io.micronaut.core.io.buffer.ByteBuffer;
+import io.micronaut.core.io.buffer.ReferenceCounted;
+import io.micronaut.http.HttpHeaders;
+import io.micronaut.http.HttpRequest;
+import io.micronaut.http.HttpResponse;
+import io.micronaut.http.HttpStatus;
+import io.micronaut.http.MutableHttpResponse;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.reactivex.Flowable;
+import io.reactivex.Single;
+import io.reactivex.observers.TestObserver;
+import io.reactivex.subjects.SingleSubject;
+import io.reactivex.subscribers.TestSubscriber;
+
+public class ProxyCoalescerTest {
+
+    @Test
+    public void testKeyOnlyForSafeMethods() {
+        assertNull(ProxyCoalescer.keyOf(HttpRequest.POST("/a", "body")));
+        assertEquals(ProxyCoalescer.keyOf(HttpRequest.GET("/a?b=c")), ProxyCoalescer.keyOf(HttpRequest.GET("/a?b=c")));
+        assertNotEquals(ProxyCoalescer.keyOf(HttpRequest.GET("/a")), ProxyCoalescer.keyOf(HttpRequest.GET("/a").header("Accept", "text/plain")));
+    }
+
+    @Test
+    public void testNoKeyForRangeOrConditionalRequests() {
+        assertNull(ProxyCoalescer.keyOf(HttpRequest.GET("/a").header("Range", "bytes=0-99")));
+        assertNull(ProxyCoalescer.keyOf(HttpRequest.GET("/a").header("If-None-Match", "\"v1\"")));
+        assertNull(ProxyCoalescer.keyOf(HttpRequest.GET("/a").header("If-Modified-Since", "Sat, 17 Oct 2026 10:00:00 GMT")));
+    }
+
+    @Test
+    public void testSlowParticipantDoesNotStallOthers() {
+        ProxyCoalescer coalescer = new ProxyCoalescer("test");
+        SingleSubject<MutableHttpResponse<?>> upstream = SingleSubject.create();
+        AtomicInteger exchanges = new AtomicInteger();
+        Single<MutableHttpResponse<?>> fast = coalescer.join("key", () -> { exchanges.incrementAndGet(); return upstream; });
+        Single<MutableHttpResponse<?>> slow = coalescer.join("key", () -> { exchanges.incrementAndGet(); return upstream; });
+
+        TestSubscriber<ByteBuffer<?>> fastBody = bodyOf(fast).test();
+        TestSubscriber<ByteBuffer<?>> slowBody = bodyOf(slow).test(1);
+        assertEquals(1, exchanges.get());
+
+        ProxyResponseBody body = new ProxyResponseBody(() -> {});
+        upstream.onSuccess(HttpResponse.<Flowable<ByteBuffer<?>>>status(HttpStatus.OK).body(body));
+        ByteBuf[] chunks = new ByteBuf[3];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = Unpooled.buffer(8).writeLong(i);
+            body.onNext(NettyByteBufferFactory.DEFAULT.wrap(chunks[i]));
+        }
+        body.onComplete();
+
+        fastBody.assertValueCount(3).assertComplete();
+        slowBody.assertValueCount(1).assertNotComplete();
+        slowBody.requestMore(2);
+        slowBody.assertValueCount(3).assertComplete();
+        assertEquals(1, coalescer.getCoalesced());
+
+        fastBody.values().forEach(b -> ((ReferenceCounted) b).release());
+        slowBody.values().forEach(b -> ((ReferenceCounted) b).release());
+        for (ByteBuf chunk : chunks) {
+            assertEquals("Expected the shared buffers to be released", 0, chunk.refCnt());
+        }
+    }
+
+    @Test
+    public void testParticipantsGetRouteBodiesAndContentLength() {
+        AtomicInteger bodies = new AtomicInteger();
+        ProxyCoalescer coalescer = new ProxyCoalescer("test", onCancel -> {
+            bodies.incrementAndGet();
+            return new ProxyResponseBody(onCancel, 16);
+        });
+        SingleSubject<MutableHttpResponse<?>> upstream = SingleSubject.create();
+        Single<MutableHttpResponse<?>> first = coalescer.join("key", () -> upstream);
+        Single<MutableHttpResponse<?>> second = coalescer.join("key", () -> upstream);
+        TestObserver<MutableHttpResponse<?>> firstResponse = first.test();
+        TestObserver<MutableHttpResponse<?>> secondResponse = second.test();
+        assertEquals(2, bodies.get());
+
+        MutableHttpResponse<?> response = HttpResponse.<Flowable<ByteBuffer<?>>>status(HttpStatus.OK).body(new ProxyResponseBody(() -> {}));
+        response.setAttribute(ProxyCompression.CONTENT_LENGTH, 42L);
+        upstream.onSuccess(response);
+        assertEquals(Optional.of(42L), firstResponse.values().get(0).getAttribute(ProxyCompression.CONTENT_LENGTH));
+        assertEquals(Optional.of(42L), secondResponse.values().get(0).getAttribute(ProxyCompression.CONTENT_LENGTH));
+    }
+
+    @Test
+    public void testResponseSettingCookieIsNotShared() {
+        ProxyCoalescer coalescer = new ProxyCoalescer("test");
+        SingleSubject<MutableHttpResponse<?>> shared = SingleSubject.create();
+        SingleSubject<MutableHttpResponse<?>> own = SingleSubject.create();
+        AtomicInteger exchanges = new AtomicInteger();
+        Supplier<Single<MutableHttpResponse<?>>> exchange = () -> exchanges.incrementAndGet() == 1 ? shared : own;
+        TestObserver<MutableHttpResponse<?>> first = coalescer.join("key", exchange).test();
+        TestObserver<MutableHttpResponse<?>> second = coalescer.join("key", exchange).test();
+
+        shared.onSuccess(HttpResponse.ok().header(HttpHeaders.SET_COOKIE, "session=first"));
+        assertEquals("session=first", first.values().get(0).getHeaders().get(HttpHeaders.SET_COOKIE));
+        // The second request asked for a response of its own instead
+        assertEquals(2, exchanges.get());
+        second.assertNoValues();
+        own.onSuccess(HttpResponse.ok().header(HttpHeaders.SET_COOKIE, "session=second"));
+        assertEquals("session=second", second.values().get(0).getHeaders().get(HttpHeaders.SET_COOKIE));
+        assertEquals(2, coalescer.getExchanges());
+        assertEquals(0, coalescer.getCoalesced());
+    }
+
+    private static Flowable<ByteBuffer<?>> bodyOf(Single<MutableHttpResponse<?>> response) {
+        return response.flatMapPublisher(r -> (Flowable<ByteBuffer<?>>) r.getBody().get());
+    }
+}
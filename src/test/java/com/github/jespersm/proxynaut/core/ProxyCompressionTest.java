@@ -0,0 +1,145 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.jespersm.proxynaut.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.Test;
+
+import io.micronaut.buffer.netty.NettyByteBufferFactory;
+import io.micronaut.core.io.buffer.ByteBuffer;
+import io.micronaut.http.MediaType;
+import io.reactivex.Flowable;
+
+public class ProxyCompressionTest {
+
+    private final ProxyCompression compression = new ProxyCompression(new ProxyCompressionConfiguration());
+
+    @Test
+    public void testSelectsEncoding() {
+        assertEquals("gzip", ProxyCompression.selectEncoding("gzip, deflate, br"));
+        assertEquals("gzip", ProxyCompression.selectEncoding("deflate, GZIP"));
+        assertEquals("deflate", ProxyCompression.selectEncoding("gzip;q=0.5, deflate"));
+        assertEquals("deflate", ProxyCompression.selectEncoding("deflate"));
+        assertEquals("gzip", ProxyCompression.selectEncoding("*"));
+        assertEquals("deflate", ProxyCompression.selectEncoding("gzip;q=0, *"));
+        assertNull(ProxyCompression.selectEncoding("gzip;q=0, deflate; q=0"));
+        assertNull(ProxyCompression.selectEncoding("identity, br"));
+        assertNull(ProxyCompression.selectEncoding(""));
+    }
+
+    @Test
+    public void testCompressibleTypes() {
+        assertTrue(compression.isCompressible(MediaType.TEXT_PLAIN_TYPE));
+        assertTrue(compression.isCompressible(new MediaType("text/html; charset=utf-8")));
+        assertTrue(compression.isCompressible(MediaType.APPLICATION_JSON_TYPE));
+        assertTrue(compression.isCompressible(new MediaType("application/hal+json")));
+        assertTrue(compression.isCompressible(new MediaType("image/svg+xml")));
+        assertFalse(compression.isCompressible(new MediaType("image/png")));
+        assertFalse(compression.isCompressible(MediaType.APPLICATION_OCTET_STREAM_TYPE));
+        assertFalse(compression.isCompressible(null));
+    }
+
+    @Test
+    public void testCompressesChunkByChunk() throws IOException {
+        byte[] original = body();
+        AtomicReference<byte[]> whole = new AtomicReference<>();
+        byte[] gzipped = concat(compression.compress(chunks(original), ProxyCompression.GZIP, whole::set));
+        assertTrue(gzipped.length < original.length / 4);
+        assertArrayEquals(gzipped, whole.get());
+        assertArrayEquals(original, readAll(new GZIPInputStream(new ByteArrayInputStream(gzipped))));
+
+        byte[] deflated = concat(compression.compress(chunks(original), ProxyCompression.DEFLATE, null));
+        assertArrayEquals(original, readAll(new InflaterInputStream(new ByteArrayInputStream(deflated))));
+
+        byte[] empty = concat(compression.compress(Flowable.empty(), ProxyCompression.GZIP, null));
+        assertEquals(0, readAll(new GZIPInputStream(new ByteArrayInputStream(empty))).length);
+    }
+
+    @Test
+    public void testEmitsEachChunkWhenItArrives() throws IOException {
+        byte[] original = body();
+        // Everything sent so far can be decompressed, without waiting for the end of the body
+        ByteBuffer<?> first = compression.compress(chunks(original), ProxyCompression.DEFLATE, null).blockingFirst();
+        byte[] partial = new byte[first.readableBytes()];
+        first.read(partial);
+        byte[] inflated = new byte[8192];
+        Inflater inflater = new Inflater();
+        inflater.setInput(partial);
+        try {
+            assertEquals(8192, inflater.inflate(inflated));
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] body() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < 100_000; i++) {
+            text.append("{\"line\":").append(i).append(",\"text\":\"The quick brown fox\"}\n");
+        }
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Flowable<ByteBuffer<?>> chunks(byte[] bytes) {
+        return Flowable.range(0, (bytes.length + 8191) / 8192).map(i -> {
+            int from = i * 8192;
+            int length = Math.min(8192, bytes.length - from);
+            ByteBuffer<?> chunk = NettyByteBufferFactory.DEFAULT.buffer(length);
+            chunk.write(bytes, from, length);
+            return chunk;
+        });
+    }
+
+    private static byte[] concat(Flowable<ByteBuffer<?>> body) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (ByteBuffer<?> buffer : body.blockingIterable()) {
+            byte[] bytes = new byte[buffer.readableBytes()];
+            buffer.read(bytes);
+            out.write(bytes, 0, bytes.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jespersm.proxynaut.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import io.reactivex.observers.TestObserver;
+
+public class ProxyConcurrencyLimiterTest {
+
+    private static ProxyConcurrencyLimiter limiter(int initialLimit, Duration maxWait) {
+        ProxyConcurrencyLimitConfiguration config = new ProxyConcurrencyLimitConfiguration();
+        config.setInitialLimit(initialLimit);
+        config.setMaxLimit(50);
+        config.setMaxWait(maxWait);
+        return new ProxyConcurrencyLimiter("test", config);
+    }
+
+    @Test
+    public void testShedsBeyondLimit() {
+        ProxyConcurrencyLimiter limiter = limiter(2, Duration.ZERO);
+        assertTrue(limiter.acquire().blockingGet());
+        assertTrue(limiter.acquire().blockingGet());
+        assertFalse(limiter.acquire().blockingGet());
+        assertEquals(1, limiter.getRejected());
+
+        limiter.onIgnored();
+        assertTrue(limiter.acquire().blockingGet());
+        assertEquals(2, limiter.getInFlight());
+    }
+
+    @Test
+    public void testWaitsBrieflyForAnExchangeToFinish() {
+        ProxyConcurrencyLimiter limiter = limiter(1, Duration.ofSeconds(10));
+        assertTrue(limiter.acquire().blockingGet());
+        TestObserver<Boolean> waiting = limiter.acquire().test();
+        waiting.assertNotComplete();
+
+        limiter.onIgnored();
+        waiting.assertValue(true);
+        assertEquals(1, limiter.getInFlight());
+    }
+
+    @Test
+    public void testShedsAfterWaiting() throws InterruptedException {
+        ProxyConcurrencyLimiter limiter = limiter(1, Duration.ofMillis(10));
+        assertTrue(limiter.acquire().blockingGet());
+        TestObserver<Boolean> waiting = limiter.acquire().test();
+        waiting.await(5, TimeUnit.SECONDS);
+        waiting.assertValue(false);
+        assertEquals(1, limiter.getRejected());
+
+        // The permit of the finished exchange isn't handed to the request that gave up
+        limiter.onIgnored();
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void testLimitFollowsLatency() {
+        ProxyConcurrencyLimiter limiter = limiter(20, Duration.ZERO);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(limiter.acquire().blockingGet());
+            limiter.onResult(TimeUnit.MILLISECONDS.toNanos(10), false);
+        }
+        assertEquals("Grows while the latency is steady", 50, limiter.getLimit());
+
+        for (int i = 0; i < 20; i++) {
+            assertTrue(limiter.acquire().blockingGet());
+            limiter.onResult(TimeUnit.MILLISECONDS.toNanos(100), false);
+        }
+        int overloaded = limiter.getLimit();
+        assertTrue("Shrinks as the latency climbs, to " + overloaded, overloaded < 20);
+
+        for (int i = 0; i < 20; i++) {
+            assertTrue(limiter.acquire().blockingGet());
+            limiter.onResult(TimeUnit.MILLISECONDS.toNanos(10), true);
+        }
+        assertTrue("Shrinks as exchanges fail", limiter.getLimit() < overloaded);
+        assertEquals(0, limiter.getInFlight());
+    }
+}
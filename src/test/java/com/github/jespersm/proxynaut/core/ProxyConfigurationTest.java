@@ -19,6 +19,8 @@ package com.github.jespersm.proxynaut.core;
 import static java.util.Arrays.asList;
 import static org.junit.Assert.*;
 
+import java.net.URI;
+import java.time.Duration;
 import java.util.Collection;
 
 import org.junit.Test;
@@ -29,6 +31,8 @@ import io.micronaut.context.ApplicationContext;
 import io.micronaut.context.env.PropertySource;
 import io.micronaut.core.util.CollectionUtils;
 import io.micronaut.http.HttpMethod;
+import io.micronaut.http.client.HttpClientConfiguration;
+import io.netty.channel.ChannelOption;
 
 public class ProxyConfigurationTest {
 
@@ -72,6 +76,66 @@ public class ProxyConfigurationTest {
                 proxy.shouldIncludeResponseHeader("Content-Disposition"));
         assertTrue("Expected that the 'X-Powered-By'-response header should pass through",
                 proxy.shouldIncludeResponseHeader("X-Powered-By"));
+        assertFalse("Expected no client settings unless configured", proxy.getClient().isPresent());
+    }
+
+    @Test
+    public void testClientConfiguration() {
+        ApplicationContext applicationContext = ApplicationContext.run(PropertySource.of(
+                "test",
+                CollectionUtils.mapOf(
+                "proxynaut.blobs.context", "/blobs",
+                "proxynaut.blobs.uri", "http://some.server/blobs",
+                "proxynaut.blobs.client.pool.enabled", true,
+                "proxynaut.blobs.client.pool.maxConnections", 200,
+                "proxynaut.blobs.client.pool.maxPendingAcquires", 1000,
+                "proxynaut.blobs.client.readIdleTimeout", "30s",
+                "proxynaut.blobs.client.keepAlive", true,
+                "proxynaut.api.context", "/api",
+                "proxynaut.api.uri", "http://some.server/api",
+                "proxynaut.api.client.pool.enabled", true,
+                "proxynaut.api.client.pool.maxConnections", 8,
+                "proxynaut.api.client.connectTimeout", "500ms"
+                )
+        ));
+        Collection<ProxyConfiguration> proxies = applicationContext.getBeansOfType(ProxyConfiguration.class);
+
+        ProxyConfiguration blobs = proxies.stream().filter(p -> p.getName().equals("blobs")).findFirst().get();
+        HttpClientConfiguration blobsClient = blobs.getClient().get();
+        assertTrue(blobsClient.getConnectionPoolConfiguration().isEnabled());
+        assertEquals(200, blobsClient.getConnectionPoolConfiguration().getMaxConnections());
+        assertEquals(1000, blobsClient.getConnectionPoolConfiguration().getMaxPendingAcquires());
+        assertEquals(Duration.ofSeconds(30), blobsClient.getReadIdleTimeout().get());
+        assertEquals(Boolean.TRUE, blobsClient.getChannelOptions().get(ChannelOption.SO_KEEPALIVE));
+
+        ProxyConfiguration api = proxies.stream().filter(p -> p.getName().equals("api")).findFirst().get();
+        HttpClientConfiguration apiClient = api.getClient().get();
+        assertEquals(8, apiClient.getConnectionPoolConfiguration().getMaxConnections());
+        assertEquals(Duration.ofMillis(500), apiClient.getConnectTimeout().get());
+    }
+
+    @Test
+    public void testUpstreamsConfiguration() {
+        ApplicationContext applicationContext = ApplicationContext.run(PropertySource.of(
+                "test",
+                CollectionUtils.mapOf(
+                "proxynaut.replicated.context", "/replicated",
+                "proxynaut.replicated.uris", asList("http://one.server/api", "http://two.server/api"),
+                "proxynaut.replicated.balancer", "peak-ewma",
+                "proxynaut.single.context", "/single",
+                "proxynaut.single.uri", "http://some.server/single"
+                )
+        ));
+        Collection<ProxyConfiguration> proxies = applicationContext.getBeansOfType(ProxyConfiguration.class);
+
+        ProxyConfiguration replicated = proxies.stream().filter(p -> p.getName().equals("replicated")).findFirst().get();
+        assertEquals(asList(URI.create("http://one.server/api"), URI.create("http://two.server/api")), replicated.getUris());
+        assertEquals(URI.create("http://one.server/api"), replicated.getUri());
+        assertEquals("peak-ewma", replicated.getBalancer());
+
+        ProxyConfiguration single = proxies.stream().filter(p -> p.getName().equals("single")).findFirst().get();
+        assertEquals(asList(URI.create("http://some.server/single")), single.getUris());
+        assertEquals("round-robin", single.getBalancer());
     }
 
 }
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.jespersm.proxynaut.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.micronaut.buffer.netty.NettyByteBufferFactory;
+import io.micronaut.core.io.buffer.ByteBuffer;
+import io.micronaut.http.HttpRequest;
+import io.micronaut.http.MediaType;
+import io.reactivex.schedulers.Schedulers;
+import io.reactivex.subscribers.TestSubscriber;
+
+public class ProxyDiskCacheTest {
+
+    private static final String[] NO_VARY = new String[0];
+    private static final String[] HEADERS = { "Cache-Control", "max-age=60", "ETag", "\"v1\"" };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ProxyDiskCacheConfiguration config = new ProxyDiskCacheConfiguration();
+    private final long now = System.currentTimeMillis();
+
+    @Before
+    public void setUp() throws IOException {
+        config.setDirectory(folder.newFolder("cache").getPath());
+    }
+
+    private static byte[] data(int size, int seed) {
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) seed);
+        return data;
+    }
+
+    private static ByteBuffer<?> wrap(byte[] data) {
+        return NettyByteBufferFactory.DEFAULT.wrap(data);
+    }
+
+    private static byte[] concat(Iterable<ByteBuffer<?>> buffers) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (ByteBuffer<?> buffer : buffers) {
+            byte[] bytes = buffer.toByteArray();
+            out.write(bytes, 0, bytes.length);
+        }
+        return out.toByteArray();
+    }
+
+    private ProxyDiskCache.DiskFill fill(ProxyDiskCache cache, String key, byte[]... parts) {
+        ProxyDiskCache.DiskFill fill = cache.startFill(key, MediaType.APPLICATION_OCTET_STREAM_TYPE, null, HEADERS, NO_VARY, NO_VARY, now, now + 60_000);
+        for (byte[] part : parts) {
+            fill.append(wrap(part));
+        }
+        return fill;
+    }
+
+    @Test
+    public void testIndexSurvivesRestart() {
+        byte[] first = data(100_000, 1);
+        byte[] second = data(50_000, 2);
+        fill(new ProxyDiskCache(config, Schedulers.trampoline()), "/blob", first, second).complete();
+
+        ProxyDiskCache restarted = new ProxyDiskCache(config, Schedulers.trampoline());
+        assertEquals(150_000, restarted.getBytes());
+        ProxyDiskCache.DiskEntry entry = restarted.lookup("/blob", HttpRequest.GET("/blob"), now);
+        assertNotNull("Expected the entry to be found after a restart", entry);
+        assertEquals(MediaType.APPLICATION_OCTET_STREAM_TYPE, entry.contentType);
+        assertArrayEquals(HEADERS, entry.headers);
+        byte[] expected = new byte[150_000];
+        System.arraycopy(first, 0, expected, 0, first.length);
+        System.arraycopy(second, 0, expected, first.length, second.length);
+        assertArrayEquals(expected, concat(entry.body().toList().blockingGet()));
+    }
+
+    @Test
+    public void testHitFollowsDownloadInProgress() {
+        ProxyDiskCache cache = new ProxyDiskCache(config, Schedulers.trampoline());
+        ProxyDiskCache.DiskFill fill = fill(cache, "/blob", data(1000, 1));
+
+        ProxyDiskCache.DiskEntry entry = cache.lookup("/blob", HttpRequest.GET("/blob"), now);
+        assertNotNull("Expected the entry to be available while downloading", entry);
+        TestSubscriber<ByteBuffer<?>> subscriber = entry.body().test();
+        assertEquals(1000, concat(subscriber.values()).length);
+        subscriber.assertNotComplete();
+
+        fill.append(wrap(data(2000, 2)));
+        fill.complete();
+        subscriber.awaitDone(5, TimeUnit.SECONDS).assertComplete();
+        byte[] body = concat(subscriber.values());
+        assertEquals(3000, body.length);
+        assertEquals(2, body[2999]);
+    }
+
+    @Test
+    public void testIncompleteFillIsDiscarded() {
+        ProxyDiskCache cache = new ProxyDiskCache(config, Schedulers.trampoline());
+        fill(cache, "/aborted", data(1000, 1)).abort();
+        fill(cache, "/crashed", data(1000, 1));
+        assertNull(cache.lookup("/aborted", HttpRequest.GET("/aborted"), now));
+
+        ProxyDiskCache restarted = new ProxyDiskCache(config, Schedulers.trampoline());
+        assertNull(restarted.lookup("/crashed", HttpRequest.GET("/crashed"), now));
+        assertEquals(0, restarted.getBytes());
+        assertEquals(0, new File(config.getDirectory()).list().length);
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsedBeyondBudget() {
+        config.setMaxBytes(2500);
+        ProxyDiskCache cache = new ProxyDiskCache(config, Schedulers.trampoline());
+        fill(cache, "/one", data(1000, 1)).complete();
+        fill(cache, "/two", data(1000, 2)).complete();
+        cache.lookup("/one", HttpRequest.GET("/one"), now);
+        fill(cache, "/three", data(1000, 3)).complete();
+
+        assertEquals(1, cache.getEvictions());
+        assertEquals(2000, cache.getBytes());
+        assertNull(cache.lookup("/two", HttpRequest.GET("/two"), now));
+        assertNotNull(cache.lookup("/one", HttpRequest.GET("/one"), now));
+        assertNotNull(cache.lookup("/three", HttpRequest.GET("/three"), now));
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jespersm.proxynaut.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+
+import org.junit.Test;
+
+import io.reactivex.schedulers.TestScheduler;
+
+public class ProxyDnsCacheTest {
+
+    private final TestScheduler scheduler = new TestScheduler();
+    private volatile InetAddress[] records;
+
+    private ProxyDnsCache cache(Duration ttl, Duration refreshAhead) {
+        ProxyDnsConfiguration config = new ProxyDnsConfiguration();
+        config.setTtl(ttl);
+        config.setRefreshAhead(refreshAhead);
+        return new ProxyDnsCache("test", config, host -> {
+            if (records == null) {
+                throw new UnknownHostException(host);
+            }
+            return records;
+        }, scheduler);
+    }
+
+    private static InetAddress address(String ip) throws UnknownHostException {
+        return InetAddress.getByName(ip);
+    }
+
+    @Test
+    public void testResolvesInBackgroundAndTakesTurns() throws UnknownHostException {
+        ProxyDnsCache cache = cache(Duration.ofMinutes(1), Duration.ofSeconds(5));
+        records = new InetAddress[] { address("10.0.0.1"), address("10.0.0.2") };
+        assertNull("Not resolved yet, and not waiting for it", cache.next("upstream"));
+
+        scheduler.triggerActions();
+        assertEquals(address("10.0.0.1"), cache.next("upstream"));
+        assertEquals(address("10.0.0.2"), cache.next("upstream"));
+        assertEquals(address("10.0.0.1"), cache.next("upstream"));
+        assertEquals(1, cache.getRefreshes());
+    }
+
+    @Test
+    public void testRefreshesBeforeExpiryWithoutWaiting() throws Exception {
+        ProxyDnsCache cache = cache(Duration.ofSeconds(5), Duration.ofMillis(4_900));
+        records = new InetAddress[] { address("10.0.0.1") };
+        cache.prime("upstream");
+        scheduler.triggerActions();
+        Thread.sleep(150);
+
+        records = new InetAddress[] { address("10.0.0.2") };
+        assertEquals("The old address is used while refreshing", address("10.0.0.1"), cache.next("upstream"));
+        scheduler.triggerActions();
+        assertEquals(address("10.0.0.2"), cache.next("upstream"));
+        assertEquals(2, cache.getRefreshes());
+    }
+
+    @Test
+    public void testKeepsAddressesUntilExpiryWhenRefreshFails() throws Exception {
+        ProxyDnsCache cache = cache(Duration.ofSeconds(5), Duration.ofMillis(4_900));
+        records = new InetAddress[] { address("10.0.0.1") };
+        cache.prime("upstream");
+        scheduler.triggerActions();
+        Thread.sleep(150);
+
+        records = null;
+        cache.next("upstream");
+        scheduler.triggerActions();
+        assertEquals(1, cache.getFailures());
+        assertEquals(address("10.0.0.1"), cache.next("upstream"));
+    }
+
+    @Test
+    public void testLeavesExpiredAddressesToClient() throws Exception {
+        ProxyDnsCache cache = cache(Duration.ofMillis(50), Duration.ofMillis(10));
+        records = new InetAddress[] { address("10.0.0.1") };
+        cache.prime("upstream");
+        scheduler.triggerActions();
+        Thread.sleep(60);
+
+        records = new InetAddress[] { address("10.0.0.2") };
+        assertNull("Expired while nobody asked, so not used while refreshing", cache.next("upstream"));
+        scheduler.triggerActions();
+        assertEquals(address("10.0.0.2"), cache.next("upstream"));
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.jespersm.proxynaut.core;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class ProxyHeaderNamesTest {
+
+    @Test
+    public void testMatchesIgnoringCase() {
+        ProxyHeaderNames names = new ProxyHeaderNames(Arrays.asList("Accept", "x-request-id", "AUTHORIZATION", "accept"));
+        assertTrue(names.contains("accept"));
+        assertTrue(names.contains("ACCEPT"));
+        assertTrue(names.contains("X-Request-Id"));
+        assertTrue(names.contains(new StringBuilder("Authorization")));
+        assertFalse(names.contains("Accept-Encoding"));
+        assertFalse(names.contains("Accep"));
+        assertFalse(names.contains(""));
+        assertFalse(new ProxyHeaderNames(Collections.emptySet()).contains("Accept"));
+    }
+
+    @Test
+    public void testConfigurationRules() {
+        ProxyConfiguration config = new ProxyConfiguration("test");
+        assertTrue(config.shouldIncludeRequestHeader("X-Anything"));
+        config.setExcludeRequestHeaders(Arrays.asList("cookie"));
+        assertFalse(config.shouldIncludeRequestHeader("Cookie"));
+        assertTrue(config.shouldIncludeRequestHeader("Accept"));
+        config.setIncludeResponseHeaders(Arrays.asList("Content-Type", "ETag"));
+        assertTrue(config.shouldIncludeResponseHeader("etag"));
+        assertFalse(config.shouldIncludeResponseHeader("Server"));
+    }
+
+    @Test
+    public void testConnectionTokens() {
+        assertTrue(ProxyHeaderNames.listContains("keep-alive, X-Hop", "x-hop"));
+        assertTrue(ProxyHeaderNames.listContains("X-Hop ,close", "X-HOP"));
+        assertFalse(ProxyHeaderNames.listContains("keep-alive, X-Hop", "X-Ho"));
+        assertFalse(ProxyHeaderNames.listContains("keep-alive, X-Hopper", "X-Hop"));
+        assertFalse(ProxyHeaderNames.listContains("", "X-Hop"));
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.jespersm.proxynaut.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import io.micronaut.context.exceptions.ConfigurationException;
+
+public class ProxyLoadBalancerTest {
+
+    private final ProxyUpstream[] upstreams = {
+            new ProxyUpstream(URI.create("http://one/"), null, new ProxyHealthConfiguration()),
+            new ProxyUpstream(URI.create("http://two/"), null, new ProxyHealthConfiguration()),
+            new ProxyUpstream(URI.create("http://three/"), null, new ProxyHealthConfiguration())
+    };
+
+    @Test
+    public void testRoundRobin() {
+        ProxyLoadBalancer balancer = ProxyLoadBalancer.forName("round-robin");
+        for (int i = 0; i < 6; i++) {
+            assertSame(upstreams[i % 3], balancer.select(upstreams));
+        }
+    }
+
+    @Test
+    public void testLeastOutstanding() {
+        ProxyLoadBalancer balancer = ProxyLoadBalancer.forName("least_outstanding");
+        upstreams[0].exchangeStarted();
+        upstreams[1].exchangeStarted();
+        upstreams[1].exchangeStarted();
+        for (int i = 0; i < 6; i++) {
+            assertSame(upstreams[2], balancer.select(upstreams));
+        }
+        upstreams[2].exchangeStarted();
+        upstreams[2].exchangeStarted();
+        assertSame(upstreams[0], balancer.select(upstreams));
+    }
+
+    @Test
+    public void testPeakEwmaAvoidsSlowUpstream() {
+        ProxyLoadBalancer balancer = ProxyLoadBalancer.forName("peak-ewma");
+        upstreams[0].observeLatency(TimeUnit.MILLISECONDS.toNanos(500));
+        upstreams[1].observeLatency(TimeUnit.MILLISECONDS.toNanos(5));
+        upstreams[2].observeLatency(TimeUnit.MILLISECONDS.toNanos(5));
+        int slow = 0;
+        for (int i = 0; i < 300; i++) {
+            if (balancer.select(upstreams) == upstreams[0]) slow++;
+        }
+        assertEquals("Expected the slow upstream never to win a pick", 0, slow);
+        // A single peak is taken at once
+        upstreams[1].observeLatency(TimeUnit.MILLISECONDS.toNanos(1000));
+        assertEquals(1000.0, upstreams[1].getLatencyMillis(), 0.01);
+        upstreams[1].observeLatency(TimeUnit.MILLISECONDS.toNanos(5));
+        assertTrue("Expected the average to decay slowly", upstreams[1].getLatencyMillis() > 900.0);
+    }
+
+    @Test
+    public void testPeakEwmaPicksUpstreamAgainAfterPeak() throws InterruptedException {
+        ProxyLoadBalancer balancer = ProxyLoadBalancer.forName("peak-ewma");
+        long decayNanos = TimeUnit.MILLISECONDS.toNanos(50);
+        ProxyUpstream[] pair = {
+                new ProxyUpstream(URI.create("http://spiked/"), null, new ProxyHealthConfiguration(), decayNanos),
+                new ProxyUpstream(URI.create("http://steady/"), null, new ProxyHealthConfiguration(), decayNanos)
+        };
+        pair[0].observeLatency(TimeUnit.SECONDS.toNanos(1));
+        pair[1].observeLatency(TimeUnit.MILLISECONDS.toNanos(1));
+        assertSame(pair[1], balancer.select(pair));
+
+        // Only the steady upstream gets traffic, and so new latencies, until the spike has decayed
+        long deadline = System.currentTimeMillis() + 5000;
+        ProxyUpstream picked;
+        while ((picked = balancer.select(pair)) != pair[0]) {
+            assertTrue("Expected the spiked upstream to be picked again", System.currentTimeMillis() < deadline);
+            picked.observeLatency(TimeUnit.MILLISECONDS.toNanos(1));
+            Thread.sleep(10);
+        }
+        assertTrue(pair[0].getLatencyMillis() < 1.0);
+    }
+
+    @Test(expected = ConfigurationException.class)
+    public void testUnknownStrategy() {
+        ProxyLoadBalancer.forName("random-guess");
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jespersm.proxynaut.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import io.micronaut.http.HttpRequest;
+
+public class ProxyRateLimiterTest {
+
+    private static HttpRequest<?> from(String apiKey) {
+        return HttpRequest.GET("/a").header("X-Api-Key", apiKey);
+    }
+
+    @Test
+    public void testLimitsEachClientSeparately() {
+        ProxyRateLimitConfiguration config = new ProxyRateLimitConfiguration();
+        config.setClientRate(1);
+        config.setClientBurst(2);
+        config.setClientHeader("X-Api-Key");
+        ProxyRateLimiter limiter = new ProxyRateLimiter("test", config);
+
+        assertEquals(0, limiter.tryAcquire(from("a")));
+        assertEquals(0, limiter.tryAcquire(from("a")));
+        long wait = limiter.tryAcquire(from("a"));
+        assertTrue("Expected to wait about a second, not " + wait, wait > 0 && wait <= TimeUnit.SECONDS.toNanos(1));
+        assertEquals("Another client has its own bucket", 0, limiter.tryAcquire(from("b")));
+        assertEquals(1, limiter.getRejected());
+        assertEquals(2, limiter.getClientCount());
+    }
+
+    @Test
+    public void testLimitsRouteAsAWhole() {
+        ProxyRateLimitConfiguration config = new ProxyRateLimitConfiguration();
+        config.setRate(1);
+        config.setBurst(3);
+        ProxyRateLimiter limiter = new ProxyRateLimiter("test", config);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, limiter.tryAcquire(from("client" + i)));
+        }
+        assertTrue(limiter.tryAcquire(from("client3")) > 0);
+        assertEquals("Clients aren't tracked without a client limit", 0, limiter.getClientCount());
+    }
+}
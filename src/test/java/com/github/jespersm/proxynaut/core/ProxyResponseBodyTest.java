@@ -0,0 +1,182 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jespersm.proxynaut.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.micronaut.buffer.netty.NettyByteBufferFactory;
+import io.micronaut.core.io.buffer.ByteBuffer;
+import io.micronaut.core.io.buffer.ReferenceCounted;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.reactivex.schedulers.Schedulers;
+import io.reactivex.schedulers.TestScheduler;
+import io.reactivex.subscribers.TestSubscriber;
+
+public class ProxyResponseBodyTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<ByteBuf> allocated = new ArrayList<>();
+
+    private ByteBuffer<?> chunk() {
+        ByteBuf buf = Unpooled.buffer(16).writeBytes(new byte[16]);
+        allocated.add(buf);
+        return NettyByteBufferFactory.DEFAULT.wrap(buf);
+    }
+
+    private void assertAllReleased() {
+        for (ByteBuf buf : allocated) {
+            assertEquals("Expected every buffer to be released", 0, buf.refCnt());
+        }
+    }
+
+    private static void consume(List<ByteBuffer<?>> buffers) {
+        buffers.forEach(bb -> ((ReferenceCounted)bb).release());
+    }
+
+    @Test
+    public void testPassesBuffersThroughWithoutCopying() {
+        ProxyResponseBody body = new ProxyResponseBody(() -> {});
+        TestSubscriber<ByteBuffer<?>> subscriber = body.test();
+        ByteBuffer<?> first = chunk();
+        body.onNext(first);
+        body.onNext(chunk());
+        body.onComplete();
+
+        subscriber.assertValueCount(2).assertComplete();
+        assertTrue("Expected the very same buffer downstream", subscriber.values().get(0) == first);
+        consume(subscriber.values());
+        assertAllReleased();
+    }
+
+    @Test
+    public void testReleasesQueuedBuffersWhenDownstreamCancels() {
+        AtomicBoolean upstreamCancelled = new AtomicBoolean();
+        ProxyResponseBody body = new ProxyResponseBody(() -> upstreamCancelled.set(true));
+        TestSubscriber<ByteBuffer<?>> subscriber = body.test(1);
+        for (int i = 0; i < 10; i++) {
+            body.onNext(chunk());
+        }
+        subscriber.assertValueCount(1);
+        subscriber.cancel();
+        // Late arrivals from upstream after the cancel must not leak either
+        body.onNext(chunk());
+
+        assertTrue("Expected the upstream exchange to be cancelled", upstreamCancelled.get());
+        consume(subscriber.values());
+        assertAllReleased();
+    }
+
+    @Test
+    public void testDisconnectsClientFallingTooFarBehind() {
+        AtomicInteger upstreamCancels = new AtomicInteger();
+        ProxyResponseBody body = new ProxyResponseBody(upstreamCancels::incrementAndGet, 48);
+        TestSubscriber<ByteBuffer<?>> subscriber = body.test(1);
+        for (int i = 0; i < 4; i++) {
+            body.onNext(chunk());
+        }
+        assertEquals(48, body.getQueuedBytes());
+        assertEquals(0, upstreamCancels.get());
+        // One more chunk puts the client more than 48 bytes behind
+        body.onNext(chunk());
+        body.onNext(chunk());
+
+        subscriber.assertValueCount(1).assertError(IOException.class);
+        assertEquals(0, body.getQueuedBytes());
+        subscriber.cancel();
+        assertEquals("Expected the upstream exchange to be stopped once", 1, upstreamCancels.get());
+        consume(subscriber.values());
+        assertAllReleased();
+    }
+
+    @Test
+    public void testSpoolsBeyondMemoryToDisk() throws IOException {
+        File spoolDirectory = folder.newFolder("spool");
+        ProxyResponseBody body = new ProxyResponseBody(() -> {}, Long.MAX_VALUE, 32, spoolDirectory.toPath(), Schedulers.trampoline());
+        TestSubscriber<ByteBuffer<?>> subscriber = body.test(0);
+        for (int i = 0; i < 6; i++) {
+            ByteBuffer<?> chunk = chunk();
+            ((ByteBuf) chunk.asNativeBuffer()).setByte(0, i);
+            body.onNext(chunk);
+        }
+        body.onComplete();
+        assertEquals(96, body.getQueuedBytes());
+        // The first two chunks are queued as they are, the rest were released once spooled
+        assertEquals(1, allocated.get(1).refCnt());
+        assertEquals(0, allocated.get(2).refCnt());
+
+        subscriber.request(Long.MAX_VALUE);
+        subscriber.assertValueCount(6).assertComplete();
+        for (int i = 0; i < 6; i++) {
+            assertEquals(16, subscriber.values().get(i).readableBytes());
+            assertEquals(i, ((ByteBuf) subscriber.values().get(i).asNativeBuffer()).getByte(0));
+        }
+        assertEquals("Expected the spool file to be deleted", 0, spoolDirectory.list().length);
+        consume(subscriber.values());
+        assertAllReleased();
+    }
+
+    @Test
+    public void testWritesAndReadsSpoolInTheBackground() throws IOException {
+        File spoolDirectory = folder.newFolder("spool");
+        TestScheduler scheduler = new TestScheduler();
+        ProxyResponseBody body = new ProxyResponseBody(() -> {}, Long.MAX_VALUE, 16, spoolDirectory.toPath(), scheduler);
+        TestSubscriber<ByteBuffer<?>> subscriber = body.test(0);
+        body.onNext(chunk());
+        body.onNext(chunk());
+        body.onNext(chunk());
+        body.onComplete();
+        subscriber.request(Long.MAX_VALUE);
+        // The first chunk fitted in memory, the others wait for the spool
+        subscriber.assertValueCount(1).assertNotComplete();
+        assertEquals(1, allocated.get(1).refCnt());
+
+        scheduler.triggerActions();
+        subscriber.assertValueCount(3).assertComplete();
+        assertEquals("Expected the spool file to be deleted", 0, spoolDirectory.list().length);
+        consume(subscriber.values());
+        assertAllReleased();
+    }
+
+    @Test
+    public void testReleasesBuffersWhenUpstreamFails() {
+        ProxyResponseBody body = new ProxyResponseBody(() -> {});
+        body.onNext(chunk());
+        body.onNext(chunk());
+        body.onError(new RuntimeException("Upstream went away"));
+        body.onNext(chunk());
+
+        TestSubscriber<ByteBuffer<?>> subscriber = body.test(0);
+        subscriber.assertNoValues().assertNotTerminated();
+        subscriber.cancel();
+        assertAllReleased();
+    }
+}
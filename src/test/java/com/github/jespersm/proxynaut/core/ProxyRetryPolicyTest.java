@@ -0,0 +1,128 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.jespersm.proxynaut.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.ConnectException;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import io.micronaut.http.HttpMethod;
+import io.micronaut.http.client.exceptions.HttpClientException;
+
+public class ProxyRetryPolicyTest {
+
+    private static final Throwable CONNECT_FAILURE = new HttpClientException("Connect error", new ConnectException("refused"));
+
+    @Test
+    public void testHistogramBucketsBoundTheirValues() {
+        for (long micros : new long[] { 0, 1, 7, 8, 9, 15, 16, 1000, 123_456, Long.MAX_VALUE }) {
+            int index = ProxyLatencyHistogram.indexOf(micros);
+            assertTrue(micros + " above its bucket", micros <= ProxyLatencyHistogram.upperBoundOf(index));
+            assertTrue(micros + " below its bucket", index == 0 || micros > ProxyLatencyHistogram.upperBoundOf(index - 1));
+        }
+    }
+
+    @Test
+    public void testHistogramPercentiles() {
+        ProxyLatencyHistogram histogram = new ProxyLatencyHistogram(0);
+        assertEquals(0, histogram.getValueAtPercentile(99));
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        assertEquals(100, histogram.getCount());
+        long p50 = TimeUnit.NANOSECONDS.toMillis(histogram.getValueAtPercentile(50));
+        long p99 = TimeUnit.NANOSECONDS.toMillis(histogram.getValueAtPercentile(99));
+        assertTrue("p50 was " + p50, p50 >= 50 && p50 <= 57);
+        assertTrue("p99 was " + p99, p99 >= 99 && p99 <= 112);
+    }
+
+    @Test
+    public void testRetriesOnlyIdempotentConnectFailures() {
+        ProxyRetryPolicy policy = new ProxyRetryPolicy("test", new ProxyRetryConfiguration());
+        assertTrue(policy.shouldRetry(HttpMethod.GET, 1, CONNECT_FAILURE));
+        assertTrue(policy.shouldRetry(HttpMethod.GET, 2, CONNECT_FAILURE));
+        assertFalse("Only two retries by default", policy.shouldRetry(HttpMethod.GET, 3, CONNECT_FAILURE));
+        assertFalse(policy.shouldRetry(HttpMethod.POST, 1, CONNECT_FAILURE));
+        assertFalse(policy.shouldRetry(HttpMethod.GET, 1, new HttpClientException("Read timeout")));
+        assertEquals(2, policy.getRetries());
+    }
+
+    @Test
+    public void testBudgetLimitsRetries() {
+        ProxyRetryConfiguration config = new ProxyRetryConfiguration();
+        config.setBudgetMax(2);
+        config.setBudgetRatio(0.5);
+        ProxyRetryPolicy policy = new ProxyRetryPolicy("test", config);
+        assertTrue(policy.shouldRetry(HttpMethod.GET, 1, CONNECT_FAILURE));
+        assertTrue(policy.shouldRetry(HttpMethod.GET, 1, CONNECT_FAILURE));
+        assertFalse(policy.shouldRetry(HttpMethod.GET, 1, CONNECT_FAILURE));
+        assertEquals(1, policy.getDenied());
+        policy.deposit();
+        assertFalse("Half a retry isn't enough", policy.shouldRetry(HttpMethod.GET, 1, CONNECT_FAILURE));
+        policy.deposit();
+        assertTrue(policy.shouldRetry(HttpMethod.GET, 1, CONNECT_FAILURE));
+        for (int i = 0; i < 100; i++) {
+            policy.deposit();
+        }
+        assertEquals(2.0, policy.getBudget(), 0.0);
+    }
+
+    @Test
+    public void testHedgesAfterPercentileOnceWarmedUp() {
+        ProxyRetryConfiguration config = new ProxyRetryConfiguration();
+        config.setHedge(true);
+        config.setHedgeMinSamples(10);
+        config.setHedgeMinDelay(Duration.ofMillis(1));
+        ProxyRetryPolicy policy = new ProxyRetryPolicy("test", config);
+        for (int i = 0; i < 9; i++) {
+            policy.observeHeaderLatency(TimeUnit.MILLISECONDS.toNanos(20));
+        }
+        assertEquals(-1, policy.hedgeDelayNanos(HttpMethod.GET));
+        policy.observeHeaderLatency(TimeUnit.MILLISECONDS.toNanos(20));
+        long delay = TimeUnit.NANOSECONDS.toMillis(policy.hedgeDelayNanos(HttpMethod.GET));
+        assertTrue("Delay was " + delay, delay >= 20 && delay < 23);
+        assertEquals(-1, policy.hedgeDelayNanos(HttpMethod.POST));
+        assertTrue(policy.tryHedge());
+        assertEquals(1, policy.getHedges());
+    }
+
+    @Test
+    public void testHedgeDelayFollowsLatencyPeriodically() {
+        ProxyRetryConfiguration config = new ProxyRetryConfiguration();
+        config.setHedge(true);
+        config.setHedgeMinSamples(10);
+        config.setHedgeMinDelay(Duration.ofMillis(1));
+        ProxyRetryPolicy policy = new ProxyRetryPolicy("test", config);
+        for (int i = 0; i < 10; i++) {
+            policy.observeHeaderLatency(TimeUnit.MILLISECONDS.toNanos(20));
+        }
+        long warmedUp = policy.hedgeDelayNanos(HttpMethod.GET);
+        policy.observeHeaderLatency(TimeUnit.MILLISECONDS.toNanos(200));
+        assertEquals("Not updated for every observation", warmedUp, policy.hedgeDelayNanos(HttpMethod.GET));
+        for (int i = 0; i < 200; i++) {
+            policy.observeHeaderLatency(TimeUnit.MILLISECONDS.toNanos(200));
+        }
+        assertTrue(policy.hedgeDelayNanos(HttpMethod.GET) >= TimeUnit.MILLISECONDS.toNanos(200));
+    }
+}
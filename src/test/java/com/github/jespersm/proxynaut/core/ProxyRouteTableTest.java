@@ -0,0 +1,65 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jespersm.proxynaut.core;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class ProxyRouteTableTest {
+
+    private static ProxyConfiguration config(String name, String context) {
+        ProxyConfiguration config = new ProxyConfiguration(name);
+        config.setContext(context);
+        return config;
+    }
+
+    @Test
+    public void testLongestPrefixWins() {
+        ProxyRouteTable table = new ProxyRouteTable(asList(
+                config("api", "/api/"),
+                config("apiV2", "/api/v2/"),
+                config("blobs", "/blobs")));
+
+        assertEquals("api", table.findLongestPrefix("/api/things").getName());
+        assertEquals("api", table.findLongestPrefix("/api/").getName());
+        assertEquals("apiV2", table.findLongestPrefix("/api/v2/things").getName());
+        assertEquals("api", table.findLongestPrefix("/api/v3/things").getName());
+        assertEquals("blobs", table.findLongestPrefix("/blobs").getName());
+        assertEquals("blobs", table.findLongestPrefix("/blobs/some/blob").getName());
+    }
+
+    @Test
+    public void testNoMatch() {
+        ProxyRouteTable table = new ProxyRouteTable(asList(config("api", "/api/")));
+
+        assertNull(table.findLongestPrefix("/ap"));
+        assertNull(table.findLongestPrefix("/other/api/"));
+        assertNull(table.findLongestPrefix(""));
+    }
+
+    @Test
+    public void testFirstConfigurationForContextWins() {
+        ProxyRouteTable table = new ProxyRouteTable(asList(
+                config("first", "/root"),
+                config("second", "/root")));
+
+        assertEquals("first", table.findLongestPrefix("/root/x").getName());
+    }
+}
@@ -16,22 +16,47 @@
 
 package com.github.jespersm.proxynaut.core;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
+import org.junit.ClassRule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import io.micronaut.context.ApplicationContext;
 import io.micronaut.context.env.PropertySource;
 import io.micronaut.core.io.buffer.ByteBuffer;
 import io.micronaut.core.io.buffer.ReferenceCounted;
 import io.micronaut.core.util.CollectionUtils;
+import io.micronaut.http.HttpHeaders;
 import io.micronaut.http.HttpMethod;
 import io.micronaut.http.HttpRequest;
 import io.micronaut.http.HttpResponse;
@@ -49,6 +74,9 @@ public class ProxyTest extends AbstractOperationTest {
     static EmbeddedServer server;
     static EmbeddedServer proxyServer;
 
+    @ClassRule
+    public static TemporaryFolder cacheFolder = new TemporaryFolder();
+
     @BeforeClass
     public static void makeContext()
     {
@@ -57,15 +85,109 @@ public class ProxyTest extends AbstractOperationTest {
                 PropertySource.of(
                         "testProxyConfiguration",
                         CollectionUtils.mapOf(
+                            // Leave room for testStreamUpload on the proxy, the upstream reads it as a stream
+                            "micronaut.server.maxRequestSize", "200MB",
                             "proxynaut.test1.context", "/proxyOrigin",
                             "proxynaut.test1.uri", server.getURL()+ "/origin",
                             "proxynaut.test2.context", "/proxyJunk",
-                            "proxynaut.test2.uri", server.getURL()+ "/junk")
+                            "proxynaut.test2.uri", server.getURL()+ "/junk",
+                            "proxynaut.test3.context", "/proxySlow",
+                            "proxynaut.test3.uri", server.getURL()+ "/origin",
+                            "proxynaut.test3.timeoutMs", 100,
+                            "proxynaut.test4.context", "/proxyCached",
+                            "proxynaut.test4.uri", server.getURL()+ "/origin",
+                            "proxynaut.test4.cache.maxBytes", 1_000_000,
+                            "proxynaut.test5.context", "/proxyBlobs",
+                            "proxynaut.test5.uri", server.getURL()+ "/origin",
+                            "proxynaut.test5.cache.maxEntryBytes", 10_000,
+                            "proxynaut.test5.cache.disk.directory", cacheFolder.getRoot().getPath(),
+                            "proxynaut.test6.context", "/proxyCoalesced",
+                            "proxynaut.test6.uri", server.getURL()+ "/origin",
+                            "proxynaut.test6.coalesce", true,
+                            "proxynaut.test7.context", "/proxyBalanced",
+                            "proxynaut.test7.uris", Arrays.asList(server.getURL()+ "/origin", server.getURL()+ "/origin"),
+                            "proxynaut.test7.balancer", "least-outstanding",
+                            "proxynaut.test8.context", "/proxyEjecting",
+                            "proxynaut.test8.uris", Arrays.asList(server.getURL()+ "/origin", "http://localhost:" + unusedPort() + "/origin"),
+                            "proxynaut.test8.health.path", "/ok",
+                            "proxynaut.test8.health.interval", "100ms",
+                            "proxynaut.test8.health.consecutiveFailures", 1,
+                            "proxynaut.test9.context", "/proxyBreaker",
+                            "proxynaut.test9.uri", "http://localhost:" + unusedPort() + "/origin",
+                            "proxynaut.test9.health.consecutiveFailures", 0,
+                            "proxynaut.test9.circuitBreaker.minimumCalls", 2,
+                            "proxynaut.test9.circuitBreaker.openDuration", "1m",
+                            "proxynaut.test10.context", "/proxyRetried",
+                            "proxynaut.test10.uris", Arrays.asList("http://localhost:" + unusedPort() + "/origin", server.getURL()+ "/origin"),
+                            "proxynaut.test10.health.consecutiveFailures", 0,
+                            "proxynaut.test10.retry.maxRetries", 1,
+                            "proxynaut.test11.context", "/proxyHedged",
+                            "proxynaut.test11.uri", server.getURL()+ "/origin",
+                            "proxynaut.test11.retry.hedge", true,
+                            "proxynaut.test11.retry.hedgeMinSamples", 3,
+                            "proxynaut.test11.retry.hedgePercentile", 50,
+                            "proxynaut.test11.retry.hedgeMinDelay", "50ms",
+                            "proxynaut.test12.context", "/proxyHeaders",
+                            "proxynaut.test12.uri", server.getURL()+ "/origin",
+                            "proxynaut.test12.excludeRequestHeaders", Arrays.asList("x-secret"),
+                            "proxynaut.test12.excludeResponseHeaders", Arrays.asList("X-INTERNAL"),
+                            "proxynaut.test13.context", "/proxyCompressed",
+                            "proxynaut.test13.uri", server.getURL()+ "/origin",
+                            "proxynaut.test13.cache.maxBytes", 1_000_000,
+                            "proxynaut.test13.compression.minSize", 1024,
+                            "proxynaut.test14.context", "/proxyBuffered",
+                            "proxynaut.test14.uri", server.getURL()+ "/origin",
+                            "proxynaut.test14.buffer.maxBytes", 65536,
+                            "proxynaut.test14.buffer.memoryBytes", 0,
+                            "proxynaut.test14.buffer.spoolDirectory", cacheFolder.getRoot().getPath() + "/spool",
+                            "proxynaut.test15.context", "/proxyLimited",
+                            "proxynaut.test15.uri", server.getURL()+ "/origin",
+                            "proxynaut.test15.rateLimit.clientRate", 0.1,
+                            "proxynaut.test15.rateLimit.clientBurst", 2,
+                            "proxynaut.test15.rateLimit.clientHeader", "X-Api-Key",
+                            "proxynaut.test16.context", "/proxyConcurrent",
+                            "proxynaut.test16.uri", server.getURL()+ "/origin",
+                            "proxynaut.test16.concurrencyLimit.initialLimit", 2,
+                            "proxynaut.test16.concurrencyLimit.maxLimit", 2,
+                            "proxynaut.test17.context", "/proxyLogged",
+                            "proxynaut.test17.uri", server.getURL()+ "/origin",
+                            "proxynaut.test17.accessLog.file", cacheFolder.getRoot().getPath() + "/access.log",
+                            "proxynaut.test18.context", "/proxyTimed",
+                            "proxynaut.test18.uri", server.getURL()+ "/origin",
+                            "proxynaut.test18.timeouts.connect", "2s",
+                            "proxynaut.test18.timeouts.firstByte", "100ms",
+                            "proxynaut.test18.timeouts.total", "5s",
+                            "proxynaut.test19.context", "/proxyWarm",
+                            "proxynaut.test19.uri", server.getURL()+ "/origin",
+                            "proxynaut.test19.client.pool.enabled", true,
+                            "proxynaut.test19.warmup.connections", 2,
+                            "proxynaut.test19.warmup.path", "/ok",
+                            "proxynaut.test19.warmup.requests", 3,
+                            "proxynaut.test20.context", "/proxyResolved",
+                            "proxynaut.test20.uri", server.getURL()+ "/origin",
+                            "proxynaut.test20.dns.ttl", "1m",
+                            "proxynaut.test21.context", "/proxyTraced",
+                            "proxynaut.test21.uri", server.getURL()+ "/origin",
+                            "proxynaut.test22.context", "/proxyStalled",
+                            "proxynaut.test22.uri", server.getURL()+ "/origin",
+                            "proxynaut.test22.timeouts.bodyIdle", "200ms",
+                            "proxynaut.test23.context", "/proxyPooled",
+                            "proxynaut.test23.uri", server.getURL()+ "/origin",
+                            "proxynaut.test23.client.pool.enabled", true,
+                            "proxynaut.test23.client.pool.maxConnections", 20)
                         )
                 );
         proxyServer.start();
     }
 
+    private static int unusedPort() {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     @AfterClass
     public static void closeContext()
     {
@@ -79,6 +201,425 @@ public class ProxyTest extends AbstractOperationTest {
         }
     }
 
+    @Test
+    public void testUpstreamTimeout() throws InterruptedException {
+        try {
+            client.toBlocking().exchange("/proxySlow/rawJsonStream", String.class);
+            fail("Expected exception");
+        } catch (HttpClientResponseException hcre) {
+            assertEquals(HttpStatus.BAD_GATEWAY, hcre.getStatus());
+        }
+    }
+
+    @Test
+    public void testRouteMetrics() throws InterruptedException {
+        ProxyRouteMetrics metrics = proxyServer.getApplicationContext().getBean(Proxy.class).getRouteMetrics().get("test3");
+        long requests = metrics.getRequests();
+        long timeouts = metrics.getTimeouts();
+        long bytesOut = metrics.getBytesOut();
+        long headers = metrics.getUpstreamHeaderLatency().getCount();
+        assertEquals("Origin says 'ok'", client.toBlocking().retrieve("/proxySlow/ok"));
+        try {
+            client.toBlocking().exchange("/proxySlow/rawJsonStream", String.class);
+            fail("Expected exception");
+        } catch (HttpClientResponseException hcre) {
+            assertEquals(HttpStatus.BAD_GATEWAY, hcre.getStatus());
+        }
+        assertEquals(requests + 2, metrics.getRequests());
+        assertEquals(timeouts + 1, metrics.getTimeouts());
+        assertEquals(bytesOut + "Origin says 'ok'".length(), metrics.getBytesOut());
+        assertEquals("Only the first request got upstream headers", headers + 1, metrics.getUpstreamHeaderLatency().getCount());
+        assertTrue(metrics.getResponses(2) >= 1);
+        assertTrue(metrics.getResponses(5) >= 1);
+        assertTrue(metrics.getTotalLatency().getValueAtPercentile(100) > 0);
+        for (int i = 0; i < 50 && metrics.getInFlight() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, metrics.getInFlight());
+    }
+
+    @Test
+    public void testConcurrentSlowUpstreams() throws InterruptedException {
+        int requests = 50;
+        long start = System.currentTimeMillis();
+        List<String> responses = Flowable.range(0, requests)
+                .flatMap(i -> client.retrieve(HttpRequest.GET("/proxyOrigin/rawJsonStream")), requests)
+                .toList()
+                .blockingGet();
+        long elapsed = System.currentTimeMillis() - start;
+        assertEquals(requests, responses.size());
+        // Each upstream call takes 300 ms, so waiting on them one at a time would take 15 seconds
+        assertTrue("Expected slow upstreams to be served concurrently, took " + elapsed + " ms", elapsed < 5_000);
+    }
+
+    @Test
+    public void testClientStatistics() throws InterruptedException {
+        client.toBlocking().exchange("/proxyPooled/ok", String.class);
+        ProxyClientStatistics statistics = proxyServer.getApplicationContext().getBean(Proxy.class).getClientStatistics().get("test23");
+        assertEquals(20, statistics.getMaxConnections());
+        assertTrue("Expected exchanges to be counted", statistics.getExchanges() > 0);
+        assertEquals(0, statistics.getInFlight());
+        assertEquals(0, statistics.getEstimatedPendingAcquires());
+        assertEquals(0.0, statistics.getEstimatedOccupancy(), 0.0);
+    }
+
+    @Test
+    public void testCacheCountsUpstreamAgeAndRequestMaxAge() {
+        HttpResponse<String> miss = client.toBlocking().exchange("/proxyCached/agedCacheable", String.class);
+        HttpResponse<String> hit = client.toBlocking().exchange("/proxyCached/agedCacheable", String.class);
+        assertEquals(miss.body(), hit.body());
+        assertTrue("Expected the upstream's Age to be kept", Long.parseLong(hit.getHeaders().get(HttpHeaders.AGE)) >= 50);
+
+        // Older than the client accepts, so it goes to the upstream
+        HttpResponse<String> fresher = client.toBlocking().exchange(HttpRequest.GET("/proxyCached/agedCacheable")
+                .header(HttpHeaders.CACHE_CONTROL, "max-age=30"), String.class);
+        assertNotEquals(miss.body(), fresher.body());
+    }
+
+    @Test
+    public void testResponseCache() throws InterruptedException {
+        ProxyResponseCache cache = proxyServer.getApplicationContext().getBean(Proxy.class).getResponseCaches().get("test4");
+        long hits = cache.getHits();
+
+        String first = client.toBlocking().retrieve(HttpRequest.GET("/proxyCached/cacheable").header("Accept-Language", "da"));
+        assertEquals(first, client.toBlocking().retrieve(HttpRequest.GET("/proxyCached/cacheable").header("Accept-Language", "da")));
+        assertEquals(hits + 1, cache.getHits());
+
+        // Another variant, and a request insisting on going to the upstream
+        String english = client.toBlocking().retrieve(HttpRequest.GET("/proxyCached/cacheable").header("Accept-Language", "en"));
+        assertTrue(english, english.endsWith(" for en"));
+        assertNotEquals(first, client.toBlocking().retrieve(HttpRequest.GET("/proxyCached/cacheable").header("Accept-Language", "da").header("Cache-Control", "no-cache")));
+        assertEquals(hits + 1, cache.getHits());
+        assertEquals(0, cache.getEvictions());
+        assertTrue("Expected the cached bodies to be counted", cache.getBytes() > 0);
+    }
+
+    @Test
+    public void testDiskCache() throws InterruptedException {
+        ProxyResponseCache cache = proxyServer.getApplicationContext().getBean(Proxy.class).getResponseCaches().get("test5");
+
+        byte[] first = client.toBlocking().retrieve("/proxyBlobs/cacheableBlob", byte[].class);
+        assertEquals(100_000, first.length);
+        assertEquals(0, cache.getBytes());
+        long deadline = System.currentTimeMillis() + 5000;
+        // Written to disk in the background, after the body was relayed
+        while (cache.getDiskBytes() < 100_000) {
+            assertTrue("Expected the body to be written to disk", System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+        assertEquals(100_000, cache.getDiskBytes());
+
+        byte[] second = client.toBlocking().retrieve("/proxyBlobs/cacheableBlob", byte[].class);
+        assertArrayEquals(first, second);
+        assertEquals(1, cache.getDiskHits());
+    }
+
+    @Test
+    public void testCoalescesIdenticalRequests() throws InterruptedException {
+        int requests = 20;
+        List<String> responses = Flowable.range(0, requests)
+                .flatMap(i -> client.retrieve(HttpRequest.GET("/proxyCoalesced/slowCount")), requests)
+                .toList()
+                .blockingGet();
+        ProxyCoalescer coalescer = proxyServer.getApplicationContext().getBean(Proxy.class).getCoalescers().get("test6");
+        assertEquals(requests, coalescer.getExchanges() + coalescer.getCoalesced());
+        assertTrue("Expected requests to share exchanges: " + coalescer, coalescer.getCoalesced() > 0);
+        // Every response came from one of the exchanges
+        assertEquals(coalescer.getExchanges(), new HashSet<>(responses).size());
+    }
+
+    @Test
+    public void testBalancesBetweenUpstreams() throws InterruptedException {
+        for (int i = 0; i < 10; i++) {
+            assertEquals("Origin says 'ok'", client.toBlocking().retrieve("/proxyBalanced/ok"));
+        }
+        List<ProxyUpstream> upstreams = proxyServer.getApplicationContext().getBean(Proxy.class).getUpstreams("test7");
+        assertEquals(2, upstreams.size());
+        assertEquals(10, upstreams.get(0).getExchanges() + upstreams.get(1).getExchanges());
+        for (ProxyUpstream upstream : upstreams) {
+            assertTrue("Expected both upstreams to be used: " + upstreams, upstream.getExchanges() > 0);
+        }
+    }
+
+    @Test
+    public void testAvoidsDeadUpstream() throws InterruptedException {
+        int failures = 0;
+        for (int i = 0; i < 10; i++) {
+            try {
+                client.toBlocking().retrieve("/proxyEjecting/ok");
+            } catch (HttpClientResponseException e) {
+                failures++;
+            }
+        }
+        assertTrue("Expected the dead upstream to be ejected after its first failure, failed " + failures, failures <= 1);
+        Thread.sleep(300);
+        List<ProxyUpstream> upstreams = proxyServer.getApplicationContext().getBean(Proxy.class).getUpstreams("test8");
+        assertTrue(upstreams.get(0).isProbedHealthy());
+        assertFalse("Expected the dead upstream to fail its health checks", upstreams.get(1).isProbedHealthy());
+        assertFalse(upstreams.get(1).isAvailable());
+    }
+
+    @Test
+    public void testOpenCircuitFailsFast() throws InterruptedException {
+        for (int i = 0; i < 2; i++) {
+            try {
+                client.toBlocking().retrieve("/proxyBreaker/ok");
+                fail("Expected exception");
+            } catch (HttpClientResponseException e) {
+                assertEquals(HttpStatus.INTERNAL_SERVER_ERROR, e.getStatus());
+            }
+        }
+        ProxyCircuitBreaker breaker = proxyServer.getApplicationContext().getBean(Proxy.class).getCircuitBreakers().get("test9");
+        assertEquals(ProxyCircuitBreaker.State.OPEN, breaker.getState());
+        try {
+            client.toBlocking().retrieve("/proxyBreaker/ok");
+            fail("Expected exception");
+        } catch (HttpClientResponseException e) {
+            assertEquals(HttpStatus.SERVICE_UNAVAILABLE, e.getStatus());
+        }
+        assertEquals(1, breaker.getRejected());
+    }
+
+    @Test
+    public void testConnectFailuresAreRetried() {
+        for (int i = 0; i < 6; i++) {
+            assertEquals("Origin says 'ok'", client.toBlocking().retrieve("/proxyRetried/ok"));
+        }
+        ProxyRetryPolicy policy = proxyServer.getApplicationContext().getBean(Proxy.class).getRetryPolicies().get("test10");
+        assertTrue("Expected the dead upstream to be retried", policy.getRetries() > 0);
+    }
+
+    @Test
+    public void testSlowRequestIsHedged() {
+        for (int i = 0; i < 3; i++) {
+            client.toBlocking().retrieve("/proxyHedged/ok");
+        }
+        ProxyRetryPolicy policy = proxyServer.getApplicationContext().getBean(Proxy.class).getRetryPolicies().get("test11");
+        assertEquals(0, policy.getHedges());
+        assertTrue(client.toBlocking().retrieve("/proxyHedged/slowCount").startsWith("Origin call #"));
+        assertEquals(1, policy.getHedges());
+    }
+
+    @Test
+    public void testForwardsHeaders() {
+        HttpResponse<String> response = client.toBlocking().exchange(HttpRequest.GET("/proxyHeaders/echoHeaders")
+                .header("X-Custom", "a")
+                .header("X-Secret", "s")
+                .header("Proxy-Authorization", "Basic c2VjcmV0")
+                .header("X-Forwarded-For", "203.0.113.7"), String.class);
+        String upstreamHeaders = response.body();
+        assertTrue(upstreamHeaders, upstreamHeaders.contains("x-custom: [a]\n"));
+        assertFalse("Excluded by the configuration", upstreamHeaders.contains("x-secret"));
+        assertFalse("Hop-by-hop", upstreamHeaders.contains("proxy-authorization"));
+        assertTrue(upstreamHeaders, upstreamHeaders.contains("x-forwarded-for: [203.0.113.7, 127.0.0.1]\n"));
+        assertTrue(upstreamHeaders, upstreamHeaders.contains("x-forwarded-proto: [http]\n"));
+        assertTrue(upstreamHeaders, upstreamHeaders.contains("x-forwarded-host: [localhost"));
+
+        assertEquals("yes", response.header("X-Public"));
+        assertNull("Excluded by the configuration", response.header("X-Internal"));
+        assertNull("Hop-by-hop", response.header("Keep-Alive"));
+    }
+
+    @Test
+    public void testCompressesResponses() throws IOException {
+        String plain = client.toBlocking().retrieve("/proxyOrigin/bigResponse");
+
+        HttpURLConnection connection = openConnection("/proxyCompressed/bigResponse", "deflate;q=0.5, gzip");
+        assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+        assertEquals("Accept-Encoding", connection.getHeaderField("Vary"));
+        assertEquals(plain, readAll(new GZIPInputStream(connection.getInputStream())));
+
+        connection = openConnection("/proxyCompressed/bigResponse", "gzip;q=0, deflate");
+        assertEquals("deflate", connection.getHeaderField("Content-Encoding"));
+        assertEquals(plain, readAll(new InflaterInputStream(connection.getInputStream())));
+
+        connection = openConnection("/proxyCompressed/bigResponse", "identity");
+        assertNull(connection.getHeaderField("Content-Encoding"));
+        assertEquals(plain, readAll(connection.getInputStream()));
+    }
+
+    @Test
+    public void testCachesCompressedResponses() throws IOException {
+        ProxyResponseCache cache = proxyServer.getApplicationContext().getBean(Proxy.class).getResponseCaches().get("test13");
+        HttpURLConnection connection = openConnection("/proxyCompressed/cacheableBlob", "gzip");
+        assertNull("Not a compressible type", connection.getHeaderField("Content-Encoding"));
+        readAll(connection.getInputStream());
+        long uncompressedBytes = cache.getBytes();
+
+        String first = readAll(new GZIPInputStream(openConnection("/proxyCompressed/cacheableText", "gzip").getInputStream()));
+        long storedBytes = cache.getBytes();
+        assertTrue(storedBytes - uncompressedBytes >= first.length());
+        // The first hit compresses the cached body and keeps the result, the next one is served from that
+        assertEquals(first, readAll(new GZIPInputStream(openConnection("/proxyCompressed/cacheableText", "gzip").getInputStream())));
+        long compressedBytes = cache.getBytes() - storedBytes;
+        assertTrue("Expected the compressed body to be kept", compressedBytes > 0 && compressedBytes < first.length());
+        HttpURLConnection hit = openConnection("/proxyCompressed/cacheableText", "gzip");
+        assertEquals("gzip", hit.getHeaderField("Content-Encoding"));
+        assertEquals(first, readAll(new GZIPInputStream(hit.getInputStream())));
+        assertEquals(first, client.toBlocking().retrieve("/proxyCompressed/cacheableText"));
+    }
+
+    @Test
+    public void testBufferedResponseIsComplete() {
+        String plain = client.toBlocking().retrieve("/proxyOrigin/bigResponse");
+        // Without memory to queue in, every chunk goes through the spool
+        assertEquals(plain, client.toBlocking().retrieve("/proxyBuffered/bigResponse"));
+        assertEquals("Expected the spool file to be deleted", 0, new File(cacheFolder.getRoot(), "spool").list().length);
+    }
+
+    @Test
+    public void testRateLimitsClients() {
+        for (int i = 0; i < 2; i++) {
+            assertEquals(HttpStatus.OK, client.toBlocking().exchange(HttpRequest.GET("/proxyLimited/ok").header("X-Api-Key", "limited")).getStatus());
+        }
+        try {
+            client.toBlocking().exchange(HttpRequest.GET("/proxyLimited/ok").header("X-Api-Key", "limited"));
+            fail("Expected the third request to be rejected");
+        } catch (HttpClientResponseException e) {
+            assertEquals(HttpStatus.TOO_MANY_REQUESTS, e.getStatus());
+            long retryAfter = Long.parseLong(e.getResponse().getHeaders().get(HttpHeaders.RETRY_AFTER));
+            assertTrue("Retry-After " + retryAfter, retryAfter >= 1 && retryAfter <= 10);
+        }
+        assertEquals(HttpStatus.OK, client.toBlocking().exchange(HttpRequest.GET("/proxyLimited/ok").header("X-Api-Key", "other")).getStatus());
+        assertEquals(1, proxyServer.getApplicationContext().getBean(Proxy.class).getRateLimiters().get("test15").getRejected());
+    }
+
+    @Test
+    public void testShedsRequestsBeyondConcurrencyLimit() {
+        int requests = 6;
+        List<HttpStatus> statuses = Flowable.range(0, requests)
+                .flatMap(i -> client.exchange(HttpRequest.GET("/proxyConcurrent/slowCount"), String.class)
+                        .map(HttpResponse::getStatus)
+                        .onErrorReturn(e -> ((HttpClientResponseException) e).getStatus()), requests)
+                .toList()
+                .blockingGet();
+        ProxyConcurrencyLimiter limiter = proxyServer.getApplicationContext().getBean(Proxy.class).getConcurrencyLimiters().get("test16");
+        assertEquals(requests - limiter.getRejected(), statuses.stream().filter(HttpStatus.OK::equals).count());
+        assertTrue("Expected requests to be shed: " + statuses, statuses.contains(HttpStatus.SERVICE_UNAVAILABLE));
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void testLogsAccess() throws IOException, InterruptedException {
+        String body = client.toBlocking().retrieve("/proxyLogged/bigResponse");
+        File file = new File(cacheFolder.getRoot(), "access.log");
+        String expected = " test17 GET /proxyLogged/bigResponse 200 " + body.length() + " ";
+        long deadline = System.currentTimeMillis() + 5000;
+        // Written in the background, shortly after the body has been relayed
+        while (! (file.exists() && new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).contains(expected))) {
+            assertTrue("Expected the request in the access log", System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+    }
+
+    @Test
+    public void testFirstByteTimeout() {
+        ProxyRouteMetrics metrics = proxyServer.getApplicationContext().getBean(Proxy.class).getRouteMetrics().get("test18");
+        assertEquals("Origin says 'ok'", client.toBlocking().retrieve("/proxyTimed/ok"));
+        try {
+            client.toBlocking().exchange("/proxyTimed/slowCount", String.class);
+            fail("Expected exception");
+        } catch (HttpClientResponseException hcre) {
+            assertEquals(HttpStatus.BAD_GATEWAY, hcre.getStatus());
+        }
+        assertEquals(1, metrics.getTimeouts());
+    }
+
+    @Test
+    public void testBodyIdleTimeoutIsCounted() {
+        ProxyRouteMetrics metrics = proxyServer.getApplicationContext().getBean(Proxy.class).getRouteMetrics().get("test22");
+        // The headers were relayed already, so the body is cut short rather than answered with 502
+        byte[] body = client.toBlocking().retrieve("/proxyStalled/stallingBody", byte[].class);
+        assertEquals("first", new String(body, StandardCharsets.UTF_8));
+        assertEquals(1, metrics.getTimeouts());
+    }
+
+    @Test
+    public void testWarmupAtStartup() {
+        Proxy proxy = proxyServer.getApplicationContext().getBean(Proxy.class);
+        proxy.warmUp().blockingAwait(10, TimeUnit.SECONDS);
+        assertTrue(proxy.isReady());
+        ProxyWarmup warmup = proxy.getWarmups().get("test19");
+        assertTrue(warmup.isDone());
+        assertEquals(2, warmup.getConnections());
+        assertEquals(3, warmup.getRequests());
+        assertEquals(0, warmup.getFailures());
+        assertEquals("The warm-up requests were relayed", 3, proxy.getRouteMetrics().get("test19").getRequests());
+    }
+
+    @Test
+    public void testCachedUpstreamAddresses() throws InterruptedException {
+        assertEquals("Origin says 'ok'", client.toBlocking().retrieve("/proxyResolved/ok"));
+        ProxyDnsCache dns = proxyServer.getApplicationContext().getBean(Proxy.class).getDnsCaches().get("test20");
+        long deadline = System.currentTimeMillis() + 5000;
+        // Resolved in the background, when the first request created the client
+        while (dns.getAddresses(server.getURL().getHost()).isEmpty()) {
+            assertTrue("Expected the upstream host to be resolved", System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+        assertEquals("Origin says 'ok'", client.toBlocking().retrieve("/proxyResolved/ok"));
+        assertEquals(1, dns.getRefreshes());
+    }
+
+    @Test
+    public void testCacheHitKeepsUpstreamHeaders() {
+        HttpResponse<String> miss = client.toBlocking().exchange(HttpRequest.GET("/proxyCached/cacheable").header("Accept-Language", "fr"), String.class);
+        HttpResponse<String> hit = client.toBlocking().exchange(HttpRequest.GET("/proxyCached/cacheable").header("Accept-Language", "fr"), String.class);
+        assertEquals(miss.body(), hit.body());
+        Set<String> missHeaders = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        missHeaders.addAll(miss.getHeaders().names());
+        Set<String> hitHeaders = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        hitHeaders.addAll(hit.getHeaders().names());
+        hitHeaders.remove(HttpHeaders.AGE);
+        assertEquals(missHeaders, hitHeaders);
+        assertEquals(miss.getHeaders().get(HttpHeaders.CACHE_CONTROL), hit.getHeaders().get(HttpHeaders.CACHE_CONTROL));
+        assertEquals(miss.getHeaders().get(HttpHeaders.VARY), hit.getHeaders().get(HttpHeaders.VARY));
+    }
+
+    @Test
+    public void testApplicationFiltersSeeProxiedRequests() {
+        HttpResponse<String> response = client.toBlocking().exchange("/proxyTraced/ok", String.class);
+        assertEquals("Origin says 'ok'", response.body());
+        assertEquals("true", response.getHeaders().get(TracingFilter.TRACED));
+    }
+
+    @Test
+    public void testServeDerivesUpstreamPathFromMatchedContext() {
+        Proxy proxy = proxyServer.getApplicationContext().getBean(Proxy.class);
+        HttpRequest<ByteBuffer<?>> request = (HttpRequest<ByteBuffer<?>>) (HttpRequest<?>) HttpRequest.GET("/proxyOrigin/ok");
+        // A suffix that doesn't belong to the matched context is ignored
+        HttpResponse<?> response = proxy.serve(request, "/proxyOrigin/ok").blockingGet();
+        assertEquals(HttpStatus.OK, response.getStatus());
+        byte[] body = ((Flowable<ByteBuffer<?>>) response.body())
+                .reduce(new ByteArrayOutputStream(), (out, buffer) -> {
+                    out.write(buffer.toByteArray());
+                    ((ReferenceCounted) buffer).release();
+                    return out;
+                })
+                .blockingGet()
+                .toByteArray();
+        assertEquals("Origin says 'ok'", new String(body, StandardCharsets.UTF_8));
+    }
+
+    private HttpURLConnection openConnection(String path, String acceptEncoding) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(proxyServer.getURL(), path).openConnection();
+        connection.setRequestProperty("Accept-Encoding", acceptEncoding);
+        assertEquals(200, connection.getResponseCode());
+        return connection;
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        try (InputStream stream = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = stream.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
 	@Override
 	protected String getPrefixUnderTest() {
 		return "/proxyOrigin";
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jespersm.proxynaut.core;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Test;
+
+import io.micronaut.core.io.buffer.ByteBuffer;
+import io.micronaut.http.HttpResponse;
+import io.reactivex.Flowable;
+import io.reactivex.processors.PublishProcessor;
+import io.reactivex.subscribers.TestSubscriber;
+
+public class ProxyTimeoutsTest {
+
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final ProxyTimeouts timeouts = new ProxyTimeouts();
+
+    @After
+    public void close() {
+        timeouts.close();
+    }
+
+    private static HttpResponse<ByteBuffer<?>> chunk() {
+        return HttpResponse.ok();
+    }
+
+    private static void assertTimedOut(TestSubscriber<HttpResponse<ByteBuffer<?>>> subscriber, String phase) throws InterruptedException {
+        assertTrue(subscriber.await(5, TimeUnit.SECONDS));
+        subscriber.assertError(e -> e instanceof TimeoutException && e.getMessage().contains(phase));
+    }
+
+    @Test
+    public void testTimesOutWaitingForHeaders() throws InterruptedException {
+        PublishProcessor<HttpResponse<ByteBuffer<?>>> upstream = PublishProcessor.create();
+        TestSubscriber<HttpResponse<ByteBuffer<?>>> subscriber = timeouts.apply(upstream, 50 * MILLIS, 0, 0).test();
+        assertTimedOut(subscriber, "headers");
+        assertFalse("The upstream exchange is cancelled", upstream.hasSubscribers());
+    }
+
+    @Test
+    public void testTimesOutWhenBodyStalls() throws InterruptedException {
+        TestSubscriber<HttpResponse<ByteBuffer<?>>> subscriber = timeouts.apply(
+                Flowable.just(chunk()).concatWith(Flowable.never()), 5000 * MILLIS, 50 * MILLIS, 0).test();
+        assertTimedOut(subscriber, "body");
+        subscriber.assertValueCount(1);
+    }
+
+    @Test
+    public void testSteadyBodyMayTakeLongerThanIdleTimeout() throws InterruptedException {
+        TestSubscriber<HttpResponse<ByteBuffer<?>>> subscriber = timeouts.apply(
+                Flowable.interval(20, TimeUnit.MILLISECONDS).take(15).map(i -> chunk()), 5000 * MILLIS, 100 * MILLIS, 0).test();
+        assertTrue(subscriber.await(5, TimeUnit.SECONDS));
+        subscriber.assertComplete();
+        subscriber.assertValueCount(15);
+    }
+
+    @Test
+    public void testTimesOutSteadyBodyThatTakesTooLong() throws InterruptedException {
+        TestSubscriber<HttpResponse<ByteBuffer<?>>> subscriber = timeouts.apply(
+                Flowable.interval(20, TimeUnit.MILLISECONDS).map(i -> chunk()), 5000 * MILLIS, 100 * MILLIS, 200 * MILLIS).test();
+        assertTimedOut(subscriber, "complete");
+    }
+
+    @Test
+    public void testNoTimeoutsLeavesSourceAlone() {
+        Flowable<HttpResponse<ByteBuffer<?>>> source = Flowable.never();
+        assertTrue(timeouts.apply(source, 0, 0, 0) == source);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2018 Jesper Steen Møller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.jespersm.proxynaut.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class ProxyUpstreamTest {
+
+    private final ProxyHealthConfiguration health = new ProxyHealthConfiguration();
+
+    public ProxyUpstreamTest() {
+        health.setConsecutiveFailures(3);
+        health.setBaseEjectionTime(Duration.ofMillis(100));
+        health.setMaxEjectionTime(Duration.ofMillis(250));
+    }
+
+    private ProxyUpstream upstream(String uri) {
+        return new ProxyUpstream(URI.create(uri), null, health);
+    }
+
+    private static void fail(ProxyUpstream upstream, int times) {
+        for (int i = 0; i < times; i++) {
+            upstream.observeOutcome(true);
+        }
+    }
+
+    @Test
+    public void testEjectsAfterConsecutiveFailures() throws InterruptedException {
+        ProxyUpstream upstream = upstream("http://one/");
+        fail(upstream, 2);
+        upstream.observeOutcome(false);
+        fail(upstream, 2);
+        assertTrue("Expected failures interrupted by a success not to eject", upstream.isAvailable());
+        fail(upstream, 1);
+        assertFalse(upstream.isAvailable());
+        assertEquals(1, upstream.getEjections());
+        Thread.sleep(150);
+        assertTrue("Expected re-admission after the base ejection time", upstream.isAvailable());
+    }
+
+    @Test
+    public void testEjectionTimeDoublesUpToMaximum() throws InterruptedException {
+        ProxyUpstream upstream = upstream("http://one/");
+        fail(upstream, 3);
+        Thread.sleep(150);
+        fail(upstream, 3);
+        assertEquals(2, upstream.getEjections());
+        Thread.sleep(150);
+        assertFalse("Expected the second ejection to last twice as long", upstream.isAvailable());
+        Thread.sleep(100);
+        assertTrue(upstream.isAvailable());
+        fail(upstream, 3);
+        Thread.sleep(300);
+        assertTrue("Expected the ejection to be capped", upstream.isAvailable());
+    }
+
+    @Test
+    public void testGroupSkipsUnavailableUpstreams() {
+        ProxyUpstream one = upstream("http://one/");
+        ProxyUpstream two = upstream("http://two/");
+        ProxyUpstreamGroup group = new ProxyUpstreamGroup(Arrays.asList(one, two), ProxyLoadBalancer.forName("round-robin"), health);
+        fail(one, 3);
+        for (int i = 0; i < 4; i++) {
+            assertSame(two, group.select());
+        }
+        two.setProbedHealthy(false);
+        assertNull("Expected no upstream when all are unavailable", group.select());
+    }
+}